@@ -0,0 +1,168 @@
+package benchmark;
+
+import common.PacketRing;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/**
+ * The DispatchBenchmark class measures handing packets from the receiver thread to the thread of a
+ * transfer, the old way (a copy of every packet in a LinkedBlockingQueue) against the PacketRing.
+ * The queue and ring groups run a receiver and a transfer thread at once, the packets per second
+ * are the rate of the take methods (a full ring or queue makes the offer methods fail fast).
+ * The echo groups send a packet to an echo thread and wait for it to come back, their
+ * sampled times (p99 included) are two dispatches with the wait strategy's wake up cost.
+ * The queue has no wait strategy, its results are the same for every value.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+@State(Scope.Group)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+    private static final int CAPACITY = PacketRing.DEFAULT_CAPACITY;
+    private static final long TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    @Param({"BUSY_SPIN", "YIELD", "PARK"})
+    public PacketRing.WaitStrategy waitStrategy;
+
+    @Param({"516", "1472"})
+    public int packetSize;
+
+    private byte[] packet; //the receiver's buffer
+    private PacketRing ring;
+    private BlockingQueue<byte[]> queue;
+    private PacketRing echoedRing;
+    private BlockingQueue<byte[]> echoedQueue;
+    private volatile boolean running;
+    private Thread echo;
+
+    @Setup(Level.Trial)
+    public void setUp(BenchmarkParams params) {
+        packet = new byte[packetSize];
+        ring = new PacketRing(CAPACITY, waitStrategy);
+        queue = new LinkedBlockingQueue<>();
+        echoedRing = new PacketRing(CAPACITY, waitStrategy);
+        echoedQueue = new LinkedBlockingQueue<>();
+
+        running = true;
+        if (params.getBenchmark().endsWith("ringEcho")) {
+            echo = new Thread(this::echoRing, "echo");
+            echo.start();
+        } else if (params.getBenchmark().endsWith("queueEcho")) {
+            echo = new Thread(this::echoQueue, "echo");
+            echo.start();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        running = false;
+        if (echo != null) {
+            echo.join();
+        }
+    }
+
+    @Benchmark
+    @Group("ring")
+    @GroupThreads(1)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public boolean ringOffer() {
+        return ring.offer(packet, packetSize);
+    }
+
+    @Benchmark
+    @Group("ring")
+    @GroupThreads(1)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int ringTake() throws InterruptedException {
+        return ring.next(TIMEOUT_NANOS) ? ring.length() : 0;
+    }
+
+    @Benchmark
+    @Group("queue")
+    @GroupThreads(1)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public boolean queueOffer() {
+        return queue.size() < CAPACITY && queue.add(Arrays.copyOf(packet, packetSize)); //bounded like the ring
+    }
+
+    @Benchmark
+    @Group("queue")
+    @GroupThreads(1)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int queueTake() throws InterruptedException {
+        byte[] received = queue.poll(TIMEOUT_NANOS, TimeUnit.NANOSECONDS);
+        return received == null ? 0 : received.length;
+    }
+
+    @Benchmark
+    @Group("ringEcho")
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int ringRoundTrip() throws InterruptedException {
+        ring.offer(packet, packetSize);
+        return echoedRing.next(TIMEOUT_NANOS) ? echoedRing.length() : 0;
+    }
+
+    @Benchmark
+    @Group("queueEcho")
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int queueRoundTrip() throws InterruptedException {
+        queue.add(Arrays.copyOf(packet, packetSize));
+        byte[] received = echoedQueue.poll(TIMEOUT_NANOS, TimeUnit.NANOSECONDS);
+        return received == null ? 0 : received.length;
+    }
+
+    //the transfer side of the round trip, sends every packet back as it is
+    private void echoRing() {
+        try {
+            while (running) {
+                if (ring.next(TIMEOUT_NANOS)) {
+                    echoedRing.offer(ring.array(), ring.length());
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void echoQueue() {
+        try {
+            while (running) {
+                byte[] received = queue.poll(TIMEOUT_NANOS, TimeUnit.NANOSECONDS);
+                if (received != null) {
+                    echoedQueue.add(Arrays.copyOf(received, received.length));
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,134 @@
+package benchmark;
+
+import common.Log;
+import common.TransferOptions;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import tftpclient.TFTPClient;
+import tftpserver.TFTPMultiThreadedServer;
+
+/**
+ * The LoopbackTransferBenchmark class measures whole transfers over loopback: a TFTPClient
+ * reading (RRQ) or writing (WRQ) a file through a TFTPMultiThreadedServer running in the same JVM.
+ * Each operation is one complete transfer, so the score is the time per file and the
+ * throughput is the file size divided by it. File sizes go from 1 KB to 1 GB, the large ones
+ * take a while, pick sizes with -p fileSize=... Run with -prof gc to see the bytes allocated per transfer.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LoopbackTransferBenchmark {
+
+    private static final int SERVER_PORT = 9000;
+    private static final int FIRST_CLIENT_PORT = 20000;
+    private static final int CLIENT_PORTS = 10000;
+
+    private static boolean serverStarted; //one server per JVM, it keeps its port until the JVM exits
+    private static int nextClientPort;
+
+    @Param({"1024", "1048576", "67108864", "1073741824"})
+    public long fileSize;
+
+    @Param({"1468"})
+    public int blockSize;
+
+    @Param({"1", "16"})
+    public int windowSize;
+
+    private File source;
+    private File target;
+    private TransferOptions options;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        Log.setLevel(Log.Level.WARN); //no summary line per transfer in the measurements
+        startServer();
+
+        source = File.createTempFile("tftp-loopback", ".bin");
+        writeRandomFile(source, fileSize);
+        target = File.createTempFile("tftp-loopback-copy", ".bin");
+
+        options = new TransferOptions();
+        options.setBlockSize(blockSize);
+        options.setWindowSize(windowSize);
+    }
+
+    @TearDown(Level.Iteration)
+    public void checkCopy() {
+        if (target.length() != fileSize) {
+            throw new IllegalStateException("Received " + target.length() + " of " + fileSize + " bytes");
+        }
+        target.delete();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        source.delete();
+        target.delete();
+    }
+
+    @Benchmark
+    public void readRequest() {
+        new TFTPClient(SERVER_PORT, nextClientPort(), options).getFile(source.getAbsolutePath(), target.getAbsolutePath());
+    }
+
+    @Benchmark
+    public void writeRequest() {
+        new TFTPClient(SERVER_PORT, nextClientPort(), options).sendFile(source.getAbsolutePath(), target.getAbsolutePath());
+    }
+
+    private static synchronized void startServer() throws IOException, InterruptedException {
+        if (serverStarted) {
+            return;
+        }
+        TFTPMultiThreadedServer server = new TFTPMultiThreadedServer(); //binds the port straight away
+        Thread thread = new Thread(server::run, "tftp-benchmark-server");
+        thread.setDaemon(true);
+        thread.start();
+        serverStarted = true;
+        Thread.sleep(200);
+    }
+
+    //a new port for every transfer so the server always sees a new TID
+    private static synchronized int nextClientPort() {
+        int port = FIRST_CLIENT_PORT + nextClientPort;
+        nextClientPort = (nextClientPort + 1) % CLIENT_PORTS;
+        return port;
+    }
+
+    private static void writeRandomFile(File file, long size) throws IOException {
+        byte[] chunk = new byte[64 * 1024];
+        Random random = new Random(42);
+
+        try (OutputStream out = new FileOutputStream(file)) {
+            for (long written = 0; written < size; written += chunk.length) {
+                random.nextBytes(chunk);
+                out.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+package benchmark;
+
+import common.Log;
+import common.NetworkSimulator;
+import common.TransferOptions;
+import common.TransferStats;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import tftpclient.TFTPClient;
+import tftpserver.TFTPMultiThreadedServer;
+
+/**
+ * The LossBenchmark class measures read request throughput and completion rate when packets
+ * are lost, entirely in-process. The server and the client each send through a NetworkSimulator,
+ * so both DATA and ACK packets are lost, and the loss rate is changed between runs.
+ * The simulators are seeded, so two runs with the same arguments see the same losses.
+ * args[0] is the file size in KB (default 1024), args[1] the transfers per loss rate (default 10),
+ * args[2] the window size (default 1) and args[3] the one-way latency in milliseconds (default 1).
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public class LossBenchmark {
+
+    private static final double[] LOSS_RATES = {0, 0.01, 0.05, 0.10};
+    private static final long SEED = 42;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int kilobytes = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+        int transfers = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int windowSize = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        int latency = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+        Log.setLevel(Log.Level.ERROR); //failed transfers are counted in the table instead
+
+        File source = File.createTempFile("tftp-loss", ".bin");
+        source.deleteOnExit();
+        writeRandomFile(source, kilobytes * 1024);
+
+        NetworkSimulator serverNetwork = new NetworkSimulator(SEED);
+        NetworkSimulator clientNetwork = new NetworkSimulator(SEED + 1);
+        serverNetwork.setLatency(latency, latency);
+        clientNetwork.setLatency(latency, latency);
+
+        TFTPMultiThreadedServer server = new TFTPMultiThreadedServer();
+        server.setTransportFactory(serverNetwork);
+        Thread serverThread = new Thread(server::run);
+        serverThread.setDaemon(true); //server loops forever, let the JVM exit once the runs are done
+        serverThread.start();
+        Thread.sleep(200);
+
+        TransferOptions options = new TransferOptions();
+        options.setWindowSize(windowSize);
+
+        System.out.printf("%-8s %10s %12s %10s %12s%n", "loss", "completed", "seconds", "MB/s", "retransmits");
+
+        for (double loss : LOSS_RATES) {
+            serverNetwork.setLoss(loss);
+            clientNetwork.setLoss(loss);
+
+            int completed = 0;
+            int retransmissions = 0;
+            double seconds = 0;
+            for (int i = 0; i < transfers; i++) {
+                File target = File.createTempFile("tftp-loss-copy", ".bin");
+                target.deleteOnExit();
+
+                TFTPClient client = new TFTPClient("localhost", 9000, 0, options);
+                client.setTransportFactory(clientNetwork);
+                long start = System.nanoTime();
+                try {
+                    TransferStats stats = client.getFile(source.getAbsolutePath(), target.getAbsolutePath());
+                    retransmissions += stats.getRetransmissions();
+                    if (stats.isSucceeded() && target.length() == source.length()) {
+                        completed++;
+                        seconds += (System.nanoTime() - start) / 1e9;
+                    }
+                } catch (IllegalStateException ex) {
+                    //counted as not completed
+                }
+                target.delete();
+            }
+
+            double average = completed == 0 ? 0 : seconds / completed;
+            System.out.printf("%-8.2f %6d/%-3d %12.3f %10.2f %12d%n", loss, completed, transfers, average,
+                    completed == 0 ? 0 : source.length() / average / (1024 * 1024), retransmissions);
+        }
+    }
+
+    private static void writeRandomFile(File file, int size) throws IOException {
+        byte[] chunk = new byte[64 * 1024];
+        Random random = new Random(SEED);
+
+        try (OutputStream out = new FileOutputStream(file)) {
+            for (int written = 0; written < size; written += chunk.length) {
+                random.nextBytes(chunk);
+                out.write(chunk, 0, Math.min(chunk.length, size - written));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+package benchmark;
+
+import common.PacketFactory;
+import common.PacketView;
+import common.Request;
+import common.RequestParser;
+import common.TransferOptions;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The PacketCodecBenchmark class measures encoding every packet type with the PacketFactory
+ * and decoding requests with the RequestParser, the work done for every packet of a transfer.
+ * The legacy create methods that return a new array are measured next to the encode methods
+ * that write into a reused buffer. Run with -prof gc to see the bytes allocated per packet.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketCodecBenchmark {
+
+    private static final String FILE_NAME = "/srv/tftp/images/boot/vmlinuz-5.4.0-42-generic";
+
+    @Param({"512", "1468", "8192"})
+    public int blockSize;
+
+    private final PacketFactory factory = new PacketFactory();
+    private final RequestParser parser = new RequestParser();
+    private final PacketView view = new PacketView();
+    private Map<String, String> options;
+    private ByteBuffer out;
+    private byte[] data;
+    private byte[] rrq;
+    private byte[] plainRrq;
+    private byte[] dataPacket;
+    private byte[] ack;
+    private byte[] error;
+
+    @Setup
+    public void setUp() {
+        TransferOptions requested = new TransferOptions();
+        requested.setBlockSize(blockSize);
+        requested.setWindowSize(16);
+        requested.setTimeout(2);
+        requested.setTransferSize(0);
+        options = requested.toRequestOptions();
+
+        out = ByteBuffer.allocate(blockSize + 4);
+        data = new byte[blockSize];
+        rrq = factory.createRRQ(FILE_NAME, options);
+        plainRrq = factory.createRRQ(FILE_NAME);
+        dataPacket = factory.createData(7, data, blockSize);
+        ack = factory.createAck(7);
+        error = factory.createERROR((byte) 1, "File not found");
+    }
+
+    @Benchmark
+    public int encodeRRQ() {
+        out.clear();
+        return factory.encodeRRQ(out, FILE_NAME, options);
+    }
+
+    @Benchmark
+    public int encodeWRQ() {
+        out.clear();
+        return factory.encodeWRQ(out, FILE_NAME, options);
+    }
+
+    @Benchmark
+    public int encodeData() {
+        out.clear();
+        return factory.encodeData(out, 7, data, blockSize);
+    }
+
+    @Benchmark
+    public byte[] createData() {
+        return factory.createData(7, data, blockSize);
+    }
+
+    @Benchmark
+    public int encodeAck() {
+        out.clear();
+        return factory.encodeAck(out, 7);
+    }
+
+    @Benchmark
+    public byte[] createAck() {
+        return factory.createAck(7);
+    }
+
+    @Benchmark
+    public int encodeError() {
+        out.clear();
+        return factory.encodeError(out, 1, "File not found");
+    }
+
+    @Benchmark
+    public int encodeOACK() {
+        out.clear();
+        return factory.encodeOACK(out, options);
+    }
+
+    @Benchmark
+    public Request parseRRQ() {
+        return parser.parseRequest(rrq, rrq.length);
+    }
+
+    @Benchmark
+    public Request parsePlainRRQ() {
+        return parser.parseRequest(plainRrq, plainRrq.length);
+    }
+
+    @Benchmark
+    public Request parseData() {
+        return parser.parseRequest(dataPacket, dataPacket.length);
+    }
+
+    @Benchmark
+    public Request parseAck() {
+        return parser.parseRequest(ack, ack.length);
+    }
+
+    @Benchmark
+    public Request parseError() {
+        return parser.parseRequest(error, error.length);
+    }
+
+    @Benchmark
+    public int viewData() {
+        return view.wrap(dataPacket, dataPacket.length).getBlockNum(); //what the receive paths use instead of parseRequest
+    }
+
+    @Benchmark
+    public int viewAck() {
+        return view.wrap(ack, ack.length).getBlockNum();
+    }
+
+}
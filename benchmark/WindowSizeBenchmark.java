@@ -0,0 +1,81 @@
+package benchmark;
+
+import common.TransferOptions;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import tftpclient.TFTPClient;
+import tftpserver.TFTPMultiThreadedServer;
+
+/**
+ * The WindowSizeBenchmark class measures read request throughput over loopback
+ * for different window sizes (RFC 7440). It starts the server on its usual port
+ * in a background thread, then downloads the same file once per window size.
+ * The file size in megabytes can be passed as args[0], the default is 32, and
+ * the block size (blksize) as args[1], the default is 512.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public class WindowSizeBenchmark {
+
+    private static final int[] WINDOW_SIZES = {1, 4, 16, 64};
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int blockSize = args.length > 1 ? Integer.parseInt(args[1]) : TransferOptions.DEFAULT_BLOCK_SIZE;
+
+        File source = File.createTempFile("tftp-bench", ".bin");
+        source.deleteOnExit();
+        writeRandomFile(source, megabytes * 1024 * 1024);
+
+        Thread server = new Thread(() -> {
+            try {
+                new TFTPMultiThreadedServer().run();
+            } catch (IOException ex) {
+                throw new IllegalStateException("Could not start server");
+            }
+        });
+        server.setDaemon(true); //server loops forever, let the JVM exit once the runs are done
+        server.start();
+        Thread.sleep(200);
+
+        System.out.printf("%-12s %12s %12s%n", "windowsize", "seconds", "MB/s");
+
+        int clientPort = 10100;
+        for (int windowSize : WINDOW_SIZES) {
+            TransferOptions options = new TransferOptions();
+            options.setBlockSize(blockSize);
+            options.setWindowSize(windowSize);
+
+            File target = File.createTempFile("tftp-bench-" + windowSize, ".bin");
+            target.deleteOnExit();
+
+            TFTPClient client = new TFTPClient(9000, clientPort++, options); //new port per run so the server sees a new TID
+            long start = System.nanoTime();
+            client.getFile(source.getAbsolutePath(), target.getAbsolutePath());
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            if (target.length() != source.length()) {
+                System.err.println("windowsize " + windowSize + ": received " + target.length() + " of " + source.length() + " bytes");
+            }
+
+            System.out.printf("%-12d %12.3f %12.1f%n", windowSize, seconds, target.length() / seconds / (1024 * 1024));
+        }
+    }
+
+    private static void writeRandomFile(File file, int size) throws IOException {
+        byte[] chunk = new byte[64 * 1024];
+        Random random = new Random(42);
+
+        try (OutputStream out = new FileOutputStream(file)) {
+            for (int written = 0; written < size; written += chunk.length) {
+                random.nextBytes(chunk);
+                out.write(chunk, 0, Math.min(chunk.length, size - written));
+            }
+        }
+    }
+
+}
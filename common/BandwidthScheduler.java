@@ -0,0 +1,282 @@
+package common;
+
+import java.io.Closeable;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The BandwidthScheduler class paces the DATA packets a server sends so that its egress is shared
+ * fairly when it is busy, instead of going to whichever client acknowledges fastest.
+ * Every packet needs tokens from two token buckets. The bucket of the client's subnet (a /24, or a /64
+ * for IPv6, so one host cannot get around it with many ports) caps the rate of any one client.
+ * The global bucket caps the egress of the whole server and is handed out by weighted fair queuing:
+ * every packet waiting for it gets a virtual finish time (the later of the scheduler's virtual time and
+ * the session's last finish time, plus its size divided by the weight of its client) and the packet with
+ * the earliest finish time goes next (self-clocked fair queuing). Sessions with a backlog therefore get
+ * a share of the rate in proportion to their weight whatever their round trip time, and a slow client
+ * keeps its share next to a fast one. A rate of 0 leaves a bucket unlimited.
+ * The rate each subnet got recently is reported by getAllocations, TransferMetrics shows it.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public class BandwidthScheduler {
+
+    public static final int BURST_MILLIS = 20; //depth of every bucket, as time at its rate
+    public static final int IPV4_PREFIX = 24;
+    public static final int IPV6_PREFIX = 64;
+
+    private final long globalRate; //bytes per second, 0 = unlimited
+    private final long clientRate;
+    private final TokenBucket global;
+    private final Map<String, Client> clients = new HashMap<>(); //subnets with a session, guarded by this
+    private final Map<String, Integer> weights = new HashMap<>(); //weights set for subnets, 1 for all others, guarded by this
+    private final PriorityQueue<Waiter> waiting = new PriorityQueue<>(); //packets waiting for the global bucket, guarded by this
+    private boolean turnTaken; //a packet is taking tokens from the global bucket, guarded by this
+    private double virtualTime; //finish time of the last packet that got the global bucket, guarded by this
+    private long arrivals; //orders waiters with the same finish time, guarded by this
+    private final LongAdder granted = new LongAdder();
+    private long lastGranted; //for the rates between two calls of getAllocations, guarded by this
+    private long lastNanos = System.nanoTime();
+
+    /**
+     * This constructor creates a scheduler with a cap on the whole egress and on every client subnet
+     *
+     * @param globalBytesPerSecond rate of all DATA packets together, 0 for no cap
+     * @param clientBytesPerSecond rate of the DATA packets to one subnet, 0 for no cap
+     */
+    public BandwidthScheduler(long globalBytesPerSecond, long clientBytesPerSecond) {
+        this.globalRate = globalBytesPerSecond;
+        this.clientRate = clientBytesPerSecond;
+        this.global = globalBytesPerSecond > 0 ? new TokenBucket(globalBytesPerSecond) : null;
+    }
+
+    /**
+     * Sets the weight of a client subnet, its sessions get that many times the share of the global rate
+     * of a session with the default weight 1. Sessions already open keep their weight.
+     *
+     * @param address any address of the subnet
+     * @param weight weight from 1 on
+     */
+    public synchronized void setWeight(InetAddress address, int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("Weight must be at least 1, got " + weight);
+        }
+        weights.put(subnet(address), weight);
+    }
+
+    /**
+     * Opens the pacing of one transfer to a client, to be closed when the transfer ends.
+     *
+     * @param address address of the client
+     * @return the session whose acquire paces every DATA packet of the transfer
+     */
+    public synchronized Session open(InetAddress address) {
+        String key = subnet(address);
+        Client client = clients.computeIfAbsent(key, name -> new Client(name, clientRate > 0 ? new TokenBucket(clientRate) : null));
+        client.sessions++;
+        return new Session(client, weights.getOrDefault(key, 1));
+    }
+
+    /**
+     * Describes the current allocation of the egress: one line for the global cap and one for every
+     * subnet with a session, with its sessions, weight and the rate it got since the last call.
+     *
+     * @return the allocation lines
+     */
+    public synchronized String[] getAllocations() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1, now - lastNanos) / 1e9;
+        lastNanos = now;
+
+        List<String> lines = new ArrayList<>();
+        long total = granted.sum();
+        lines.add("global cap=" + globalRate + "B/s rate=" + (long) ((total - lastGranted) / seconds) + "B/s waiting=" + waiting.size());
+        lastGranted = total;
+        for (Client client : clients.values()) {
+            long sent = client.granted.sum();
+            lines.add(client.name + " sessions=" + client.sessions + " weight=" + weights.getOrDefault(client.name, 1)
+                    + " cap=" + clientRate + "B/s rate=" + (long) ((sent - client.lastGranted) / seconds) + "B/s");
+            client.lastGranted = sent;
+        }
+        return lines.toArray(new String[0]);
+    }
+
+    //the subnet an address belongs to, e.g. 10.1.2.0/24
+    private static String subnet(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        int prefix = address instanceof Inet4Address ? IPV4_PREFIX : IPV6_PREFIX;
+        for (int i = 0; i < bytes.length; i++) {
+            int keep = Math.max(0, Math.min(8, prefix - i * 8));
+            bytes[i] &= (byte) (0xff00 >> keep);
+        }
+        try {
+            return InetAddress.getByAddress(bytes).getHostAddress() + "/" + prefix;
+        } catch (UnknownHostException ex) {
+            return address.getHostAddress(); //cannot happen for the length of a real address
+        }
+    }
+
+    //waits for the turn of a packet on the global bucket, in the order of the finish times
+    private void takeGlobal(Session session, int bytes) {
+        Waiter waiter;
+        synchronized (this) {
+            double start = Math.max(virtualTime, session.lastFinish);
+            session.lastFinish = start + (double) bytes / session.weight;
+            waiter = new Waiter(session.lastFinish, arrivals++);
+            waiting.add(waiter);
+            if (!turnTaken) {
+                passTurn();
+            }
+        }
+
+        boolean interrupted = false;
+        while (!waiter.turn) {
+            LockSupport.park(this);
+            interrupted |= Thread.interrupted(); //kept for the caller, the packet still has to wait for its turn
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        sleep(global.reserve(bytes)); //only the packet with the turn takes tokens, so the ones after it wait in finish order
+
+        synchronized (this) {
+            virtualTime = waiter.finish;
+            passTurn();
+        }
+    }
+
+    //gives the turn to the waiting packet with the earliest finish time, guarded by this
+    private void passTurn() {
+        Waiter next = waiting.poll();
+        turnTaken = next != null;
+        if (next != null) {
+            next.turn = true;
+            LockSupport.unpark(next.thread);
+        }
+    }
+
+    private static void sleep(long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        long left;
+        while ((left = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(left);
+        }
+    }
+
+    /**
+     * The pacing of one transfer.
+     */
+    public class Session implements Closeable {
+
+        private final Client client;
+        private final int weight;
+        private double lastFinish; //virtual finish time of the last packet of this session, guarded by the scheduler
+
+        Session(Client client, int weight) {
+            this.client = client;
+            this.weight = weight;
+        }
+
+        /**
+         * Waits until a packet may be sent: first for the bucket of the client's subnet, then for the
+         * turn of the packet on the global bucket. The time waited is recorded in TransferMetrics.
+         *
+         * @param bytes size of the packet
+         */
+        public void acquire(int bytes) {
+            long start = System.nanoTime();
+            if (client.bucket != null) {
+                sleep(client.bucket.reserve(bytes));
+            }
+            if (global != null) {
+                takeGlobal(this, bytes);
+            }
+            TransferMetrics.global().recordPacingWait(System.nanoTime() - start);
+            client.granted.add(bytes);
+            granted.add(bytes);
+        }
+
+        /**
+         * Ends the pacing of the transfer, the subnet is forgotten with its last session.
+         */
+        @Override
+        public void close() {
+            synchronized (BandwidthScheduler.this) {
+                if (--client.sessions == 0) {
+                    clients.remove(client.name);
+                }
+            }
+        }
+    }
+
+    //a subnet with sessions, its bucket is shared by all of them
+    private static class Client {
+
+        private final String name;
+        private final TokenBucket bucket; //null if the client rate is not capped
+        private final LongAdder granted = new LongAdder();
+        private int sessions; //guarded by the scheduler
+        private long lastGranted; //guarded by the scheduler
+
+        Client(String name, TokenBucket bucket) {
+            this.name = name;
+            this.bucket = bucket;
+        }
+    }
+
+    //a packet waiting for its turn on the global bucket
+    private static class Waiter implements Comparable<Waiter> {
+
+        private final double finish;
+        private final long arrival;
+        private final Thread thread = Thread.currentThread();
+        private volatile boolean turn;
+
+        Waiter(double finish, long arrival) {
+            this.finish = finish;
+            this.arrival = arrival;
+        }
+
+        @Override
+        public int compareTo(Waiter other) {
+            int order = Double.compare(finish, other.finish);
+            return order != 0 ? order : Long.compare(arrival, other.arrival);
+        }
+    }
+
+    //tokens are bytes, taking more than there are leaves a debt that the taker waits out, so takers are served in order
+    private static class TokenBucket {
+
+        private final long rate;
+        private final long burst;
+        private double tokens;
+        private long refilled = System.nanoTime();
+
+        TokenBucket(long rate) {
+            this.rate = rate;
+            this.burst = Math.max(1, rate * BURST_MILLIS / 1000);
+            this.tokens = burst;
+        }
+
+        //takes the tokens and returns how many nanoseconds to wait until they are paid for
+        synchronized long reserve(int bytes) {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - refilled) * (double) rate / TimeUnit.SECONDS.toNanos(1));
+            refilled = now;
+            tokens -= bytes;
+            return tokens >= 0 ? 0 : (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / rate);
+        }
+    }
+
+}
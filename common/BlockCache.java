@@ -0,0 +1,310 @@
+package common;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The BlockCache class keeps recently sent blocks of files in memory so that concurrent read
+ * requests for the same file (a boot image requested by hundreds of clients at once) share them
+ * instead of each reading the file from disk. A block is keyed by the identity of the file
+ * (its file key, or its path where the file system has none), its size and modification time,
+ * the block size and the block index, so a file that changes is never served from stale blocks.
+ * If several transfers miss the same block at once only one of them reads it, the others wait for it.
+ * The cache is split into stripes by the hash of the file and block, each with its own lock and an
+ * equal share of the memory budget, so transfers sending different blocks do not wait for each other.
+ * Within a stripe the least recently used blocks are evicted first, so the cache as a whole is an
+ * approximate LRU. Blocks can be kept off-heap in direct buffers. Hits, misses, evictions and the
+ * memory held are reported to the TransferMetrics.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public class BlockCache {
+
+    public static final long DEFAULT_BUDGET_BYTES = 64L * 1024 * 1024;
+    public static final int MAX_STRIPES = 16; //a power of two
+    public static final long MIN_STRIPE_BYTES = 1024 * 1024; //a small budget gets fewer stripes, so a stripe still holds a few of the largest blocks
+
+    private final long budget;
+    private final boolean direct;
+    private final Stripe[] stripes;
+    private final Map<Key, FutureTask<ByteBuffer>> loading = new ConcurrentHashMap<>(); //blocks being read from disk right now
+    private final TransferMetrics metrics = TransferMetrics.global();
+
+    /**
+     * This constructor creates an on-heap cache with the default budget
+     */
+    public BlockCache() {
+        this(DEFAULT_BUDGET_BYTES, false);
+    }
+
+    /**
+     * This constructor creates a cache with the given budget
+     *
+     * @param budget maximum number of bytes of blocks held
+     * @param direct true to hold the blocks in direct (off-heap) buffers
+     */
+    public BlockCache(long budget, boolean direct) {
+        this.budget = budget;
+        this.direct = direct;
+
+        int count = MAX_STRIPES;
+        while (count > 1 && budget / count < MIN_STRIPE_BYTES) {
+            count /= 2;
+        }
+        this.stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe(budget / count);
+        }
+    }
+
+    /**
+     * Opens a file to be served through the cache.
+     *
+     * @param fileName name of the file to be served
+     * @param blockSize negotiated block size
+     * @return a source handing out the blocks of the file, to be closed at the end of the transfer
+     * @throws IOException if the file cannot be opened, a FileNotFoundException if it does not exist
+     */
+    public BlockSource open(String fileName, int blockSize) throws IOException {
+        FileChannel file = new RandomAccessFile(fileName, "r").getChannel();
+        try {
+            Path path = Paths.get(fileName);
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            Object identity = attributes.fileKey() != null ? attributes.fileKey() : path.toRealPath();
+
+            return new CachedBlockSource(file, identity, attributes.size(), attributes.lastModifiedTime().toMillis(), blockSize);
+        } catch (IOException ex) {
+            file.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Getter method for the memory held by cached blocks.
+     *
+     * @return bytes of blocks in the cache
+     */
+    public long getUsedBytes() {
+        long used = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                used += stripe.used;
+            }
+        }
+        return used;
+    }
+
+    /**
+     * Getter method for the memory budget.
+     *
+     * @return maximum number of bytes of blocks held
+     */
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Getter method for the number of stripes the cache is split into.
+     *
+     * @return number of stripes, each with its own lock and share of the budget
+     */
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    //the key may be the probe of a source, it is only copied when the block has to be read
+    private ByteBuffer get(Key key, FileChannel file, int length) throws IOException {
+        Stripe stripe = stripes[key.hash >>> 28 & (stripes.length - 1)]; //the top bits, the maps use the low ones
+        ByteBuffer block;
+        synchronized (stripe) {
+            block = stripe.blocks.get(key);
+        }
+        if (block != null) {
+            metrics.blockCacheHit();
+            return block;
+        }
+
+        Key stored = key.copy();
+        FutureTask<ByteBuffer> load = new FutureTask<>(() -> read(stripe, stored, file, length));
+        FutureTask<ByteBuffer> running = loading.putIfAbsent(stored, load);
+        if (running == null) {
+            metrics.blockCacheMiss();
+            running = load;
+            try {
+                load.run(); //this transfer reads the block, any other transfer missing it waits below
+            } finally {
+                loading.remove(stored);
+            }
+        } else {
+            metrics.blockCacheHit(); //read once by the transfer that missed first
+        }
+
+        try {
+            return running.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for block " + key.index, ex);
+        } catch (ExecutionException ex) {
+            throw ex.getCause() instanceof IOException ? (IOException) ex.getCause() : new IOException(ex.getCause());
+        }
+    }
+
+    private ByteBuffer read(Stripe stripe, Key key, FileChannel file, int length) throws IOException {
+        ByteBuffer block = direct ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+        long position = key.index * key.blockSize;
+        while (block.hasRemaining()) {
+            if (file.read(block, position + block.position()) == -1) {
+                throw new IOException("File shrank while it was being sent");
+            }
+        }
+        block.flip();
+
+        stripe.put(key, block, metrics);
+        return block;
+    }
+
+    //one share of the cache, the blocks whose hash falls in it and the bytes they hold, guarded by the stripe itself
+    private static final class Stripe {
+
+        private final long budget;
+        private final LinkedHashMap<Key, ByteBuffer> blocks = new LinkedHashMap<>(64, 0.75f, true); //access order, the eldest entry is the least recently used
+        private long used;
+
+        private Stripe(long budget) {
+            this.budget = budget;
+        }
+
+        private synchronized void put(Key key, ByteBuffer block, TransferMetrics metrics) {
+            if (block.capacity() > budget) {
+                return; //would evict everything else and still not fit
+            }
+
+            ByteBuffer replaced = blocks.put(key, block);
+            long change = block.capacity() - (replaced == null ? 0 : replaced.capacity());
+
+            int evicted = 0;
+            Iterator<ByteBuffer> eldest = blocks.values().iterator();
+            while (used + change > budget && eldest.hasNext()) {
+                change -= eldest.next().capacity();
+                eldest.remove();
+                evicted++;
+            }
+            used += change;
+            metrics.blockCacheChanged(change, evicted);
+        }
+    }
+
+    //a lookup reuses the probe of its source and only sets the index, the keys stored in the maps are never changed
+    private static final class Key {
+
+        private final Object identity;
+        private final long size;
+        private final long modified;
+        private final int blockSize;
+        private final int fileHash;
+        private long index;
+        private int hash;
+
+        private Key(Object identity, long size, long modified, int blockSize) {
+            this.identity = identity;
+            this.size = size;
+            this.modified = modified;
+            this.blockSize = blockSize;
+            this.fileHash = (identity.hashCode() * 31 + Long.hashCode(modified)) * 31 + blockSize;
+        }
+
+        private Key at(long index) {
+            this.index = index;
+            this.hash = (fileHash + Long.hashCode(index)) * 0x9E3779B9; //spreads consecutive blocks over the stripes
+            return this;
+        }
+
+        private Key copy() {
+            return new Key(identity, size, modified, blockSize).at(index);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return index == key.index && blockSize == key.blockSize && modified == key.modified
+                    && size == key.size && identity.equals(key.identity);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    //hands out the blocks of one file for one transfer, the blocks themselves are shared
+    private final class CachedBlockSource implements BlockSource {
+
+        private static final int VIEWS = 16; //the blocks of a retransmitted window, also what one transfer keeps of blocks evicted since
+
+        private final FileChannel file;
+        private final long size;
+        private final int blockSize;
+        private final Key probe;
+        private final ByteBuffer[] views = new ByteBuffer[VIEWS]; //this transfer's own position and limit on the shared blocks
+        private final long[] viewIndexes = new long[VIEWS];
+
+        private CachedBlockSource(FileChannel file, Object identity, long size, long modified, int blockSize) {
+            this.file = file;
+            this.size = size;
+            this.blockSize = blockSize;
+            this.probe = new Key(identity, size, modified, blockSize);
+        }
+
+        @Override
+        public long getBlockCount() {
+            return size / blockSize + 1;
+        }
+
+        @Override
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public ByteBuffer block(long index) throws IOException {
+            int length = (int) Math.max(0, Math.min(blockSize, size - index * blockSize));
+            if (length == 0) {
+                return ByteBuffer.allocate(0); //empty last block, not worth caching
+            }
+
+            //a retransmitted block reuses the view this transfer already has, without looking it up again
+            int slot = (int) (index & (VIEWS - 1));
+            ByteBuffer view = views[slot];
+            if (view != null && viewIndexes[slot] == index) {
+                return view.clear(); //the capacity of a cached block is its length
+            }
+
+            view = get(probe.at(index), file, length).duplicate(); //the shared block keeps its position for the other transfers
+            views[slot] = view;
+            viewIndexes[slot] = index;
+            return view;
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+}
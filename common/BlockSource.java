@@ -0,0 +1,42 @@
+package common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The BlockSource interface is implemented by the classes a read request can be served from
+ * block by block without reading the file through a stream, see MappedBlockSource and BlockCache.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public interface BlockSource extends Closeable {
+
+    /**
+     * Getter method for the number of blocks in the transfer.
+     * This is always one more than the number of full blocks, because the last block must be
+     * shorter than the block size (it is empty if the file size is a multiple of the block size).
+     *
+     * @return number of DATA packets needed to send the file
+     */
+    long getBlockCount();
+
+    /**
+     * Getter method for the size of the file.
+     *
+     * @return file size in bytes
+     */
+    long getSize();
+
+    /**
+     * Returns a block of the file. The buffer may be reused by the source, so it is only
+     * valid until the next call.
+     *
+     * @param index block index starting at 0 (block number 1 on the wire)
+     * @return buffer positioned on the block with the limit at its end
+     * @throws IOException if the block cannot be read
+     */
+    ByteBuffer block(long index) throws IOException;
+
+}
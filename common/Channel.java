@@ -3,13 +3,13 @@ package common;
 
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -24,12 +24,27 @@ import java.util.concurrent.TimeUnit;
 public class Channel {
 
     private final DatagramPacket packet;
-    private final DatagramSocket socket;
-    private final RequestParser parser = new RequestParser();
+    private final DatagramTransport transport; //a plain socket, or a simulated network in tests
+    private final PacketView view = new PacketView(); //wrapped around every packet received, so reading one allocates nothing
     private final PacketFactory factory = new PacketFactory();
     private final boolean sync;
-    private BlockingQueue<Request> requests = new LinkedBlockingQueue<>(); //if empty when you try to get someting from blocking queue it will wait until there is something in it
-    private static final int TIMEOUT_SECONDS = 1;
+    private PacketRing packets; //packets handed over by the receiver thread when not in sync mode, waits for one when empty, null in sync mode and until the options are set
+    private PacketRing.WaitStrategy waitStrategy = PacketRing.WaitStrategy.PARK; //of the ring, kept until setOptions creates it
+    private final RetransmissionTimer timer = new RetransmissionTimer(); //per session round trip estimate
+    private TransferOptions options = new TransferOptions();
+    private boolean pending; //the view holds a packet that was read early (e.g. DATA instead of an OACK) and still has to be processed
+    private byte[] recvBuf = new byte[516]; //receive buffer for sync mode, reused for every packet and sized from the block size
+    private ByteBuffer sendBuf = ByteBuffer.allocate(516); //every packet is encoded into this buffer, reused and sized from the block size
+    private int lastLength; //length of the last packet in sendBuf, retransmitted when its reply does not arrive in time
+    private int retransmissions;
+    private final ByteBuffer header = ByteBuffer.allocateDirect(4); //DATA header for gathering writes, reused for every block
+    private final ByteBuffer[] gather = new ByteBuffer[]{header, null};
+    private BlockCache blockCache; //shared by the transfers of a server, null to read every file on its own
+    private BandwidthScheduler scheduler; //shared by the transfers of a server, null to send as fast as the window allows
+    private BandwidthScheduler.Session pacing; //of the transfer in progress, null if it is not paced
+    private WriteBehindSink.FsyncPolicy fsyncPolicy = WriteBehindSink.FsyncPolicy.NONE;
+    private final TransferMetrics metrics = TransferMetrics.global();
+    private TransferStats stats; //of the transfer in progress, null before the first one
 
     /**
      *This constructor initialises the class variables required
@@ -39,14 +54,28 @@ public class Channel {
      * @param sync if true channel will receive data directly. If false channel will receive data from the blocking queue
      */
     public Channel(DatagramPacket packet, DatagramSocket socket, boolean sync) {
+        this(packet, new SocketTransport(socket), sync);
+    }
+
+    /**
+     *This constructor sends and receives through a given transport, e.g. a NetworkSimulator
+     *
+     * @param packet incoming packet that will generally be passed to one of the below methods
+     * @param transport transport the packets go through
+     * @param sync if true channel will receive data directly. If false channel will receive data from the blocking queue
+     */
+    public Channel(DatagramPacket packet, DatagramTransport transport, boolean sync) {
         this.packet = packet;
-        this.socket = socket;
+        this.transport = transport;
         this.sync = sync;
-
     }
 
     /**
-     * Receives acknowledgements and will timeout after 1 second if no ack has been received.
+     * Receives acknowledgements. If no ack arrives within the retransmission timeout the last
+     * packet is sent again, with the timeout doubling each time, until the retry limit is reached.
+     * An ack of another block is a stale duplicate (e.g. the peer retransmitted its previous ack)
+     * and is ignored, it is counted in the TransferMetrics. Like in receiveWindowAck duplicates
+     * neither extend the wait nor count as round trip samples.
      * Will display an error message if the ack is not received on time or if there is an incorrect opcode.
      * 
      * @param blockNum expected block number of the incoming ack that is checked against the actual block number coming in to ensure they match
@@ -54,31 +83,364 @@ public class Channel {
      */
     public void receiveAck(int blockNum) throws IOException {
 
-        Request request;
+        long deadline = deadline();
+        while (true) {
+            PacketView reply;
+            try {
+                reply = nextPacket(remainingMillis(deadline));
+            } catch (SocketTimeoutException ex) {
+                if (!timer.backoff()) {
+                    throw ex; //retry limit reached, give up on the transfer
+                }
+                retransmit();
+                deadline = deadline();
+                continue;
+            }
 
-        if (sync) {
-            socket.setSoTimeout(TIMEOUT_SECONDS * 1000);
-            socket.receive(packet);
-            request = parser.parseRequest(packet.getData(), packet.getLength());
-        } else {
+            if (reply.isValid() && reply.getOpCode() == 5) { //e.g. error 8, the peer ended the transfer after the OACK
+                metrics.errorReceived(reply.getErrorCode());
+                throw new IllegalStateException("Error received: " + reply.getErrorCode() + " " + reply.getErrorMessage());
+            }
+
+            if (!reply.isValid() || reply.getOpCode() != 4) {
+                throw new IllegalStateException("Unexpected response");
+            }
+
+            if (reply.getBlockNum() == blockNum) {
+                timer.replyReceived(); //only the matching ack is a round trip sample
+                break;
+            }
+            metrics.duplicateAck(); //answering it would send the same packet twice
+            Log.trace("duplicate acknowledgement ignored", reply.getBlockNum(), blockNum);
+        }
+
+        Log.trace("acknowledgement received", blockNum, 1);
+
+    }
+
+    /**
+     * Receives the acknowledgement for a window of data blocks (RFC 7440).
+     * The receiver acknowledges the last block it got in sequence, which may be
+     * any block of the window, and the window is restarted after it.
+     * An ack of the block before the window or of an older one is a stale duplicate, e.g. the ack of a
+     * window that was also retransmitted, and so is a repeated OACK. They are ignored rather than
+     * answered with the window (RFC 1123 section 4.2.3.1): answering them would send every following
+     * window twice (the Sorcerer's Apprentice problem). Duplicates do not extend the wait, a window that
+     * is really lost is sent again when the timeout expires. A timeout is reported as nothing acknowledged
+     * so that the whole window is sent again. An ERROR from the peer ends the transfer with its code and message.
+     *
+     * @param firstBlock block number of the first block in the window
+     * @param count number of blocks that were sent in the window
+     * @return number of blocks of the window that have been acknowledged, 0 if none
+     * @throws IOException if an I/O error occurs or the retry limit is reached
+     */
+    private int receiveWindowAck(int firstBlock, int count) throws IOException {
+
+        long deadline = deadline();
+        while (true) {
+            PacketView reply;
             try {
-                request = requests.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
-            } catch (InterruptedException ex) {
-                throw new IllegalStateException("Did not receive ack on time"); //unexpected messages should not crash server
+                reply = nextPacket(remainingMillis(deadline));
+            } catch (SocketTimeoutException ex) {
+                if (!timer.backoff()) {
+                    throw ex;
+                }
+                countRetransmission();
+                return 0;
+            }
+
+            if (reply.isValid() && reply.getOpCode() == 5) { //e.g. error 3, the receiver ran out of disk space
+                metrics.errorReceived(reply.getErrorCode());
+                throw new IllegalStateException("Error received: " + reply.getErrorCode() + " " + reply.getErrorMessage());
+            }
+            if (reply.isValid() && reply.getOpCode() == 6) { //OACK retransmitted before our first window arrived
+                metrics.duplicateAck();
+                continue;
+            }
+            if (!reply.isValid() || reply.getOpCode() != 4) {
+                throw new IllegalStateException("Unexpected response");
+            }
 
+            int acknowledged = (reply.getBlockNum() - firstBlock + 1) & 0xffff; //wraps the same way block numbers do
+
+            if (acknowledged == 0 || acknowledged > count) {
+                metrics.duplicateAck();
+                Log.trace("duplicate acknowledgement ignored", reply.getBlockNum(), count);
+                continue;
             }
+            timer.replyReceived(); //only a new ack is a round trip sample
+
+            Log.trace("acknowledgement received", reply.getBlockNum(), acknowledged);
+
+            return acknowledged;
         }
+    }
+
+    /**
+     * Waits for the reply to a RRQ or WRQ that carried options.
+     * If the peer replies with an OACK the acknowledged options are applied to this channel.
+     * A peer that does not support options replies with ACK 0 (WRQ) or the first DATA block (RRQ),
+     * in that case the channel falls back to the default options and the DATA block is kept
+     * so that receiveData processes it as usual. An OACK with values the client did not ask for
+     * is answered with error 8 and ends the transfer.
+     *
+     * @return true if an OACK was received and the options were applied
+     * @throws IOException if an I/O error occurs
+     */
+    public boolean receiveOptionAck() throws IOException {
 
-        if (request == null || request.getOpCode() != 4) {
+        PacketView reply = awaitReply();
 
+        if (!reply.isValid()) {
             throw new IllegalStateException("Unexpected response");
+        }
 
-        } else if (request.getBlockNum() != blockNum) {
-            throw new IllegalStateException("Unexpected response");
+        if (reply.getOpCode() == 6) { //OACK
+            try {
+                options.applyAcknowledged(reply.getOptions());
+            } catch (IllegalArgumentException ex) {
+                sendError(8, ex.getMessage()); //RFC 2347, the client refuses the options and ends the transfer
+                throw new IllegalStateException("Option acknowledgement refused: " + ex.getMessage());
+            }
+            applyTimeout();
+            return true;
         }
 
-        System.out.println("acknowledgement received");
+        boolean resume = options.isResume();
+        options = new TransferOptions(); //peer ignored our options
+        options.setResume(resume); //a resumable file is still received into its part file, from the start
+        applyTimeout();
 
+        if (reply.getOpCode() == 4 && reply.getBlockNum() == 0) { //plain WRQ acknowledgement
+            return false;
+        }
+
+        if (reply.getOpCode() == 3) { //plain RRQ, first block of data already here
+            pending = true;
+            return false;
+        }
+
+        if (reply.getOpCode() == 5) {
+            metrics.errorReceived(reply.getErrorCode());
+            throw new IllegalStateException("Request rejected: " + reply.getErrorCode() + " " + reply.getErrorMessage());
+        }
+
+        throw new IllegalStateException("Unexpected response");
+    }
+
+    /**
+     * Sends an option acknowledgement listing the options the server has accepted.
+     *
+     * @param accepted accepted option names and values
+     * @throws IOException if I/O error occurs
+     */
+    public void sendOptionAck(Map<String, String> accepted) throws IOException {
+        send(factory.encodeOACK(sendBuffer(), accepted));
+    }
+
+    /**
+     * Sends the initial RRQ or WRQ. It is kept as the last packet sent so that it is
+     * retransmitted if the server does not reply in time.
+     *
+     * @param request the request packet created by the PacketFactory
+     * @throws IOException if I/O error occurs
+     */
+    public void sendRequest(byte[] request) throws IOException {
+        send(sendBuffer(request.length).put(request).position());
+    }
+
+    /**
+     * Sets the options that apply to the transfer on this channel. When the channel is not in sync mode
+     * its packet ring is created here, sized for the negotiated packet and window size, so the options must
+     * be set before the first packet is handed over by receivePacket.
+     *
+     * @param options negotiated options
+     */
+    public void setOptions(TransferOptions options) {
+        this.options = options;
+        applyTimeout();
+        if (!sync && (packets == null || !packets.isSizedFor(options.getPacketSize(), options.getWindowSize()))) {
+            packets = PacketRing.forTransfer(options.getPacketSize(), options.getWindowSize(), waitStrategy);
+        }
+    }
+
+    //a negotiated timeout option replaces the default initial retransmission timeout
+    private void applyTimeout() {
+        if (options.getTimeout() > 0) {
+            timer.setInitialTimeout(options.getTimeout() * 1000);
+        } else {
+            timer.setInitialTimeout(RetransmissionTimer.DEFAULT_INITIAL_TIMEOUT_MILLIS);
+        }
+    }
+
+    /**
+     * Sets the cache read requests on this channel are served from.
+     *
+     * @param blockCache cache shared with other channels, null to read the file directly
+     */
+    public void setBlockCache(BlockCache blockCache) {
+        this.blockCache = blockCache;
+    }
+
+    /**
+     * Sets the scheduler that paces the DATA packets sent on this channel.
+     *
+     * @param scheduler scheduler shared with other channels, null to send without pacing
+     */
+    public void setScheduler(BandwidthScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Sets when files received on this channel are forced to the disk.
+     *
+     * @param fsyncPolicy the policy for the write-behind sink of receiveData
+     */
+    public void setFsyncPolicy(WriteBehindSink.FsyncPolicy fsyncPolicy) {
+        this.fsyncPolicy = fsyncPolicy;
+    }
+
+    /**
+     * Getter method for the number of retransmissions on this channel.
+     *
+     * @return number of times a packet or window had to be sent again after a timeout
+     */
+    public int getRetransmissions() {
+        return retransmissions;
+    }
+
+    /**
+     * Getter method for the statistics of the last transfer on this channel.
+     *
+     * @return statistics of the transfer started by the last sendFile or receiveData, null before the first one
+     */
+    public TransferStats getTransferStats() {
+        return stats;
+    }
+
+    /**
+     * Getter method for the options of the transfer on this channel.
+     *
+     * @return the options currently in use
+     */
+    public TransferOptions getOptions() {
+        return options;
+    }
+
+    //waits for the reply to the last packet sent, retransmitting it each time the timeout expires
+    private PacketView awaitReply() throws IOException {
+        while (true) {
+            try {
+                PacketView reply = nextPacket(timer.getTimeout());
+                timer.replyReceived();
+                return reply;
+            } catch (SocketTimeoutException ex) {
+                if (!timer.backoff()) {
+                    throw ex; //retry limit reached, give up on the transfer
+                }
+                retransmit();
+            }
+        }
+    }
+
+    //when the reply to the packet just sent is due, duplicates received meanwhile do not move it
+    private long deadline() {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timer.getTimeout());
+    }
+
+    //time left until the deadline, never 0 as that would wait forever
+    private static int remainingMillis(long deadline) {
+        return (int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+    }
+
+    private void retransmit() throws IOException {
+        countRetransmission();
+        send(lastLength); //sendBuf still holds the packet, nothing else is sent while waiting for its reply
+    }
+
+    private void countRetransmission() {
+        retransmissions++;
+        if (stats != null) {
+            stats.addRetransmission();
+        }
+    }
+
+    //ends the statistics and drops packets still queued for the transfer, e.g. duplicates of the last ack
+    private void endTransfer(boolean complete) {
+        metrics.transferEnded(stats, complete);
+        dropQueued();
+    }
+
+    private void dropQueued() {
+        if (packets != null) {
+            metrics.queued(-packets.clear());
+        }
+    }
+
+    //address of the other side for the statistics, the packet carries it once the first packet has been sent or received
+    private String peer() {
+        return packet.getAddress() + ":" + packet.getPort();
+    }
+
+    //takes the next packet either straight from the socket (sync) or from the packet ring, throws SocketTimeoutException in both modes
+    //the view returned is only valid until the next call, in the ring the packet stays in its slot until then
+    private PacketView nextPacket(int timeoutMillis) throws IOException {
+
+        if (pending) {
+            pending = false;
+            return view; //still wrapped around the packet read early
+        }
+
+        if (sync) {
+            int size = Math.max(options.getPacketSize(), 516); //never smaller than a default packet so OACK and ERROR packets fit with tiny block sizes
+            if (recvBuf.length != size) {
+                recvBuf = new byte[size]; //block size changed by negotiation
+            }
+            packet.setData(recvBuf); //emptying out packet before each receive
+
+            transport.receive(packet, timeoutMillis);
+            return view.wrap(recvBuf, packet.getLength());
+        }
+
+        if (packets == null) {
+            throw new IllegalStateException("Options not set, the channel has no packet ring");
+        }
+
+        boolean received;
+        try {
+            received = packets.next(TimeUnit.MILLISECONDS.toNanos(timeoutMillis)); // getting packet from the ring & times out after the retransmission timeout
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return view.wrap(recvBuf, 0); //reported as an invalid packet, unexpected messages should not crash server
+        }
+        if (!received) {
+            throw new SocketTimeoutException("Receive timed out");
+        }
+        metrics.queued(-1);
+        return view.wrap(packets.array(), packets.length());
+    }
+
+    //every packet goes out of sendBuf through here so the last one can be retransmitted and the round trip timed
+    private void send(int length) throws IOException {
+        packet.setData(sendBuf.array(), 0, length);
+
+        transport.send(packet);
+
+        lastLength = length;
+        timer.packetSent();
+    }
+
+    //clears sendBuf for the next packet, big enough for a full data packet or a control packet
+    private ByteBuffer sendBuffer() {
+        return sendBuffer(Math.max(options.getPacketSize(), 516));
+    }
+
+    private ByteBuffer sendBuffer(int capacity) {
+        if (sendBuf.capacity() < capacity) {
+            sendBuf = ByteBuffer.allocate(capacity); //block size grew through negotiation
+        }
+        sendBuf.clear();
+        return sendBuf;
     }
 
     /**
@@ -88,9 +450,7 @@ public class Channel {
      * @throws IOException if I/O error occurs
      */
     public void sendAck(int blockNum) throws IOException {
-        packet.setData(factory.createAck(blockNum));
-
-        socket.send(packet);
+        send(factory.encodeAck(sendBuffer(), blockNum));
     }
 
     /**
@@ -101,12 +461,15 @@ public class Channel {
      */
     public void sendError(int errorCode, String errorMessage) {
 
-        packet.setData(factory.createERROR((byte) errorCode, errorMessage));
+        metrics.errorSent(errorCode);
+
+        int length = factory.encodeError(sendBuffer(), errorCode, errorMessage); //encoded first, sendBuffer may replace sendBuf
+        packet.setData(sendBuf.array(), 0, length);
 
         try {
-            socket.send(packet);
+            transport.send(packet);
         } catch (IOException ex) {
-            System.out.println("Could not send error!");
+            Log.warn("Could not send error!");
         }
 
     }
@@ -122,9 +485,9 @@ public class Channel {
      */
     public void sendData(int blockNum, byte[] buf, int size) throws IOException {
 
-        packet.setData(factory.createData(blockNum, buf, size));
-
-        socket.send(packet);
+        pace(size);
+        send(factory.encodeData(sendBuffer(), blockNum, buf, size));
+        metrics.bytesSent(stats, size);
 
     }
 
@@ -132,95 +495,285 @@ public class Channel {
      * Receives incoming data from a specified file name.
      * Using file output stream to read data from files. If sync is true the channel will receive data directly.
      * If sync if false the channel will use multiple threads. Sync is only true on the client program. 
-     * 
+     * Only the last block of each window is acknowledged (RFC 7440). A block that arrives out of
+     * sequence is dropped and the last block received in sequence is acknowledged instead.
+     * A duplicate of a block already received is never written again, only the duplicate of the
+     * last acknowledged block is acknowledged again since its ack must have been lost.
+     * Blocks are written by a WriteBehindSink, so a block is acknowledged once it is in memory.
+     * The file only appears under its name when the last block has been written, a failed
+     * transfer leaves no file behind. After the final ack the channel stays for the dally timeout and
+     * acknowledges a retransmission of the last block again, in case the ack was lost. With the resume option the blocks are appended to the part file
+     * after the bytes it already holds, and a failed transfer leaves the part file to be resumed.
      * 
      * @param fileName file name of the file from which data is to be received
      */
     public void receiveData(String fileName) {
-        try (FileOutputStream ostream = new FileOutputStream(fileName)) {
+        receive(fileName, null);
+    }
 
-            while (true) {
+    /**
+     * Receives the range of a file that was negotiated with the range option, as part of a parallel download.
+     * The blocks are written from the offset of the range on into a file shared with the other ranges,
+     * so nothing is renamed and the file stays open when the range is complete.
+     * Otherwise blocks are received and acknowledged as in receiveData.
+     *
+     * @param file file shared by every range of the download, already as long as the whole file
+     * @param fileName name of the file for the statistics
+     */
+    public void receiveRange(FileChannel file, String fileName) {
+        receive(fileName, file);
+    }
 
-                Request request;
+    private WriteBehindSink openSink(String fileName, FileChannel shared) throws IOException {
+        if (shared != null) {
+            return new WriteBehindSink(shared, options.getRangeOffset(), options.getBlockSize(), fsyncPolicy);
+        }
+        if (options.isResume()) {
+            return new WriteBehindSink(fileName, options.getBlockSize(), fsyncPolicy, options.getResumeOffset());
+        }
+        return new WriteBehindSink(fileName, options.getBlockSize(), fsyncPolicy);
+    }
 
-                if (sync) {
-                    packet.setData(new byte[516]); //emptying out packet after each iteration
+    //receives into a new file, or into a range of a shared file if one is given
+    private void receive(String fileName, FileChannel shared) {
+        stats = metrics.transferStarted(fileName, peer(), false);
+        boolean complete = false;
+        int finalBlock = 0; //block number of the last block once it has been acknowledged
+        long opening = System.nanoTime();
+        try (WriteBehindSink sink = openSink(fileName, shared)) {
+            metrics.recordFileOpen(System.nanoTime() - opening);
+
+            int blockSize = options.getBlockSize();
+            int windowSize = options.getWindowSize();
+            int expectedBlock = 1;
+            int sinceAck = 0; //blocks received in sequence since the last acknowledgement was sent
+            boolean gapAcknowledged = false;
 
-                    socket.setSoTimeout(TIMEOUT_SECONDS * 1000);
-                    socket.receive(packet); //receiving the incoming data
+            while (true) {
 
-                    request = parser.parseRequest(packet.getData(), packet.getLength());
-                } else {
-                    try {
-                        request = requests.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS); // getting request from the queue & times out after 1 second
-                    } catch (InterruptedException ex) {
-                        System.out.println("Did not receive packet on time!");
-                        break; //abort receiving data
+                PacketView received;
+                try {
+                    received = nextPacket(timer.getTimeout());
+                } catch (SocketTimeoutException ex) {
+                    if (!timer.backoff()) {
+                        Log.warn("Transfer timed out, retransmissions: ", retransmissions);
+                        sendError(0, "Transfer timed out");
+                        break; //abort receiving
                     }
+                    if (sinceAck == 0) {
+                        retransmit(); //request, OACK or ack of the last window was lost, or the data after it
+                    } else {
+                        countRetransmission();
+                        sendAck((expectedBlock - 1) & 0xffff); //rest of the window was lost, tell the sender where to restart
+                        sinceAck = 0;
+                    }
+                    continue;
                 }
+                timer.replyReceived();
                 
-                if(request == null){
-                    System.err.print("Invalid packet - packet has null in it - 1st print statement");
+                if(!received.isValid()){
+                    Log.warn("Invalid packet - packet has null in it");
                     sendError(0, "Invalid packet - packet has null in it");
                     break; //abort receiving
                 }
 
-                if (request.getOpCode() == 3) { //data opcode
-                    byte[] fileData = request.getData();
+                if (received.getOpCode() == 3) { //data opcode
+
+                    int behind = (expectedBlock - received.getBlockNum()) & 0xffff;
+                    if (behind > 0 && behind <= windowSize) {
+                        //already written, a window retransmitted because its ack was lost or late
+                        metrics.duplicateData();
+                        if (behind == 1 && sinceAck == 0) {
+                            sendAck(received.getBlockNum()); //last block acknowledged, the ack itself was lost
+                        }
+                        continue;
+                    }
+
+                    if (behind != 0) {
+                        //out of sequence, acknowledge the last good block once so the sender restarts the window from there
+                        if (!gapAcknowledged) {
+                            sendAck((expectedBlock - 1) & 0xffff);
+                            gapAcknowledged = true;
+                        }
+                        sinceAck = 0;
+                        continue;
+                    }
+
+                    int size = received.getPayloadLength();
+
+                    sink.write(received.array(), received.getPayloadOffset(), size); //copied into the ring, written by the background writer
+                    metrics.bytesReceived(stats, size);
+                    if (expectedBlock == 1) {
+                        stats.firstBlock();
+                    }
+
+                    boolean lastBlock = size < blockSize; //a block shorter than the negotiated size (512 by default) terminates the transfer
+                    gapAcknowledged = false;
+                    sinceAck++;
 
-                    ostream.write(fileData);
+                    if (lastBlock) {
+                        sink.commit(); //the file is complete under its own name before the final ack goes out
+                    }
+
+                    if (lastBlock || sinceAck == windowSize) { //only the last block of each window is acknowledged
+                        sendAck(expectedBlock);
+                        sinceAck = 0;
+                    }
 
-                    sendAck(request.getBlockNum());
+                    expectedBlock = (expectedBlock + 1) & 0xffff;
 
-                    if (fileData.length < 512) { //512 = termination since data is 512 plus 5 bytes for other info
+                    if (lastBlock) {
+                        finalBlock = (expectedBlock - 1) & 0xffff;
+                        complete = true;
                         break;
                     }
-                } else if(request.getOpCode() == 5){
-                    System.out.println(request.getErrorCode() + request.getErrorMessage());
+                } else if (received.getOpCode() == 6 && expectedBlock == 1) {
+                    metrics.duplicateAck(); //the peer sent its OACK again, ack 0 was lost
+                    sendAck(0);
+                } else if(received.getOpCode() == 5){
+                    metrics.errorReceived(received.getErrorCode());
+                    Log.info("Error received: ", received.getErrorCode(), received.getErrorMessage());
+                    if (received.getErrorCode() == 8 && expectedBlock == 1) {
+                        sink.discard(); //the sender refused the options before any data, e.g. a resume point that does not match its file
+                    }
                     break;
                     
                 } else{
                     
-                    System.err.print("Unexpected opcode" + request.getOpCode());
+                    Log.warn("Unexpected opcode ", received.getOpCode());
                     break; //stop processing file sending
                 }
                 
             }
         } catch (IOException e) { 
-            e.printStackTrace();
+            sendError(3, "Could not write file"); //3 = disk full or allocation exceeded
+            if (Log.isEnabled(Log.Level.ERROR)) {
+                Log.error("Could not write " + fileName, e);
+            }
+        } finally {
+            metrics.transferEnded(stats, complete);
+            if (complete) {
+                dally(finalBlock);
+            }
+            dropQueued();
+        }
+    }
+
+    //stays after the final ack and sends it again when the last window is retransmitted, otherwise a lost final
+    //ack would leave the sender retrying until it gives up on a file that has been received (RFC 1350 section 6)
+    private void dally(int finalBlock) {
+        int windowSize = options.getWindowSize();
+        int answered = 0;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timer.getDallyTimeout());
+        try {
+            while (answered < RetransmissionTimer.DEFAULT_MAX_RETRIES) {
+                PacketView received = nextPacket(remainingMillis(deadline));
+                int behind = received.isValid() && received.getOpCode() == 3 ? (finalBlock - received.getBlockNum()) & 0xffff : windowSize;
+                if (behind >= windowSize) {
+                    return; //the sender has moved on
+                }
+                metrics.duplicateData();
+                if (behind == 0) { //like in the transfer, a retransmitted window is answered once, at its last block
+                    sendAck(finalBlock);
+                    answered++;
+                    deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timer.getDallyTimeout()); //the next retransmission may follow a backed off timeout
+                }
+            }
+        } catch (SocketTimeoutException ex) {
+            //the final ack arrived, nothing was retransmitted
+        } catch (IOException ex) {
+            Log.warn("Could not acknowledge the last block again: ", ex.getMessage());
         }
     }
 
     //send file is reading from the file system & sending content in chunks
 
     /**
-     * Sends files in data chunks of 512 bytes.
+     * Sends files in data chunks of the negotiated block size (512 bytes unless blksize was agreed).
+     * Blocks are sent a window at a time (RFC 7440), with the default window size of 1 this is
+     * the plain lock-step exchange of RFC 1350. Blocks of the window are kept until they are
+     * acknowledged so the window can be restarted from the first block the receiver is missing.
+     * The blocks are read by a ReadAhead in the background, so the next blocks come off the disk while
+     * the window before them is on the network, as far ahead as the read time against the round trip needs.
      * If there is a file not found error this is caught in a file not found exception and handled by sending
      * and error message with the correct opcode.
+     * When a block cache is set the file is sent from the cache, otherwise when the transport can send
+     * gathering writes (a connected DatagramChannel) it is sent from a memory mapping, see sendBlocks.
+     * If a range was negotiated only that part of the file is sent, always from a memory mapping of the range.
+     * When a BandwidthScheduler is set every DATA packet, retransmissions included, is paced by it.
+     * The transfer is counted in the TransferMetrics.
      *
      * @param fileName name of file being sent
      */
-    public void sendFile(String fileName) {  //reads content of file in chuncks of 512 bytes
+    public void sendFile(String fileName) {
+        stats = metrics.transferStarted(fileName, peer(), true);
+        pacing = scheduler != null ? scheduler.open(packet.getAddress()) : null;
+        boolean complete = false;
+        try {
+            complete = blockCache != null || transport.canGather() || options.hasRange() ? sendBlocks(fileName) : sendStream(fileName);
+        } finally {
+            if (pacing != null) {
+                pacing.close();
+                pacing = null;
+            }
+            endTransfer(complete);
+        }
+    }
+
+    //reads content of file in chuncks of the block size through the read-ahead ring, returns true once the last block is acknowledged
+    private boolean sendStream(String fileName) {
+
+        long opening = System.nanoTime();
+        int blockSize = options.getBlockSize();
+        int windowSize = options.getWindowSize();
+        try (ReadAhead blocks = new ReadAhead(new FileInputStream(fileName), blockSize, windowSize, () -> (long) (timer.getSmoothedRtt() * 1_000_000))) {
+            metrics.recordFileOpen(System.nanoTime() - opening);
+            ByteBuffer[] window = new ByteBuffer[windowSize]; //blocks taken from the read-ahead ring and not acknowledged yet
+            int first = 0; //slot in the window of the oldest unacknowledged block
+            int buffered = 0; //blocks read from the file but not acknowledged yet
+            int blockNo = 1; //block number of the oldest unacknowledged block
+            boolean endOfFile = false;
 
-        try (InputStream inputStream = new FileInputStream(fileName)) {
-            byte[] buffer = new byte[512];
-            int blockNo = 1;
             while (true) {
-                int size = inputStream.read(buffer);
-                if (size == -1) { //condition if there's no data and end of stream has been reached
+                while (buffered < windowSize && !endOfFile) {
+                    int slot = (first + buffered) % windowSize;
+                    window[slot] = blocks.take(); //usually read already, while the previous window was in flight
+                    endOfFile = window[slot].limit() < blockSize; //a short (possibly empty) block ends the transfer
+                    buffered++;
+                }
+
+                if (buffered == 0) { //condition if there's no data and end of stream has been reached
                     break;
                 }
 
-                sendData(blockNo, buffer, size); //send to client side
+                for (int i = 0; i < buffered; i++) {
+                    int slot = (first + i) % windowSize;
+                    sendData((blockNo + i) & 0xffff, window[slot].array(), window[slot].limit()); //send to client side
+                }
 
-                receiveAck(blockNo);
+                int acknowledged = receiveWindowAck(blockNo, buffered);
+                if (acknowledged > 0) {
+                    stats.firstBlock();
+                }
 
-                blockNo = (blockNo + 1) & 0xffff; // Allows block num to wrap around to 0 when max capacity reached in bytes. Bitwise operation used here as simpler to implement than modulo
+                for (int i = 0; i < acknowledged; i++) {
+                    blocks.release(window[(first + i) % windowSize]); //no longer needed for retransmission, the reader fills it again
+                }
+                first = (first + acknowledged) % windowSize;
+                buffered -= acknowledged;
+                blockNo = (blockNo + acknowledged) & 0xffff; // Allows block num to wrap around to 0 when max capacity reached in bytes. Bitwise operation used here as simpler to implement than modulo
 
             }
+            return true;
         } catch (FileNotFoundException e) {
 
             sendError(1, e.getMessage());
+            return false;
+
+        } catch (SocketTimeoutException e) {
+
+            sendError(0, "Transfer timed out");
+            throw new IllegalStateException("Transfer timed out after " + retransmissions + " retransmissions");
 
         } catch (IOException e) {
             throw new IllegalStateException("Illegal state");
@@ -229,15 +782,118 @@ public class Channel {
     }
 
     /**
-     * Receives requests.
-     * Stores incoming requests in the blocking queue.
+     * Sends a file from a BlockSource, the shared block cache if one is set or else a memory mapping.
+     * On a connected DatagramChannel each DATA packet is a gathering write of a reused 4 byte header
+     * and the block, so no block is ever copied onto the heap. Otherwise the block is copied into the send buffer.
+     * Blocks no longer have to be kept for retransmission, they are simply taken from the source again.
+     * The window and retransmission rules are the same as in sendFile.
+     *
+     * @param fileName name of file being sent
+     * @return true once the last block is acknowledged, false if the file could not be opened
+     */
+    private boolean sendBlocks(String fileName) {
+
+        long opening = System.nanoTime();
+        try (BlockSource source = openSource(fileName)) {
+            metrics.recordFileOpen(System.nanoTime() - opening);
+            long blockCount = source.getBlockCount();
+            long firstIndex = 0; //index of the oldest unacknowledged block, counted from 0 without wrapping
+            int blockNo = 1;
+
+            while (firstIndex < blockCount) {
+                int count = (int) Math.min(options.getWindowSize(), blockCount - firstIndex);
+
+                for (int i = 0; i < count; i++) {
+                    sendBlock((blockNo + i) & 0xffff, source.block(firstIndex + i));
+                }
+
+                int acknowledged = receiveWindowAck(blockNo, count);
+                if (acknowledged > 0) {
+                    stats.firstBlock();
+                }
+
+                firstIndex += acknowledged;
+                blockNo = (blockNo + acknowledged) & 0xffff;
+            }
+            return true;
+        } catch (FileNotFoundException e) {
+
+            sendError(1, e.getMessage());
+            return false;
+
+        } catch (SocketTimeoutException e) {
+
+            sendError(0, "Transfer timed out");
+            throw new IllegalStateException("Transfer timed out after " + retransmissions + " retransmissions");
+
+        } catch (IOException e) {
+            throw new IllegalStateException("Illegal state");
+        }
+    }
+
+    //the cache holds whole files by block, a range is mapped on its own
+    private BlockSource openSource(String fileName) throws IOException {
+        if (options.hasRange()) {
+            return new MappedBlockSource(fileName, options.getBlockSize(), options.getRangeOffset(), options.getRangeLength());
+        }
+        return blockCache != null ? blockCache.open(fileName, options.getBlockSize()) : new MappedBlockSource(fileName, options.getBlockSize());
+    }
+
+    private void sendBlock(int blockNum, ByteBuffer block) throws IOException {
+        pace(block.remaining());
+        metrics.bytesSent(stats, block.remaining());
+        if (!transport.canGather()) {
+            send(factory.encodeData(sendBuffer(), blockNum, block));
+            return;
+        }
+
+        header.clear();
+        factory.encodeDataHeader(header, blockNum);
+        header.flip();
+
+        gather[1] = block;
+        transport.send(gather); //one datagram made of both buffers
+
+        timer.packetSent();
+    }
+
+    //waits until the scheduler lets the DATA packet go, the header counts too
+    private void pace(int size) {
+        if (pacing != null) {
+            pacing.acquire(size + 4);
+        }
+    }
+
+    /**
+     * Receives packets for a channel that is not in sync mode.
+     * The packet is copied into a slot of the packet ring, so the caller can reuse its buffer.
+     * Only one thread may hand packets to a channel. If the transfer has fallen a whole ring behind
+     * the packet is dropped, as the network would, and the peer retransmits it.
      * 
-     * @param request request being received
+     * @param buffer buffer holding the packet from index 0
+     * @param length length of the packet
      */
-    public void receiveRequest(Request request) {
+    public void receivePacket(byte[] buffer, int length) {
 
-        requests.add(request);
+        if (packets != null && packets.offer(buffer, length)) {
+            metrics.queued(1);
+        } else {
+            Log.trace("Packet ring full, dropped packet, port", packet.getPort(), length); //the transfer is a ring behind (or has no ring yet), sampled like other stray packets
+        }
+
+    }
 
+    /**
+     * Sets how the transfer waits for packets handed over by receivePacket.
+     * Set it before the options to create the packet ring with it.
+     *
+     * @param waitStrategy busy spin, yield or park
+     */
+    public void setWaitStrategy(PacketRing.WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+        if (packets != null) {
+            packets.setWaitStrategy(waitStrategy);
+        }
     }
 
 }
@@ -0,0 +1,70 @@
+package common;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.nio.ByteBuffer;
+
+/**
+ * The DatagramTransport interface is what a Channel sends and receives datagrams through.
+ * SocketTransport passes them straight to a DatagramSocket, NetworkSimulator wraps a transport
+ * to lose, duplicate, delay and reorder them so transfers can be tested under a bad network
+ * without leaving the process.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public interface DatagramTransport {
+
+    /**
+     * Creates the transport of a channel from the socket the channel would otherwise use.
+     */
+    interface Factory {
+
+        /**
+         * Creates a transport on top of a socket.
+         *
+         * @param socket socket of the channel
+         * @return transport to be used by the channel
+         */
+        DatagramTransport open(DatagramSocket socket);
+    }
+
+    /**
+     * Factory for plain socket transports, the default of servers and clients.
+     */
+    Factory DIRECT = SocketTransport::new;
+
+    /**
+     * Sends a datagram to the address and port set in the packet.
+     *
+     * @param packet the datagram, its data may be reused as soon as this returns
+     * @throws IOException if an I/O error occurs
+     */
+    void send(DatagramPacket packet) throws IOException;
+
+    /**
+     * Receives the next datagram into the packet.
+     *
+     * @param packet packet whose buffer receives the datagram
+     * @param timeoutMillis how long to wait
+     * @throws IOException if an I/O error occurs, SocketTimeoutException if nothing arrived in time
+     */
+    void receive(DatagramPacket packet, int timeoutMillis) throws IOException;
+
+    /**
+     * Checks whether gathering sends are supported, only on a connected DatagramChannel.
+     *
+     * @return true if send(ByteBuffer[]) may be called
+     */
+    boolean canGather();
+
+    /**
+     * Sends one datagram made of several buffers to the connected peer.
+     *
+     * @param buffers the parts of the datagram, in order
+     * @throws IOException if an I/O error occurs
+     */
+    void send(ByteBuffer[] buffers) throws IOException;
+
+}
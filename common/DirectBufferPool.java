@@ -0,0 +1,101 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The DirectBufferPool class keeps the direct buffers of finished transfers so the next transfer of the
+ * same block size reuses them. A direct buffer lives outside the heap and is only freed once the garbage
+ * collector finds it, which may be long after its transfer ended, so allocating a new ring for every
+ * transfer lets the native memory grow with the number of transfers rather than with the ones running.
+ * Buffers are pooled by their exact size, and each size class holds at most MAX_POOLED_BYTES_PER_SIZE, so a
+ * burst of transfers with one block size cannot take the room of the others. Most transfers use one of a
+ * few block sizes, a size seen after MAX_SIZE_CLASSES others is not pooled, and a buffer given back to a
+ * full size class is left to the garbage collector.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public final class DirectBufferPool {
+
+    public static final long MAX_POOLED_BYTES_PER_SIZE = 4L * 1024 * 1024;
+    public static final int MAX_SIZE_CLASSES = 32;
+
+    private static final ConcurrentHashMap<Integer, SizeClass> CLASSES = new ConcurrentHashMap<>();
+
+    private DirectBufferPool() {
+    }
+
+    /**
+     * Takes a direct buffer from the pool, or allocates one if none of that size is pooled.
+     *
+     * @param size capacity of the buffer
+     * @return cleared direct buffer of the given capacity
+     */
+    public static ByteBuffer acquire(int size) {
+        SizeClass pooled = CLASSES.get(size);
+        ByteBuffer buffer = pooled != null ? pooled.free.poll() : null;
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(size);
+        }
+        pooled.bytes.addAndGet(-size);
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back to the pool once no transfer uses it.
+     *
+     * @param buffer direct buffer returned by acquire
+     */
+    public static void release(ByteBuffer buffer) {
+        int size = buffer.capacity();
+        SizeClass pooled = CLASSES.get(size);
+        if (pooled == null) {
+            if (CLASSES.size() >= MAX_SIZE_CLASSES) {
+                return; //an unusual block size, dropped
+            }
+            pooled = CLASSES.computeIfAbsent(size, key -> new SizeClass());
+        }
+        if (pooled.bytes.addAndGet(size) > MAX_POOLED_BYTES_PER_SIZE) {
+            pooled.bytes.addAndGet(-size); //size class full, dropped
+            return;
+        }
+        pooled.free.add(buffer);
+    }
+
+    /**
+     * Getter method for the memory held by the pool.
+     *
+     * @return bytes of the buffers waiting in the pool
+     */
+    public static long getPooledBytes() {
+        long bytes = 0;
+        for (SizeClass pooled : CLASSES.values()) {
+            bytes += pooled.bytes.get();
+        }
+        return bytes;
+    }
+
+    /**
+     * Getter method for the memory held by one size class of the pool.
+     *
+     * @param size capacity of the buffers
+     * @return bytes of the buffers of that capacity waiting in the pool
+     */
+    public static long getPooledBytes(int size) {
+        SizeClass pooled = CLASSES.get(size);
+        return pooled != null ? pooled.bytes.get() : 0;
+    }
+
+    //the free buffers of one capacity and the bytes they hold, against the budget of that size alone
+    private static final class SizeClass {
+
+        private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+        private final AtomicLong bytes = new AtomicLong();
+    }
+
+}
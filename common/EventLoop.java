@@ -0,0 +1,307 @@
+package common;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The EventLoop class runs many transfers on one thread. Each transfer's channel is
+ * registered with the loop's Selector, and the loop keeps a queue of retransmission
+ * deadlines so that the select call wakes up for whichever comes first, a packet or a timeout.
+ * Every transfer has one Deadline entry, attached to its selection key, that is only queued again
+ * when the transfer's deadline moves earlier or when the queued time is reached; a deadline pushed
+ * later by a packet is picked up when the entry expires, so the packets themselves never touch the queue.
+ * Transfers are handed over from other threads through a concurrent queue, and so is the work a transfer
+ * hands to another thread, e.g. opening a file, which goes on on the loop thread through execute.
+ * The server runs its Transfers on event loops, the AsyncTFTPClient its ClientTransfers.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public class EventLoop implements Runnable {
+
+    private final Selector selector;
+    private final Queue<Handler> incoming = new ConcurrentLinkedQueue<>(); //transfers waiting to be registered by the loop thread
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>(); //work of other threads to be completed on the loop thread
+    private final PriorityQueue<Deadline> deadlines = new PriorityQueue<>(); //earliest deadline first, at most one entry per transfer
+    private volatile int active;
+    private volatile boolean running = true;
+
+    /**
+     * The Handler interface is a transfer driven by an event loop. Every method is called on the loop thread.
+     */
+    public interface Handler {
+
+        /**
+         * Getter method for the channel the loop selects on, non-blocking.
+         *
+         * @return the transfer's DatagramChannel
+         */
+        DatagramChannel getChannel();
+
+        /**
+         * Starts the transfer once its channel is registered, usually by sending its first packet.
+         */
+        void start();
+
+        /**
+         * Called when the channel is readable, reads every datagram waiting on it.
+         */
+        void onReadable();
+
+        /**
+         * Called when the deadline has passed without the transfer moving on.
+         */
+        void onTimeout();
+
+        /**
+         * Called when the loop stops before the transfer is done, the transfer must end itself.
+         */
+        void abort();
+
+        /**
+         * Checks whether the transfer has finished, successfully or not.
+         *
+         * @return true once the transfer is over and its channel can be closed
+         */
+        boolean isDone();
+
+        /**
+         * Getter method for the deadline of the retransmission timer.
+         *
+         * @return System.nanoTime() value at which onTimeout should be called
+         */
+        long getDeadline();
+    }
+
+    /**
+     * This constructor opens the selector of the loop
+     *
+     * @throws IOException if the selector cannot be opened
+     */
+    public EventLoop() throws IOException {
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Hands a new transfer to this loop. Safe to call from any thread, the transfer
+     * is started on the loop thread the next time it wakes up.
+     *
+     * @param transfer transfer to be run by this loop
+     */
+    public void register(Handler transfer) {
+        incoming.add(transfer);
+        TransferMetrics.global().queued(1);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs a task of a transfer on the loop thread, e.g. to carry on once a file opened on another thread
+     * is ready. Safe to call from any thread, the transfer's deadline is scheduled again after the task,
+     * and the transfer is closed if the task finished it. Tasks still queued when the loop stops are run
+     * after the transfers have been aborted, so they can release what they hold.
+     *
+     * @param transfer transfer the task belongs to
+     * @param task code to run on the loop thread
+     */
+    public void execute(Handler transfer, Runnable task) {
+        tasks.add(() -> {
+            task.run();
+            SelectionKey key = transfer.getChannel().keyFor(selector);
+            if (key != null && key.isValid()) {
+                schedule((Deadline) key.attachment());
+            }
+        });
+        selector.wakeup();
+    }
+
+    /**
+     * Getter method for the number of transfers on this loop.
+     *
+     * @return number of transfers registered and not finished yet
+     */
+    public int getActive() {
+        return active;
+    }
+
+    /**
+     * Stops the loop, transfers still running are aborted and their channels closed by the loop thread.
+     */
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the loop: waits for packets or the next deadline, then dispatches the events.
+     */
+    @Override
+    public void run() {
+        while (running && !Thread.currentThread().isInterrupted()) {
+            try {
+                selector.select(millisUntilNextDeadline());
+            } catch (IOException ex) {
+                Log.warn("Could not select");
+                continue;
+            }
+
+            registerIncoming();
+            runTasks();
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                Deadline deadline = (Deadline) key.attachment();
+                deadline.transfer.onReadable();
+                schedule(deadline);
+            }
+
+            expireDeadlines();
+        }
+        abortAll();
+    }
+
+    //ends the transfers left when the loop stops, including those handed over but never started
+    private void abortAll() {
+        Handler waiting;
+        while ((waiting = incoming.poll()) != null) {
+            TransferMetrics.global().queued(-1);
+            waiting.abort();
+            try {
+                waiting.getChannel().close();
+            } catch (IOException ex) {
+                Log.warn("Could not close channel");
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            Handler transfer = ((Deadline) key.attachment()).transfer;
+            if (!transfer.isDone()) {
+                transfer.abort();
+            }
+            close(transfer);
+        }
+        runTasks();
+        try {
+            selector.close();
+        } catch (IOException ex) {
+            Log.warn("Could not close selector");
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void registerIncoming() {
+        Handler transfer;
+        while ((transfer = incoming.poll()) != null) {
+            TransferMetrics.global().queued(-1);
+            Deadline deadline = new Deadline(transfer);
+            try {
+                transfer.getChannel().register(selector, SelectionKey.OP_READ, deadline);
+            } catch (ClosedChannelException ex) {
+                continue;
+            }
+            active++;
+            transfer.start();
+            schedule(deadline);
+        }
+    }
+
+    private void expireDeadlines() {
+        long now = System.nanoTime();
+
+        while (!deadlines.isEmpty() && deadlines.peek().time - now <= 0) {
+            Deadline deadline = deadlines.poll();
+            deadline.queued = false;
+            Handler transfer = deadline.transfer;
+
+            if (transfer.isDone()) {
+                continue; //closed when it finished, the entry is simply dropped
+            }
+            long due = transfer.getDeadline();
+            if (due - now > 0) {
+                deadline.queue(due); //moved later by packets since it was queued, re-keyed once here
+                deadlines.add(deadline);
+                continue;
+            }
+
+            transfer.onTimeout();
+            schedule(deadline);
+        }
+    }
+
+    //queues the transfer's deadline unless its entry is queued for an earlier or the same time, or closes it if it has finished
+    private void schedule(Deadline deadline) {
+        Handler transfer = deadline.transfer;
+        if (transfer.isDone()) {
+            close(transfer);
+            return;
+        }
+        long due = transfer.getDeadline();
+        if (!deadline.queued) {
+            deadline.queue(due);
+            deadlines.add(deadline);
+        } else if (due - deadline.time < 0) {
+            deadlines.remove(deadline); //the deadline came earlier, e.g. a shorter timeout after a round trip sample
+            deadline.queue(due);
+            deadlines.add(deadline);
+        }
+    }
+
+    private void close(Handler transfer) {
+        SelectionKey key = transfer.getChannel().keyFor(selector);
+        if (key == null || !key.isValid()) {
+            return; //already closed
+        }
+        key.cancel();
+        active--;
+        try {
+            transfer.getChannel().close();
+        } catch (IOException ex) {
+            Log.warn("Could not close channel");
+        }
+    }
+
+    private long millisUntilNextDeadline() {
+        if (deadlines.isEmpty()) {
+            return 0; //0 = block until a packet arrives or register is called
+        }
+        long millis = (deadlines.peek().time - System.nanoTime()) / 1_000_000;
+        return Math.max(millis, 1);
+    }
+
+    //the retransmission deadline of one transfer, reused for its whole life, its time only changes while it is out of the queue
+    private static class Deadline implements Comparable<Deadline> {
+
+        private final Handler transfer;
+        private long time; //when the entry expires, may be earlier than the transfer's deadline which is checked then
+        private boolean queued;
+
+        Deadline(Handler transfer) {
+            this.transfer = transfer;
+        }
+
+        void queue(long time) {
+            this.time = time;
+            this.queued = true;
+        }
+
+        @Override
+        public int compareTo(Deadline other) {
+            return Long.compare(time, other.time);
+        }
+    }
+
+}
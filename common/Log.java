@@ -0,0 +1,357 @@
+package common;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The Log class is the logging facade of the server and the client. Logging a message only
+ * stores references and numbers in a slot of a preallocated ring, one background thread turns
+ * the slots into lines and writes them to the console, so no transfer thread ever waits for
+ * the console lock. When the ring is full new events are dropped and counted instead of blocking.
+ * Events below the level set with setLevel (or the tftp.log.level system property, INFO by default)
+ * are filtered out before anything is stored. Numbers have overloads of their own so a caller never
+ * boxes or concatenates before that check, a message built from several strings is guarded with isEnabled.
+ * Per-packet events use trace, which is a single field
+ * comparison when TRACE is off and otherwise keeps one event in tftp.log.sample (default 100),
+ * with at most tftp.log.rate (default 100) per second.
+ * Every transfer ends with one summary line: file, peer, direction, bytes, duration, rate, retries and result.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public final class Log {
+
+    /**
+     * Levels in increasing order of importance.
+     */
+    public enum Level {
+        /** per-packet events, sampled */
+        TRACE,
+        DEBUG,
+        INFO,
+        WARN,
+        ERROR,
+        /** nothing is logged */
+        OFF
+    }
+
+    private static final int NONE = 0; //an event without numbers
+    private static final int LEADING = 1; //one number right after the message, before the detail
+    private static final int PAIR = 2; //two numbers after everything else, as trace writes them
+    private static final int CAPACITY = 8192; //power of two, slots of the ring
+    private static final int MASK = CAPACITY - 1;
+    private static final Slot[] RING = new Slot[CAPACITY];
+    private static final AtomicLong TAIL = new AtomicLong(); //next sequence to be claimed by a producer
+    private static volatile long head; //next sequence to be written by the writer thread
+    private static final LongAdder DROPPED = new LongAdder();
+    private static final Object DRAIN_LOCK = new Object(); //the writer thread and the shutdown hook never drain at once
+
+    private static final int SAMPLE_EVERY = Math.max(1, Integer.getInteger("tftp.log.sample", 100));
+    private static final int MAX_TRACE_PER_SECOND = Integer.getInteger("tftp.log.rate", 100);
+    private static volatile int threshold = parseLevel(System.getProperty("tftp.log.level", "INFO")).ordinal();
+    private static int traceCount; //racy on purpose, lost increments only shift the sample
+    private static volatile long traceWindow;
+    private static final AtomicInteger TRACE_IN_WINDOW = new AtomicInteger();
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            RING[i] = new Slot();
+        }
+        Thread writer = new Thread(Log::writeLoop, "tftp-log");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "tftp-log-flush")); //lines still in the ring are not lost on exit
+    }
+
+    private Log() {
+    }
+
+    /**
+     * Sets the lowest level that is logged.
+     *
+     * @param level events below this level are dropped straight away
+     */
+    public static void setLevel(Level level) {
+        threshold = level.ordinal();
+    }
+
+    /**
+     * Checks whether events of a level are logged, to skip building an expensive message.
+     *
+     * @param level level of the event
+     * @return true if the event would be logged
+     */
+    public static boolean isEnabled(Level level) {
+        return level.ordinal() >= threshold;
+    }
+
+    /**
+     * Logs a per-packet event, sampled and rate limited. Nothing is allocated, the numbers are
+     * only formatted by the writer thread.
+     *
+     * @param event constant description of the event
+     * @param first first number, e.g. a block number
+     * @param second second number, e.g. a window size
+     */
+    public static void trace(String event, long first, long second) {
+        if (threshold > 0) { //TRACE is level 0, this is all that runs when it is off
+            return;
+        }
+        if (++traceCount % SAMPLE_EVERY != 0) {
+            return;
+        }
+        long window = System.nanoTime() >>> 30; //about one second
+        if (window != traceWindow) {
+            traceWindow = window;
+            TRACE_IN_WINDOW.set(0);
+        }
+        if (TRACE_IN_WINDOW.incrementAndGet() > MAX_TRACE_PER_SECOND) {
+            return;
+        }
+        offer(Level.TRACE, event, null, first, second, PAIR, null);
+    }
+
+    /**
+     * Logs a debug message.
+     *
+     * @param message the message
+     */
+    public static void debug(String message) {
+        log(Level.DEBUG, message, null, null);
+    }
+
+    /**
+     * Logs an informational message.
+     *
+     * @param message the message
+     */
+    public static void info(String message) {
+        log(Level.INFO, message, null, null);
+    }
+
+    /**
+     * Logs an informational message followed by a detail, which is only turned into text if the
+     * message is logged.
+     *
+     * @param message constant part of the message
+     * @param detail appended after the message by the writer thread
+     */
+    public static void info(String message, Object detail) {
+        log(Level.INFO, message, detail, null);
+    }
+
+    /**
+     * Logs an informational message followed by a number and a detail, e.g. an error code and its message.
+     * Nothing is boxed or turned into text unless the message is logged.
+     *
+     * @param message constant part of the message
+     * @param number appended after the message by the writer thread
+     * @param detail appended after the number and a space by the writer thread
+     */
+    public static void info(String message, long number, Object detail) {
+        log(Level.INFO, message, number, detail);
+    }
+
+    /**
+     * Logs an informational message followed by a number, which is not boxed.
+     *
+     * @param message constant part of the message
+     * @param number appended after the message by the writer thread
+     */
+    public static void info(String message, long number) {
+        log(Level.INFO, message, number, null);
+    }
+
+    /**
+     * Logs a warning.
+     *
+     * @param message the message
+     */
+    public static void warn(String message) {
+        log(Level.WARN, message, null, null);
+    }
+
+    /**
+     * Logs a warning followed by a detail, which is only turned into text if the warning is logged.
+     *
+     * @param message constant part of the message
+     * @param detail appended after the message by the writer thread
+     */
+    public static void warn(String message, Object detail) {
+        log(Level.WARN, message, detail, null);
+    }
+
+    /**
+     * Logs a warning followed by a number, which is not boxed.
+     *
+     * @param message constant part of the message
+     * @param number appended after the message by the writer thread
+     */
+    public static void warn(String message, long number) {
+        log(Level.WARN, message, number, null);
+    }
+
+    /**
+     * Logs an error.
+     *
+     * @param message the message
+     */
+    public static void error(String message) {
+        log(Level.ERROR, message, null, null);
+    }
+
+    /**
+     * Logs an error with the exception that caused it, its stack trace is printed by the writer thread.
+     *
+     * @param message the message
+     * @param thrown the cause
+     */
+    public static void error(String message, Throwable thrown) {
+        log(Level.ERROR, message, null, thrown);
+    }
+
+    /**
+     * Logs the one-line summary of a transfer that has ended.
+     *
+     * @param stats statistics of the transfer, no longer updated
+     */
+    public static void transfer(TransferStats stats) {
+        log(Level.INFO, "transfer ", stats, null);
+    }
+
+    /**
+     * Writes every event still in the ring, called on exit and by the writer thread.
+     */
+    public static void drain() {
+        synchronized (DRAIN_LOCK) {
+            StringBuilder out = new StringBuilder();
+            StringBuilder err = new StringBuilder();
+            long next = head;
+            Slot slot;
+            while ((slot = RING[(int) next & MASK]).sequence == next) {
+                slot.format(slot.level.ordinal() >= Level.WARN.ordinal() ? err : out);
+                slot.clear();
+                head = ++next; //frees the slot for producers
+            }
+
+            long dropped = DROPPED.sumThenReset();
+            if (dropped > 0) {
+                err.append(Instant.now()).append(" WARN [tftp-log] ").append(dropped).append(" log events dropped, ring full\n");
+            }
+            print(System.out, out);
+            print(System.err, err);
+        }
+    }
+
+    private static void log(Level level, String message, Object detail, Throwable thrown) {
+        if (level.ordinal() < threshold) {
+            return;
+        }
+        offer(level, message, detail, 0, 0, NONE, thrown);
+    }
+
+    private static void log(Level level, String message, long number, Object detail) {
+        if (level.ordinal() < threshold) {
+            return;
+        }
+        offer(level, message, detail, number, 0, LEADING, null);
+    }
+
+    //claims the next slot and publishes the event in it, drops the event if the ring is full
+    private static void offer(Level level, String message, Object detail, long first, long second, int numbers, Throwable thrown) {
+        long sequence;
+        do {
+            sequence = TAIL.get();
+            if (sequence - head >= CAPACITY) {
+                DROPPED.increment();
+                return;
+            }
+        } while (!TAIL.compareAndSet(sequence, sequence + 1));
+
+        Slot slot = RING[(int) sequence & MASK];
+        slot.time = System.currentTimeMillis();
+        slot.level = level;
+        slot.thread = Thread.currentThread().getName();
+        slot.message = message;
+        slot.detail = detail;
+        slot.first = first;
+        slot.second = second;
+        slot.numbers = numbers;
+        slot.thrown = thrown;
+        slot.sequence = sequence; //volatile write, the writer thread sees every field above
+    }
+
+    private static void writeLoop() {
+        while (true) {
+            drain();
+            LockSupport.parkNanos(10_000_000); //producers never wake the writer, a line is at most 10ms late
+        }
+    }
+
+    private static void print(PrintStream stream, StringBuilder lines) {
+        if (lines.length() > 0) {
+            stream.print(lines); //one write for the whole batch
+            stream.flush();
+        }
+    }
+
+    private static Level parseLevel(String name) {
+        try {
+            return Level.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            return Level.INFO;
+        }
+    }
+
+    //one event of the ring, reused forever
+    private static class Slot {
+
+        private volatile long sequence = -1; //sequence of the event in the slot, published last
+        private long time;
+        private Level level;
+        private String thread;
+        private String message;
+        private Object detail;
+        private long first;
+        private long second;
+        private int numbers; //NONE, LEADING or PAIR
+        private Throwable thrown;
+
+        private void format(StringBuilder line) {
+            line.append(Instant.ofEpochMilli(time)).append(' ').append(level).append(" [").append(thread).append("] ").append(message);
+            if (numbers == LEADING) {
+                line.append(first);
+                if (detail != null) {
+                    line.append(' ');
+                }
+            }
+            if (detail instanceof TransferStats) {
+                TransferStats stats = (TransferStats) detail;
+                line.append(stats).append(" result=").append(stats.isSucceeded() ? "ok" : "failed");
+            } else if (detail != null) {
+                line.append(detail);
+            }
+            if (numbers == PAIR) {
+                line.append(' ').append(first).append(' ').append(second);
+            }
+            line.append('\n');
+            if (thrown != null) {
+                line.append(thrown).append('\n');
+                for (StackTraceElement element : thrown.getStackTrace()) {
+                    line.append("\tat ").append(element).append('\n');
+                }
+            }
+        }
+
+        private void clear() {
+            message = null; //nothing is kept alive by an old event
+            detail = null;
+            thrown = null;
+        }
+    }
+
+}
@@ -0,0 +1,128 @@
+package common;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The MappedBlockSource class serves the data blocks of a file straight from a memory mapping
+ * of it. A block is handed out as a view into the mapping, so it can be written to a
+ * DatagramChannel without ever being copied into a heap array. Files bigger than one mapping
+ * can hold are mapped in regions that always start on a block boundary, so a block never
+ * spans two regions. Regions are only mapped the first time one of their blocks is needed.
+ * A source can also serve only a range of the file (the range option), block 0 then starts at the range offset.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public class MappedBlockSource implements BlockSource {
+
+    private static final long REGION_SIZE = 1L << 30; //1 GB, well below the 2 GB limit of a single mapping
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final FileChannel file;
+    private final long start; //offset in the file of block 0
+    private final long size;
+    private final int blockSize;
+    private final long blocksPerRegion;
+    private final MappedByteBuffer[] regions;
+    private final ByteBuffer[] views; //one reusable view per region so handing out a block allocates nothing
+
+    /**
+     * This constructor opens the file, the mapping itself happens lazily
+     *
+     * @param fileName name of the file to be served
+     * @param blockSize negotiated block size
+     * @throws IOException if the file cannot be opened, a FileNotFoundException if it does not exist
+     */
+    public MappedBlockSource(String fileName, int blockSize) throws IOException {
+        this(fileName, blockSize, 0, -1);
+    }
+
+    /**
+     * This constructor opens the file to serve a range of it, the mapping itself happens lazily
+     *
+     * @param fileName name of the file to be served
+     * @param blockSize negotiated block size
+     * @param offset offset in the file of the first byte served
+     * @param length number of bytes served, cut to the end of the file, -1 for everything from the offset on
+     * @throws IOException if the file cannot be opened, a FileNotFoundException if it does not exist
+     */
+    public MappedBlockSource(String fileName, int blockSize, long offset, long length) throws IOException {
+        this.file = new RandomAccessFile(fileName, "r").getChannel();
+        long fileSize = file.size();
+        this.start = Math.min(offset, fileSize);
+        this.size = length < 0 ? fileSize - start : Math.min(length, fileSize - start);
+        this.blockSize = blockSize;
+        this.blocksPerRegion = REGION_SIZE / blockSize;
+
+        int regionCount = (int) ((getBlockCount() + blocksPerRegion - 1) / blocksPerRegion);
+        this.regions = new MappedByteBuffer[regionCount];
+        this.views = new ByteBuffer[regionCount];
+    }
+
+    /**
+     * Getter method for the number of blocks in the transfer.
+     * This is always one more than the number of full blocks, because the last block must be
+     * shorter than the block size (it is empty if the file size is a multiple of the block size).
+     *
+     * @return number of DATA packets needed to send the file
+     */
+    @Override
+    public long getBlockCount() {
+        return size / blockSize + 1;
+    }
+
+    /**
+     * Getter method for the size of the file.
+     *
+     * @return file size in bytes, or the length of the range
+     */
+    @Override
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns a block of the file as a view into the mapping. The view is reused, so it is only
+     * valid until the next call for a block of the same region.
+     *
+     * @param index block index starting at 0 (block number 1 on the wire)
+     * @return buffer positioned on the block with the limit at its end
+     * @throws IOException if the region cannot be mapped
+     */
+    @Override
+    public ByteBuffer block(long index) throws IOException {
+        long offset = index * blockSize;
+        int length = (int) Math.max(0, Math.min(blockSize, size - offset));
+
+        if (length == 0) {
+            return EMPTY; //empty last block, nothing to map
+        }
+
+        int region = (int) (index / blocksPerRegion);
+        if (regions[region] == null) {
+            long regionStart = region * blocksPerRegion * blockSize;
+            regions[region] = file.map(FileChannel.MapMode.READ_ONLY, start + regionStart, Math.min(blocksPerRegion * blockSize, size - regionStart));
+            views[region] = regions[region].duplicate();
+        }
+
+        int position = (int) ((index - region * blocksPerRegion) * blockSize);
+        ByteBuffer view = views[region];
+        view.limit(position + length).position(position);
+        return view;
+    }
+
+    /**
+     * Closes the file. The mappings are released when they are garbage collected.
+     *
+     * @throws IOException if the file cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+}
@@ -0,0 +1,102 @@
+package common;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+
+/**
+ * The MulticastGroup class holds the value of the multicast option (RFC 2090) that a server
+ * sends in its OACK: the group the file is sent to and whether the client is the master client.
+ * On the wire the value is written as "address,port,master" with master being 1 or 0.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public class MulticastGroup {
+
+    public static final int DEFAULT_PORT = 1758; //tftp-mcast
+
+    private final InetSocketAddress group;
+    private final boolean master;
+
+    /**
+     * This constructor creates the option value for one client
+     *
+     * @param group multicast address and port the file is sent to
+     * @param master true if the client is to acknowledge the blocks
+     */
+    public MulticastGroup(InetSocketAddress group, boolean master) {
+        this.group = group;
+        this.master = master;
+    }
+
+    /**
+     * Reads the value of a multicast option.
+     *
+     * @param value option value as sent in the OACK
+     * @return the group, or null if the value is malformed
+     */
+    public static MulticastGroup parse(String value) {
+        String[] parts = value.split(",");
+        if (parts.length != 3) {
+            return null;
+        }
+
+        try {
+            InetAddress address = InetAddress.getByName(parts[0].trim());
+            int port = Integer.parseInt(parts[1].trim());
+            if (!address.isMulticastAddress() || port < 1 || port > 65535) {
+                return null;
+            }
+            return new MulticastGroup(new InetSocketAddress(address, port), parts[2].trim().equals("1"));
+        } catch (IOException | NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Finds the interface that packets to an address leave from, the group is sent and joined on that interface.
+     *
+     * @param address address of the peer
+     * @return the interface, null if it cannot be determined and the system default should be used
+     */
+    public static NetworkInterface interfaceTowards(InetAddress address) {
+        try (DatagramSocket probe = new DatagramSocket()) {
+            probe.connect(address, DEFAULT_PORT); //nothing is sent, connecting only picks the route
+            return NetworkInterface.getByInetAddress(probe.getLocalAddress());
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Getter method for the group.
+     *
+     * @return multicast address and port the file is sent to
+     */
+    public InetSocketAddress getGroup() {
+        return group;
+    }
+
+    /**
+     * Getter method for the master flag.
+     *
+     * @return true if the client is the master client
+     */
+    public boolean isMaster() {
+        return master;
+    }
+
+    /**
+     * Writes the group the way it is sent in an OACK.
+     *
+     * @return "address,port,master"
+     */
+    @Override
+    public String toString() {
+        return group.getAddress().getHostAddress() + "," + group.getPort() + "," + (master ? 1 : 0);
+    }
+
+}
@@ -0,0 +1,234 @@
+package common;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The NetworkSimulator class is a DatagramTransport.Factory whose transports send datagrams over
+ * a simulated bad network: each datagram may be lost, duplicated or held back so that it arrives
+ * after later ones, it is delayed by a latency plus random jitter, and all transports of the
+ * simulator share one link with a bandwidth cap. Only sending is impaired, so a server and a client
+ * that both use a simulator impair both directions. Every transport draws from its own Random seeded
+ * from the simulator's seed and the order the transports were opened in, so a run with the same seed
+ * makes the same decisions for the same sequence of datagrams.
+ * Delayed datagrams are copied and sent by one scheduler thread of the simulator.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public class NetworkSimulator implements DatagramTransport.Factory {
+
+    private final long seed;
+    private final AtomicLong opened = new AtomicLong(); //transports opened so far, mixed into their seeds
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "tftp-network-simulator");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile double loss;
+    private volatile double duplication;
+    private volatile double reordering;
+    private volatile int latencyMillis;
+    private volatile int jitterMillis;
+    private volatile int reorderDelayMillis = 20;
+    private volatile long bandwidth; //bytes per second of the shared link, 0 = unlimited
+    private long linkFreeAt; //System.nanoTime() when the link has sent everything queued on it, guarded by this
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder duplicated = new LongAdder();
+    private final LongAdder reordered = new LongAdder();
+
+    /**
+     * This constructor creates a simulator of a perfect network, impairments are added with the setters
+     *
+     * @param seed seed of the random decisions
+     */
+    public NetworkSimulator(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Sets the share of datagrams that are lost.
+     *
+     * @param loss probability between 0 and 1
+     */
+    public void setLoss(double loss) {
+        this.loss = loss;
+    }
+
+    /**
+     * Sets the share of datagrams that arrive twice.
+     *
+     * @param duplication probability between 0 and 1
+     */
+    public void setDuplication(double duplication) {
+        this.duplication = duplication;
+    }
+
+    /**
+     * Sets the share of datagrams that are held back so that later datagrams overtake them.
+     *
+     * @param reordering probability between 0 and 1
+     * @param delayMillis how long a reordered datagram is held back
+     */
+    public void setReordering(double reordering, int delayMillis) {
+        this.reordering = reordering;
+        this.reorderDelayMillis = delayMillis;
+    }
+
+    /**
+     * Sets the one-way delay of every datagram.
+     *
+     * @param latencyMillis fixed delay
+     * @param jitterMillis random extra delay, uniform between 0 and this
+     */
+    public void setLatency(int latencyMillis, int jitterMillis) {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+    }
+
+    /**
+     * Sets the bandwidth of the link shared by all transports of this simulator.
+     *
+     * @param bytesPerSecond cap on the bytes sent per second, 0 for no cap
+     */
+    public void setBandwidth(long bytesPerSecond) {
+        this.bandwidth = bytesPerSecond;
+    }
+
+    @Override
+    public DatagramTransport open(DatagramSocket socket) {
+        return new SimulatedTransport(new SocketTransport(socket), new Random(seed * 31 + opened.getAndIncrement()));
+    }
+
+    /**
+     * Getter method for the datagrams handed to the simulator.
+     *
+     * @return datagrams sent through all transports, including the lost ones
+     */
+    public long getSent() {
+        return sent.sum();
+    }
+
+    /**
+     * Getter method for the lost datagrams.
+     *
+     * @return datagrams dropped
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Getter method for the duplicated datagrams.
+     *
+     * @return datagrams delivered twice
+     */
+    public long getDuplicated() {
+        return duplicated.sum();
+    }
+
+    /**
+     * Getter method for the reordered datagrams.
+     *
+     * @return datagrams held back
+     */
+    public long getReordered() {
+        return reordered.sum();
+    }
+
+    //nanoseconds from now until a datagram of this size has gone through the shared link
+    private synchronized long queueOnLink(int size) {
+        long bytesPerSecond = bandwidth;
+        if (bytesPerSecond <= 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        long start = Math.max(now, linkFreeAt);
+        linkFreeAt = start + size * 1_000_000_000L / bytesPerSecond;
+        return linkFreeAt - now;
+    }
+
+    //a transport of the simulator, the impairments are decided under its own lock so the random sequence is the same for the same datagrams
+    private class SimulatedTransport implements DatagramTransport {
+
+        private final DatagramTransport network;
+        private final Random random;
+
+        SimulatedTransport(DatagramTransport network, Random random) {
+            this.network = network;
+            this.random = random;
+        }
+
+        @Override
+        public void send(DatagramPacket packet) throws IOException {
+            long delayNanos;
+            boolean duplicate;
+            synchronized (this) {
+                sent.increment();
+                if (random.nextDouble() < loss) {
+                    dropped.increment();
+                    return;
+                }
+                duplicate = random.nextDouble() < duplication;
+                delayNanos = TimeUnit.MILLISECONDS.toNanos(latencyMillis) + (jitterMillis > 0 ? (long) (random.nextDouble() * TimeUnit.MILLISECONDS.toNanos(jitterMillis)) : 0);
+                if (random.nextDouble() < reordering) {
+                    reordered.increment();
+                    delayNanos += TimeUnit.MILLISECONDS.toNanos(reorderDelayMillis);
+                }
+            }
+            delayNanos += queueOnLink(packet.getLength());
+
+            deliver(packet, delayNanos);
+            if (duplicate) {
+                duplicated.increment();
+                deliver(packet, delayNanos + queueOnLink(packet.getLength()));
+            }
+        }
+
+        private void deliver(DatagramPacket packet, long delayNanos) throws IOException {
+            if (delayNanos <= 0) {
+                network.send(packet);
+                return;
+            }
+
+            byte[] data = Arrays.copyOfRange(packet.getData(), packet.getOffset(), packet.getOffset() + packet.getLength()); //the caller reuses its buffer
+            SocketAddress target = packet.getSocketAddress();
+            scheduler.schedule(() -> {
+                try {
+                    network.send(new DatagramPacket(data, data.length, target));
+                } catch (IOException ex) {
+                    Log.warn("Simulated network could not deliver to ", target); //the socket was closed meanwhile, like a packet lost
+                }
+            }, delayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void receive(DatagramPacket packet, int timeoutMillis) throws IOException {
+            network.receive(packet, timeoutMillis);
+        }
+
+        @Override
+        public boolean canGather() {
+            return false; //every datagram has to pass through send(DatagramPacket) to be impaired
+        }
+
+        @Override
+        public void send(ByteBuffer[] buffers) {
+            throw new IllegalStateException("Gathering sends are not simulated");
+        }
+    }
+
+}
@@ -1,25 +1,31 @@
 package common;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+
 /**
  * The PacketFactory class contains all the methods request to prepare the
  * different types of packets required, ready for sending.
+ * The create methods return a new byte array per packet. The encode methods write
+ * the same packets into a buffer supplied by the caller and return the encoded length,
+ * so a channel that reuses its buffer allocates nothing per packet.
+ * All strings are written as US-ASCII as the RFC requires.
  *
  * @version 1.0 - 09/05/2020
  * @author Candidate Number: 203068
  */
 public class PacketFactory {
 
-    //Create RRQ or WRQ method below holds the shared logic for the two child methods as most of the logic is common
-    private byte[] createRRQorWRQ(byte opCode, String fileName) {
+    private static final byte[] OCTET = "octet".getBytes(StandardCharsets.US_ASCII); //the only mode used, encoded once
 
-        byte[] stringBytes = fileName.getBytes();
-        byte[] octetBytes = "octet".getBytes();
+    //Create RRQ or WRQ method below holds the shared logic for the two child methods as most of the logic is common
+    private byte[] createRRQorWRQ(byte opCode, String fileName, Map<String, String> options) {
 
-        byte[] packet = new byte[2 + stringBytes.length + 1 + 5 + 1];
-        packet[1] = opCode; //1 for opcode of RRQ/WRQ
-        System.arraycopy(stringBytes, 0, packet, 3, stringBytes.length); //default values for bytes in array is 0
+        byte[] packet = new byte[2 + fileName.length() + 1 + OCTET.length + 1 + optionsLength(options)];
 
-        System.arraycopy(octetBytes, 0, packet, 3 + stringBytes.length + 1, octetBytes.length);
+        encodeRRQorWRQ(ByteBuffer.wrap(packet), opCode, fileName, options);
 
         return packet;
 
@@ -34,7 +40,20 @@ public class PacketFactory {
      */
     public byte[] createRRQ(String fileName) {
 
-        return createRRQorWRQ((byte) 1, fileName);
+        return createRRQorWRQ((byte) 1, fileName, Collections.emptyMap());
+
+    }
+
+    /**
+     * Creates a read request with options (RFC 2347) appended after the mode.
+     *
+     * @param fileName name of file being requested from the server
+     * @param options option names and values to append, may be empty
+     * @return the data for the packet to be sent in the form of a byte array.
+     */
+    public byte[] createRRQ(String fileName, Map<String, String> options) {
+
+        return createRRQorWRQ((byte) 1, fileName, options);
 
     }
 
@@ -46,9 +65,46 @@ public class PacketFactory {
      * @return the data for the packet to be sent in the form of a byte array
      */
     public byte[] createWRQ(String fileName) {
-        return createRRQorWRQ((byte) 2, fileName);
+        return createRRQorWRQ((byte) 2, fileName, Collections.emptyMap());
     }
 
+    /**
+     * Creates a write request with options (RFC 2347) appended after the mode.
+     *
+     * @param fileName name of file to be written to the server
+     * @param options option names and values to append, may be empty
+     * @return the data for the packet to be sent in the form of a byte array
+     */
+    public byte[] createWRQ(String fileName, Map<String, String> options) {
+        return createRRQorWRQ((byte) 2, fileName, options);
+    }
+
+    /**
+     * Creates an option acknowledgement (OACK). The server sends this in reply to
+     * a RRQ or WRQ carrying options, listing only the options it has accepted.
+     *
+     * @param options accepted option names and values
+     * @return the data for the OACK packet in the form of a byte array
+     */
+    public byte[] createOACK(Map<String, String> options) {
+
+        byte[] packet = new byte[2 + optionsLength(options)];
+
+        encodeOACK(ByteBuffer.wrap(packet), options);
+
+        return packet;
+    }
+
+    //each option is written as name, 0, value, 0
+    private int optionsLength(Map<String, String> options) {
+        int length = 0;
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            length += option.getKey().length() + 1 + option.getValue().length() + 1;
+        }
+        return length;
+    }
+
+
     /**
      * Creates an error packet.
      *
@@ -62,12 +118,9 @@ public class PacketFactory {
      */
     public byte[] createERROR(byte errorCode, String errMsg) {
 
-        byte[] errMsgBytes = errMsg.getBytes(); //convert error message string to bytes
-        byte[] packet = new byte[2 + 2 + errMsgBytes.length + 1]; //2 bytes for opcode, 2 bytes for error code, size of string for errMsg and 1 byte to signal end of pakcet
+        byte[] packet = new byte[2 + 2 + errMsg.length() + 1]; //2 bytes for opcode, 2 bytes for error code, size of string for errMsg and 1 byte to signal end of pakcet
 
-        packet[1] = 5; //opcode 05 for errors
-
-        System.arraycopy(errMsgBytes, 0, packet, 4, errMsgBytes.length); //copy error mesage byte array into correct position in packet byte array
+        encodeError(ByteBuffer.wrap(packet), errorCode, errMsg);
 
         return packet;
     }
@@ -75,7 +128,8 @@ public class PacketFactory {
     /**
      * Creates a data packet. Creates a data packet by creating a byte array
      * that stores all the required information at the correct positions in the
-     * byte array. In total full data packets will have a size of 516 bytes.
+     * byte array. In total full data packets will have a size of the block size
+     * plus 4 bytes, 516 bytes with the default block size.
      *
      * @param blockNum the block number of the data packet to be sent
      * @param data the data of the current chunk to be sent - in the form of a
@@ -87,13 +141,7 @@ public class PacketFactory {
 
         byte[] packet = new byte[2 + 2 + size];
 
-        packet[1] = 3; //opcode for data
-
-        packet[3] = (byte) (blockNum & 0xff);
-
-        packet[2] = (byte) ((blockNum >> 8) & 0xff);
-
-        System.arraycopy(data, 0, packet, 4, size);
+        encodeData(ByteBuffer.wrap(packet), blockNum, data, size);
 
         return packet;
 
@@ -111,14 +159,166 @@ public class PacketFactory {
 
         byte[] packet = new byte[2 + 2];
 
-        packet[1] = 4; //opcode for data
+        encodeAck(ByteBuffer.wrap(packet), blockNum);
+
+        return packet;
 
-        packet[3] = (byte) (blockNum & 0xff); //bitwise operation - 0xff another way to write 255
+    }
 
-        packet[2] = (byte) ((blockNum >> 8) & 0xff); //bitwise operation shifting 8 bits to the right to shift out lowest 8 bits & then ended with 255 to keep only those bits
+    /**
+     * Encodes a read request into a buffer.
+     *
+     * @param out buffer the packet is written to, starting at its position
+     * @param fileName name of file being requested from the server
+     * @param options option names and values to append, may be empty
+     * @return number of bytes written
+     */
+    public int encodeRRQ(ByteBuffer out, String fileName, Map<String, String> options) {
+        return encodeRRQorWRQ(out, (byte) 1, fileName, options);
+    }
 
-        return packet;
+    /**
+     * Encodes a write request into a buffer.
+     *
+     * @param out buffer the packet is written to, starting at its position
+     * @param fileName name of file to be written to the server
+     * @param options option names and values to append, may be empty
+     * @return number of bytes written
+     */
+    public int encodeWRQ(ByteBuffer out, String fileName, Map<String, String> options) {
+        return encodeRRQorWRQ(out, (byte) 2, fileName, options);
+    }
+
+    private int encodeRRQorWRQ(ByteBuffer out, byte opCode, String fileName, Map<String, String> options) {
+        int start = out.position();
+
+        out.put((byte) 0).put(opCode);
+        putString(out, fileName);
+        out.put(OCTET).put((byte) 0);
+        putOptions(out, options);
+
+        return out.position() - start;
+    }
+
+    /**
+     * Encodes an option acknowledgement into a buffer.
+     *
+     * @param out buffer the packet is written to, starting at its position
+     * @param options accepted option names and values
+     * @return number of bytes written
+     */
+    public int encodeOACK(ByteBuffer out, Map<String, String> options) {
+        int start = out.position();
+
+        out.put((byte) 0).put((byte) 6); //opcode 06 for option acknowledgements
+        putOptions(out, options);
+
+        return out.position() - start;
+    }
+
+    /**
+     * Encodes an error packet into a buffer. A message too long for the buffer is cut short
+     * so that an error can always be sent.
+     *
+     * @param out buffer the packet is written to, starting at its position
+     * @param errorCode error code as defined in the RFC
+     * @param errMsg message to be carried by the packet
+     * @return number of bytes written
+     */
+    public int encodeError(ByteBuffer out, int errorCode, String errMsg) {
+        int start = out.position();
+
+        out.put((byte) 0).put((byte) 5); //opcode 05 for errors
+        out.putShort((short) errorCode);
+
+        int length = Math.min(errMsg.length(), out.remaining() - 1); //leave room for the terminating 0
+        for (int i = 0; i < length; i++) {
+            out.put(ascii(errMsg.charAt(i)));
+        }
+        out.put((byte) 0);
+
+        return out.position() - start;
+    }
+
+    /**
+     * Encodes a data packet into a buffer, copying the payload in after the header.
+     *
+     * @param out buffer the packet is written to, starting at its position
+     * @param blockNum the block number of the data packet
+     * @param data array holding the payload
+     * @param size number of payload bytes
+     * @return number of bytes written
+     */
+    public int encodeData(ByteBuffer out, int blockNum, byte[] data, int size) {
+        encodeDataHeader(out, blockNum);
+        out.put(data, 0, size);
+
+        return 4 + size;
+    }
+
+    /**
+     * Encodes a data packet into a buffer, copying the payload in from another buffer.
+     *
+     * @param out buffer the packet is written to, starting at its position
+     * @param blockNum the block number of the data packet
+     * @param data buffer holding the payload between its position and limit, its position is moved to the limit
+     * @return number of bytes written
+     */
+    public int encodeData(ByteBuffer out, int blockNum, ByteBuffer data) {
+        int size = data.remaining();
+        encodeDataHeader(out, blockNum);
+        out.put(data);
+
+        return 4 + size;
+    }
+
+    /**
+     * Encodes only the 4 byte header of a data packet, for gathering writes where the
+     * payload is sent from a buffer of its own.
+     *
+     * @param out buffer the header is written to, starting at its position
+     * @param blockNum the block number of the data packet
+     * @return number of bytes written, always 4
+     */
+    public int encodeDataHeader(ByteBuffer out, int blockNum) {
+        out.put((byte) 0).put((byte) 3); //opcode for data
+        out.putShort((short) blockNum); //big endian, the & 0xffff wrap is done by the cast
+
+        return 4;
+    }
+
+    /**
+     * Encodes an acknowledgement into a buffer.
+     *
+     * @param out buffer the packet is written to, starting at its position
+     * @param blockNum block number of the acknowledgement
+     * @return number of bytes written, always 4
+     */
+    public int encodeAck(ByteBuffer out, int blockNum) {
+        out.put((byte) 0).put((byte) 4); //opcode for acknowledgements
+        out.putShort((short) blockNum);
+
+        return 4;
+    }
+
+    //each option is written as name, 0, value, 0
+    private void putOptions(ByteBuffer out, Map<String, String> options) {
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            putString(out, option.getKey());
+            putString(out, option.getValue());
+        }
+    }
+
+    //writes the string one character at a time so no byte array is created for it
+    private void putString(ByteBuffer out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            out.put(ascii(value.charAt(i)));
+        }
+        out.put((byte) 0);
+    }
 
+    private static byte ascii(char c) {
+        return c < 128 ? (byte) c : (byte) '?'; //same replacement the US-ASCII charset uses
     }
 
 }
@@ -0,0 +1,278 @@
+package common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The PacketRing class hands the packets of one transfer from the receiver thread of the server to the
+ * thread serving the transfer without allocating or locking. It is a ring of reusable slots: the receiver
+ * copies a packet into the next free slot and publishes it by moving the tail, the transfer reads the
+ * packet in place and only frees its slot when it asks for the next one, so the packet is never copied
+ * again. Both sides keep a cached copy of the other side's cursor and only read the shared one when the
+ * cached one runs out, so a burst of packets (a window of DATA) is drained with one read of the tail.
+ * Every slot is allocated when the ring is created, sized for the largest packet the transfer's options
+ * allow, so the memory of a session is known up front: forTransfer sizes a ring for two windows of
+ * packets and shortens it to stay within MAX_RING_BYTES. A packet larger than a slot breaks the
+ * negotiated block size and is dropped.
+ * The ring has a single producer and a single consumer: SO_REUSEPORT delivers all packets of a client
+ * to one receiver and each transfer is served by one thread.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public class PacketRing {
+
+    public static final int DEFAULT_CAPACITY = 2 * TransferOptions.MAX_WINDOW_SIZE; //a full window and its retransmission
+    public static final int MIN_CAPACITY = 8; //a lock-step transfer, with room for duplicates and stray packets
+    public static final int MAX_RING_BYTES = 1024 * 1024; //per session, large blocks get fewer slots
+    private static final int MIN_SLOT_SIZE = 516; //a default packet, ACK, OACK and ERROR packets always fit
+
+    /**
+     * How the consumer waits for a packet when the ring is empty.
+     * BUSY_SPIN has the lowest latency but keeps a core busy, YIELD lets other threads run between checks
+     * and PARK sleeps until the producer wakes it, the right choice when there are more transfers than cores.
+     */
+    public enum WaitStrategy {
+        BUSY_SPIN, YIELD, PARK
+    }
+
+    private final byte[][] slots;
+    private final int[] lengths;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong(); //packets published, written by the producer
+    private final AtomicLong head = new AtomicLong(); //slots freed, written by the consumer
+    private volatile Thread waiter; //consumer parked for a packet, null if it is not parked
+    private volatile WaitStrategy waitStrategy;
+    private long freeUpTo; //producer's cached head plus the capacity
+    private long read; //consumer's count of packets taken
+    private long available; //consumer's cached tail
+    private int current = -1; //slot of the packet the consumer holds
+
+    /**
+     * This constructor creates a ring with the default capacity that parks the consumer when it is empty
+     */
+    public PacketRing() {
+        this(DEFAULT_CAPACITY, WaitStrategy.PARK);
+    }
+
+    /**
+     * This constructor creates a ring of a given capacity for packets of the default size
+     *
+     * @param capacity number of slots, rounded up to a power of two
+     * @param waitStrategy how the consumer waits for a packet
+     */
+    public PacketRing(int capacity, WaitStrategy waitStrategy) {
+        this(capacity, MIN_SLOT_SIZE, waitStrategy);
+    }
+
+    /**
+     * This constructor creates a ring of a given capacity and allocates all its slots
+     *
+     * @param capacity number of slots, rounded up to a power of two
+     * @param slotSize largest packet the ring holds, at least the size of a default packet
+     * @param waitStrategy how the consumer waits for a packet
+     */
+    public PacketRing(int capacity, int slotSize, WaitStrategy waitStrategy) {
+        int size = roundUp(capacity);
+        this.slots = new byte[size][Math.max(slotSize, MIN_SLOT_SIZE)];
+        this.lengths = new int[size];
+        this.mask = size - 1;
+        this.freeUpTo = size;
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Creates a ring for the packets of one transfer: two windows of slots of the negotiated packet size,
+     * fewer if that would take more than MAX_RING_BYTES.
+     *
+     * @param packetSize largest packet of the transfer, the negotiated block size plus the header
+     * @param windowSize negotiated window size
+     * @param waitStrategy how the consumer waits for a packet
+     * @return the ring
+     */
+    public static PacketRing forTransfer(int packetSize, int windowSize, WaitStrategy waitStrategy) {
+        int slotSize = Math.max(packetSize, MIN_SLOT_SIZE);
+        return new PacketRing(capacityFor(slotSize, windowSize), slotSize, waitStrategy);
+    }
+
+    /**
+     * Checks whether the ring has the size forTransfer would give it, so it can be kept when the options are set again.
+     *
+     * @param packetSize largest packet of the transfer
+     * @param windowSize negotiated window size
+     * @return true if the slots and their number are the same
+     */
+    public boolean isSizedFor(int packetSize, int windowSize) {
+        int slotSize = Math.max(packetSize, MIN_SLOT_SIZE);
+        return slots[0].length == slotSize && slots.length == roundUp(capacityFor(slotSize, windowSize));
+    }
+
+    //the next power of two, at least 2
+    private static int roundUp(int capacity) {
+        return Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    }
+
+    //two windows, rounded down to a power of two that fits in MAX_RING_BYTES
+    private static int capacityFor(int slotSize, int windowSize) {
+        int capacity = Math.max(MIN_CAPACITY, 2 * windowSize);
+        int affordable = Integer.highestOneBit(MAX_RING_BYTES / slotSize);
+        return Math.min(capacity, affordable);
+    }
+
+    /**
+     * Getter method for the number of packets the ring holds.
+     *
+     * @return the capacity, a power of two
+     */
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    /**
+     * Getter method for the largest packet a slot holds.
+     *
+     * @return the slot size
+     */
+    public int getSlotSize() {
+        return slots[0].length;
+    }
+
+    /**
+     * Getter method for how the consumer waits for a packet.
+     *
+     * @return the wait strategy
+     */
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    /**
+     * Setter method for how the consumer waits for a packet, takes effect from its next wait.
+     *
+     * @param waitStrategy the wait strategy
+     */
+    public void setWaitStrategy(WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Copies a packet into the next free slot and publishes it. Only called by the producer.
+     *
+     * @param buffer buffer holding the packet from index 0, free to be reused when this returns
+     * @param length length of the packet
+     * @return false if the ring is full or the packet larger than a slot, and the packet was dropped, the peer retransmits it
+     */
+    public boolean offer(byte[] buffer, int length) {
+        if (length > slots[0].length) {
+            return false; //larger than the negotiated packet size
+        }
+        long position = tail.get();
+        if (position >= freeUpTo) {
+            freeUpTo = head.get() + slots.length; //only read the consumer's cursor when the cached one is used up
+            if (position >= freeUpTo) {
+                return false;
+            }
+        }
+
+        int index = (int) position & mask;
+        System.arraycopy(buffer, 0, slots[index], 0, length);
+        lengths[index] = length;
+        tail.set(position + 1); //volatile, so the check of the waiter below cannot move before it
+
+        Thread parked = waiter;
+        if (parked != null) {
+            LockSupport.unpark(parked);
+        }
+        return true;
+    }
+
+    /**
+     * Frees the slot of the packet taken before and waits for the next one. Only called by the consumer.
+     *
+     * @param timeoutNanos longest time to wait
+     * @return true if there is a packet, see array and length, false if none arrived in time
+     * @throws InterruptedException if the thread is interrupted while it waits
+     */
+    public boolean next(long timeoutNanos) throws InterruptedException {
+        head.lazySet(read); //the producer may reuse every slot taken so far
+        current = -1;
+
+        if (read >= available) {
+            available = tail.get();
+            if (read >= available && !await(timeoutNanos)) {
+                return false;
+            }
+        }
+
+        current = (int) read++ & mask;
+        return true;
+    }
+
+    /**
+     * Getter method for the slot holding the packet taken by next, valid until the following call of next.
+     *
+     * @return the slot, the packet starts at index 0
+     */
+    public byte[] array() {
+        return slots[current];
+    }
+
+    /**
+     * Getter method for the length of the packet taken by next.
+     *
+     * @return length of the packet
+     */
+    public int length() {
+        return lengths[current];
+    }
+
+    /**
+     * Drops every packet published and not taken, and frees all slots. Only called by the consumer.
+     *
+     * @return number of packets dropped
+     */
+    public int clear() {
+        available = tail.get();
+        int dropped = (int) (available - read);
+        read = available;
+        head.lazySet(read);
+        current = -1;
+        return dropped;
+    }
+
+    //waits until the tail moves past the packets read, updating the cached tail
+    private boolean await(long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (true) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                return false;
+            }
+
+            switch (waitStrategy) {
+                case BUSY_SPIN:
+                    Thread.onSpinWait();
+                    break;
+                case YIELD:
+                    Thread.yield();
+                    break;
+                default:
+                    waiter = Thread.currentThread();
+                    if (tail.get() <= read) { //checked again after announcing the wait, so a packet published meanwhile is not missed
+                        LockSupport.parkNanos(this, left);
+                    }
+                    waiter = null;
+                    break;
+            }
+
+            available = tail.get();
+            if (read < available) {
+                return true;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,159 @@
+package common;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The PacketView class reads the fields of a packet straight out of the buffer it was received into.
+ * Unlike RequestParser it does not build a new Request for every datagram: one view is wrapped
+ * around each packet in turn, the DATA payload is handed out as an offset and length into the
+ * buffer, and strings (file name, error message, options) are only decoded when they are asked for.
+ * The view is only valid until its buffer is reused for the next packet.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public class PacketView {
+
+    private byte[] buffer;
+    private int length;
+    private String errorMessage; //decoded on first use, cleared by wrap
+
+    /**
+     * Points the view at a packet.
+     *
+     * @param buffer buffer holding the packet from index 0
+     * @param length number of bytes received, the rest of the buffer is ignored
+     * @return this view, for chaining
+     */
+    public PacketView wrap(byte[] buffer, int length) {
+        this.buffer = buffer;
+        this.length = length;
+        this.errorMessage = null;
+        return this;
+    }
+
+    /**
+     * Checks that the packet is long enough for its header and has a known opcode.
+     *
+     * @return true if the packet can be read
+     */
+    public boolean isValid() {
+        return length >= 4 && buffer[0] == 0 && buffer[1] >= 1 && buffer[1] <= 6;
+    }
+
+    /**
+     * Getter method for the opcode.
+     *
+     * @return opcode of the packet, 1 to 6 for a valid packet
+     */
+    public int getOpCode() {
+        return buffer[1];
+    }
+
+    /**
+     * Getter method for the block number of a DATA or ACK packet.
+     *
+     * @return block number between 0 and 65535
+     */
+    public int getBlockNum() {
+        return (buffer[2] & 0xff) << 8 | (buffer[3] & 0xff); //0xff removes the signed bit
+    }
+
+    /**
+     * Getter method for the buffer the packet is in, for reading the payload in place.
+     *
+     * @return the buffer the view was wrapped around
+     */
+    public byte[] array() {
+        return buffer;
+    }
+
+    /**
+     * Getter method for where the payload of a DATA packet starts.
+     *
+     * @return index of the first payload byte in array()
+     */
+    public int getPayloadOffset() {
+        return 4;
+    }
+
+    /**
+     * Getter method for the payload length of a DATA packet.
+     *
+     * @return number of payload bytes, less than the block size for the last block
+     */
+    public int getPayloadLength() {
+        return length - 4;
+    }
+
+    /**
+     * Getter method for the error code of an ERROR packet.
+     *
+     * @return error code as defined in the RFC
+     */
+    public int getErrorCode() {
+        return getBlockNum(); //same two bytes as the block number of DATA and ACK
+    }
+
+    /**
+     * Getter method for the message of an ERROR packet, decoded the first time it is asked for.
+     *
+     * @return the error message
+     */
+    public String getErrorMessage() {
+        if (errorMessage == null) {
+            errorMessage = new String(buffer, 4, endOfString(4) - 4, StandardCharsets.US_ASCII);
+        }
+        return errorMessage;
+    }
+
+    /**
+     * Getter method for the file name of a RRQ or WRQ.
+     *
+     * @return the file name
+     */
+    public String getFileName() {
+        return new String(buffer, 2, endOfString(2) - 2, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Getter method for the options of a RRQ, WRQ or OACK.
+     *
+     * @return the options in the order they appeared, empty if there are none
+     */
+    public Map<String, String> getOptions() {
+        int position = 2;
+        if (getOpCode() == 1 || getOpCode() == 2) {
+            position = endOfString(position) + 1; //skip the file name
+            position = endOfString(position) + 1; //skip the mode
+        } else if (getOpCode() != 6) {
+            return Collections.emptyMap();
+        }
+
+        Map<String, String> options = new LinkedHashMap<>();
+        while (position < length) {
+            int endOfName = endOfString(position);
+            int endOfValue = endOfString(endOfName + 1);
+            if (endOfValue >= length) {
+                break; //last pair was not terminated, ignore it
+            }
+
+            String name = new String(buffer, position, endOfName - position, StandardCharsets.US_ASCII);
+            options.put(name.toLowerCase(), new String(buffer, endOfName + 1, endOfValue - endOfName - 1, StandardCharsets.US_ASCII));
+            position = endOfValue + 1;
+        }
+        return options;
+    }
+
+    //index of the null byte that ends the string starting at position, or length if it is not terminated
+    private int endOfString(int position) {
+        while (position < length && buffer[position] != 0) {
+            position++;
+        }
+        return position;
+    }
+
+}
@@ -0,0 +1,229 @@
+package common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * The ReadAhead class reads a file in the background so that the next blocks are already in memory
+ * when the sender needs them, the read side counterpart of the WriteBehindSink. A reader fills a ring
+ * of reusable block buffers in file order while the blocks before them are on the network,
+ * so a slow disk (cold cache, network storage) and the round trips overlap instead of adding up.
+ * The sender takes the blocks in order and releases each one once it is acknowledged.
+ * The reads run as short tasks on a shared pool of READER_THREADS threads: a task reads until the ring
+ * is full and ends, and a released buffer starts the next one, so a transfer only holds a thread
+ * while it is actually reading and any number of transfers share the same few threads.
+ * The number of blocks read ahead adapts to the disk against the network: the sender takes windowSize
+ * blocks every round trip, so while one block is read it takes readTime * windowSize / RTT blocks, and
+ * that many (plus the one being read) are kept ahead of it, at least MIN_DEPTH and at most MAX_DEPTH.
+ * A file in the page cache is read one or two blocks ahead and a file on a slow share up to MAX_DEPTH.
+ * Buffers are only created when needed and dropped when the depth shrinks, so small and fast files stay small.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public class ReadAhead implements Closeable {
+
+    public static final int MIN_DEPTH = 2; //double buffering, one block read while the one before it is sent
+    public static final int MAX_DEPTH = TransferOptions.MAX_WINDOW_SIZE;
+    public static final int READER_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors()); //reads of all transfers at once
+
+    private static final ExecutorService READERS = Executors.newFixedThreadPool(READER_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "tftp-reader");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final ByteBuffer END = ByteBuffer.allocate(0); //queued by the reader at a failure
+
+    private final InputStream input;
+    private final int blockSize;
+    private final int windowSize; //blocks the sender holds until they are acknowledged
+    private final LongSupplier roundTripNanos; //smoothed round trip of the transfer, 0 before the first sample
+    private final BlockingQueue<ByteBuffer> free = new LinkedBlockingQueue<>(); //empty buffers, the reader stops when there are none
+    private final BlockingQueue<ByteBuffer> filled = new LinkedBlockingQueue<>(); //blocks read ahead, in file order
+    private final AtomicInteger allocated = new AtomicInteger(); //buffers in the ring, created by the reader and dropped by release
+    private final AtomicBoolean reading = new AtomicBoolean(); //a read task is queued or running, at most one per file
+    private final AtomicBoolean inputClosed = new AtomicBoolean();
+    private volatile int depth = MIN_DEPTH;
+    private volatile long readNanos; //average time to read a block, written by the reader
+    private volatile boolean endOfFile; //the last block or a failure has been queued
+    private volatile IOException failure; //error of the reader, reported by take
+    private volatile boolean closed;
+
+    /**
+     * This constructor starts reading a stream ahead of the sender
+     *
+     * @param input stream of the file, closed by the reader when it stops
+     * @param blockSize negotiated block size, the size of every buffer in the ring
+     * @param windowSize negotiated window size, the number of blocks the sender holds at once
+     * @param roundTripNanos smoothed round trip time of the transfer in nanoseconds, 0 while unknown
+     */
+    public ReadAhead(InputStream input, int blockSize, int windowSize, LongSupplier roundTripNanos) {
+        this.input = input;
+        this.blockSize = blockSize;
+        this.windowSize = windowSize;
+        this.roundTripNanos = roundTripNanos;
+
+        scheduleRead();
+    }
+
+    /**
+     * Takes the next block of the file, waiting for the reader if it has not been read yet.
+     * A block shorter than the block size (possibly empty) is the last one.
+     *
+     * @return buffer holding the block from index 0 to its limit, to be given back with release
+     * @throws IOException if the file could not be read or the thread was interrupted
+     */
+    public ByteBuffer take() throws IOException {
+        adaptDepth();
+        scheduleRead(); //a deeper ring may have room for more blocks
+        ByteBuffer block;
+        try {
+            block = filled.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading ahead");
+        }
+        if (block == END) {
+            filled.add(END); //every later take fails the same way
+            throw failure;
+        }
+        return block;
+    }
+
+    /**
+     * Gives a block taken before back to the ring, once it is no longer needed for retransmission.
+     *
+     * @param block buffer returned by take
+     */
+    public void release(ByteBuffer block) {
+        if (allocated.get() > windowSize + depth) {
+            allocated.decrementAndGet(); //the depth has shrunk, the buffer is left to the garbage collector
+        } else {
+            free.add(block);
+            scheduleRead();
+        }
+    }
+
+    /**
+     * Getter method for the number of blocks currently read ahead of the sender.
+     *
+     * @return the read-ahead depth
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Stops the reader, blocks read ahead and not taken are dropped. The stream is closed here
+     * unless a read is running, that read closes it when it ends.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (reading.compareAndSet(false, true)) {
+            closeInput();
+        }
+    }
+
+    //starts a read task unless one is queued or running, or there is nothing to read into
+    private void scheduleRead() {
+        if (closed || endOfFile || (free.isEmpty() && allocated.get() >= windowSize + depth)) {
+            return;
+        }
+        if (reading.compareAndSet(false, true)) {
+            READERS.execute(this::readSome);
+        }
+    }
+
+    //reads blocks while the ring has room, then gives the thread back to the pool
+    private void readSome() {
+        try {
+            while (!closed && !endOfFile) {
+                ByteBuffer buffer = freeBuffer();
+                if (buffer == null) {
+                    break; //ring full, the next release starts a new read
+                }
+
+                long start = System.nanoTime();
+                int size = readBlock(input, buffer.array());
+                long took = System.nanoTime() - start;
+                readNanos = readNanos == 0 ? took : (7 * readNanos + took) / 8;
+
+                buffer.clear().limit(size);
+                filled.add(buffer);
+                if (size < blockSize) {
+                    endOfFile = true; //a short (possibly empty) block ends the file
+                }
+            }
+        } catch (IOException ex) {
+            failure = ex;
+            endOfFile = true;
+            filled.add(END);
+        } finally {
+            reading.set(false);
+        }
+
+        if (closed || endOfFile) {
+            closeInput();
+        } else {
+            scheduleRead(); //a buffer released after the ring was found full
+        }
+    }
+
+    //a buffer for the next block, created while the ring is smaller than the window and the depth, null when it is full
+    private ByteBuffer freeBuffer() {
+        ByteBuffer buffer = free.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        if (allocated.get() < windowSize + depth) {
+            allocated.incrementAndGet();
+            return ByteBuffer.allocate(blockSize);
+        }
+        return null;
+    }
+
+    //blocks read ahead = blocks the sender takes while one is read, plus the one being read
+    private void adaptDepth() {
+        long rtt = roundTripNanos.getAsLong();
+        if (rtt <= 0 || readNanos == 0) {
+            return; //nothing measured yet, stay at MIN_DEPTH
+        }
+        long needed = (readNanos * windowSize + rtt - 1) / rtt + 1;
+        depth = (int) Math.max(MIN_DEPTH, Math.min(MAX_DEPTH, needed));
+    }
+
+    private void closeInput() {
+        if (inputClosed.compareAndSet(false, true)) {
+            try {
+                input.close();
+            } catch (IOException ex) {
+                Log.warn("Could not close the file read ahead: ", ex.getMessage());
+            }
+        }
+    }
+
+    //fills the buffer from the stream, only returns less than a full block at the end of the file
+    private static int readBlock(InputStream in, byte[] buffer) throws IOException {
+        int size = 0;
+        while (size < buffer.length) {
+            int read = in.read(buffer, size, buffer.length - size);
+            if (read == -1) {
+                break;
+            }
+            size += read;
+        }
+        return size;
+    }
+
+}
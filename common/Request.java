@@ -1,6 +1,8 @@
 
 package common;
 
+import java.util.Collections;
+import java.util.Map;
 
 /**
  * The Request class holds all the information for all the different types of packets that can occur
@@ -16,6 +18,7 @@ public class Request {
     private int blockNum;
     private int errorCode;
     private String errorMessage;
+    private Map<String, String> options = Collections.emptyMap();
     
     /**
      * This constructor is used when a request only requires an opcode and file name.
@@ -30,6 +33,22 @@ public class Request {
         this.data = null;
     }
 
+    /**
+     * This constructor is used for requests that carry options (RFC 2347).
+     * That is RRQ and WRQ packets with options appended and OACK packets, which have no file name.
+     * 
+     * @param opCode the opcode for this request
+     * @param fileName the file name for this request, null for an OACK
+     * @param options the options in the order they appeared in the packet
+     */
+    public Request(byte opCode, String fileName, Map<String, String> options){
+        
+        this.opCode = opCode;
+        this.fileName = fileName;
+        this.data = null;
+        this.options = options;
+    }
+
     /**
      * This constructor is used when a request only requires a block number and a data-holding section
      * 
@@ -140,6 +159,15 @@ public class Request {
     public String getErrorMessage() {
         return errorMessage;
     }
+
+    /**
+     * Getter method to get the options of a request
+     * 
+     * @return the options of a RRQ, WRQ or OACK, an empty map for any other packet
+     */
+    public Map<String, String> getOptions() {
+        return options;
+    }
     
     
     
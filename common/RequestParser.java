@@ -1,7 +1,10 @@
 
 package common;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * The RequestParser class identifies the type of a packet 
@@ -15,23 +18,25 @@ public class RequestParser {
     
     /**
      * parseRequest method is responsible for identifying the type of packet that as been received.
+     * Only the first length bytes are read, the buffer is usually reused and holds older packets after them.
+     * A request whose file name or mode, or an error whose message, is not null terminated is malformed.
      * 
      * @param buffer the incoming data from a packet in the form of a byte array
      * @param length the length of the byte array from the incoming packet
-     * @return a instance of the Request class with the parameters appropriate to the type of packet being processed
+     * @return a instance of the Request class with the parameters appropriate to the type of packet being processed, null if it is malformed
      */
     public Request parseRequest(byte[] buffer, int length) {
 
-        if (buffer.length < 4) {
+        if (length < 4) { //length of the packet, the buffer itself is usually bigger
             return null; //request is wrong
         }
 
-        if (buffer[1] == 1) { //RRQ
-            return new Request((byte) 1, extractFileName(buffer));
-        }
-
-        if (buffer[1] == 2) { //WRQ
-            return new Request((byte) 2, extractFileName(buffer));
+        if (buffer[1] == 1 || buffer[1] == 2) { //RRQ or WRQ
+            String fileName = extractFileName(buffer, length);
+            if (fileName == null || skipString(buffer, skipString(buffer, 2, length), length) > length) {
+                return null; //file name or mode not terminated
+            }
+            return new Request(buffer[1], fileName, extractOptions(buffer, length));
         }
 
         if (buffer[1] == 3) { //DATA
@@ -43,7 +48,12 @@ public class RequestParser {
         }
         
         if(buffer[1] == 5){ //ERROR
-            return new Request((byte) 5, buffer[3], extractErrorMessage(buffer));
+            String message = extractErrorMessage(buffer, length);
+            return message == null ? null : new Request((byte) 5, wordToInt(buffer, 2), message);
+        }
+
+        if(buffer[1] == 6){ //OACK
+            return new Request((byte) 6, null, readOptions(buffer, 2, length));
         }
 
         return null; // request is wrong
@@ -57,18 +67,56 @@ public class RequestParser {
      * Extracts the name of a file from the byte array within a packet
      *
      * @param buffer the byte array of data passed in from a the packet from which the file name is being extracted
-     * @return string representation of the file name that was extracted
+     * @param length number of valid bytes in the buffer
+     * @return string representation of the file name that was extracted, null if it is not null terminated within the packet
      */
-    public String extractFileName(byte[] buffer) {
-        int endOfFileName = 4;
+    public String extractFileName(byte[] buffer, int length) {
+        return extractString(buffer, 2, length); //file name starts straight after the 2 byte opcode
+    }
+
+    /**
+     * Extracts the options (RFC 2347) appended to a RRQ or WRQ.
+     * The file name and the mode are skipped, everything after them is read as
+     * null terminated name/value pairs.
+     *
+     * @param buffer byte array of data passed in from the request packet
+     * @param length number of valid bytes in the buffer
+     * @return the options in the order they appeared, empty if the request has none
+     */
+    public Map<String, String> extractOptions(byte[] buffer, int length) {
+        int position = skipString(buffer, 2, length); //file name
+        position = skipString(buffer, position, length); //mode
+
+        return readOptions(buffer, position, length);
+    }
+
+    private Map<String, String> readOptions(byte[] buffer, int position, int length) {
+        Map<String, String> options = new LinkedHashMap<>();
+
+        while (position < length) {
+            int endOfName = skipString(buffer, position, length);
+            int endOfValue = skipString(buffer, endOfName, length);
 
-        for (; endOfFileName < buffer.length; endOfFileName++) {
-            if (buffer[endOfFileName] == 0) {
-                break;
+            if (endOfValue > length) {
+                break; //last pair was not terminated, ignore it
             }
+
+            String name = new String(buffer, position, endOfName - position - 1, StandardCharsets.US_ASCII);
+            String value = new String(buffer, endOfName, endOfValue - endOfName - 1, StandardCharsets.US_ASCII);
+            options.put(name.toLowerCase(), value); //option names are case insensitive
+
+            position = endOfValue;
         }
 
-        return new String(buffer, 3, endOfFileName - 3);
+        return options;
+    }
+
+    //returns the index just after the null byte that terminates the string starting at position
+    private int skipString(byte[] buffer, int position, int length) {
+        while (position < length && buffer[position] != 0) {
+            position++;
+        }
+        return position + 1;
     }
 
     /**
@@ -76,18 +124,20 @@ public class RequestParser {
      * Works in exactly the same was as the extract file name method
      * 
      * @param buffer byte array of data passed in from the error packet
-     * @return a string representation of the error message contained inside the error packet
+     * @param length number of valid bytes in the buffer
+     * @return a string representation of the error message contained inside the error packet, null if it is not null terminated within the packet
      */
-    public String extractErrorMessage(byte[] buffer) {
-        int endOfFileName = 4;
+    public String extractErrorMessage(byte[] buffer, int length) {
+        return extractString(buffer, 4, length); //message starts after the opcode and the error code
+    }
 
-        for (; endOfFileName < buffer.length; endOfFileName++) {
-            if (buffer[endOfFileName] == 0) {
-                break;
-            }
+    //the string starting at position, null if no null byte ends it before length
+    private String extractString(byte[] buffer, int position, int length) {
+        int end = skipString(buffer, position, length) - 1;
+        if (end >= length) {
+            return null;
         }
-
-        return new String(buffer, 4, endOfFileName - 4);
+        return new String(buffer, position, end - position, StandardCharsets.US_ASCII);
     }
     
 }
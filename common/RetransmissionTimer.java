@@ -0,0 +1,160 @@
+package common;
+
+/**
+ * The RetransmissionTimer class decides how long a channel waits for a reply before
+ * it retransmits. It keeps a smoothed round trip time and its variance per session
+ * (Jacobson's algorithm as written up in RFC 6298) and derives the retransmission
+ * timeout (RTO) from them. Round trips that involved a retransmission are never
+ * sampled (Karn's algorithm) because the reply cannot be matched to one send.
+ * Each timeout doubles the RTO until the retry limit is reached.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public class RetransmissionTimer {
+
+    public static final int DEFAULT_INITIAL_TIMEOUT_MILLIS = 1000; //RFC 6298 initial RTO, used until the first sample
+    public static final int MIN_TIMEOUT_MILLIS = 50; //keeps scheduling and GC pauses on a LAN from causing spurious retransmissions
+    public static final int MAX_TIMEOUT_MILLIS = 60000;
+    public static final int DEFAULT_MAX_RETRIES = 5;
+
+    private static final double ALPHA = 1.0 / 8; //gain for the smoothed round trip time
+    private static final double BETA = 1.0 / 4; //gain for the round trip time variance
+
+    private final int maxRetries;
+    private int initialTimeout;
+    private double smoothedRtt;
+    private double rttVariance;
+    private boolean sampled;
+    private int timeout;
+    private int retries;
+    private long sentAt;
+    private boolean awaiting; //a packet was sent and its reply has not arrived yet
+    private boolean retransmitted;
+
+    /**
+     * This constructor creates a timer with the default initial timeout and retry limit
+     */
+    public RetransmissionTimer() {
+        this(DEFAULT_INITIAL_TIMEOUT_MILLIS, DEFAULT_MAX_RETRIES);
+    }
+
+    /**
+     * This constructor creates a timer with a given initial timeout and retry limit
+     *
+     * @param initialTimeout timeout in milliseconds used until the first round trip has been measured
+     * @param maxRetries number of retransmissions allowed for one packet before the transfer is given up
+     */
+    public RetransmissionTimer(int initialTimeout, int maxRetries) {
+        this.initialTimeout = clamp(initialTimeout);
+        this.timeout = this.initialTimeout;
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Changes the timeout used before the first round trip has been measured,
+     * for example when the timeout option (RFC 2349) has been negotiated.
+     *
+     * @param initialTimeout timeout in milliseconds
+     */
+    public void setInitialTimeout(int initialTimeout) {
+        this.initialTimeout = clamp(initialTimeout);
+        if (!sampled) {
+            timeout = this.initialTimeout;
+        }
+    }
+
+    /**
+     * Getter method for the current retransmission timeout.
+     *
+     * @return milliseconds to wait for a reply before retransmitting
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Getter method for how long a receiver stays after sending its final ack, answering a
+     * retransmission of the last window in case the ack was lost (RFC 1350 section 6). The sender
+     * retransmits once its own timeout expires, which is backed off after its own losses and may be
+     * well above this side's, so the receiver waits at least the initial (or negotiated) timeout.
+     *
+     * @return milliseconds to wait for a duplicate of the last window
+     */
+    public int getDallyTimeout() {
+        return Math.min(Math.max(2 * timeout, initialTimeout), MAX_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Getter method for the smoothed round trip time.
+     *
+     * @return smoothed round trip time in milliseconds, 0 if nothing was measured yet
+     */
+    public double getSmoothedRtt() {
+        return smoothedRtt;
+    }
+
+    /**
+     * Marks that a packet has just been sent and a reply is expected.
+     * For a window of blocks this is called for every block, so the round trip
+     * is measured from the last block of the window.
+     */
+    public void packetSent() {
+        sentAt = System.nanoTime();
+        awaiting = true;
+    }
+
+    /**
+     * Marks that a reply arrived. The round trip is only measured if the packet
+     * was never retransmitted (Karn), in that case the timeout is recalculated.
+     * After a retransmission the backed off timeout is kept until a clean sample is taken.
+     */
+    public void replyReceived() {
+        if (awaiting && !retransmitted) {
+            long rtt = System.nanoTime() - sentAt;
+            TransferMetrics.global().recordRtt(rtt);
+            sample(rtt / 1e6);
+            timeout = computeTimeout();
+        }
+        awaiting = false;
+        retransmitted = false;
+        retries = 0;
+    }
+
+    /**
+     * Called when the timeout expired without a reply. Doubles the timeout
+     * (exponential backoff) if another retransmission is allowed.
+     *
+     * @return true if the packet should be retransmitted, false if the retry limit has been reached
+     */
+    public boolean backoff() {
+        TransferMetrics.global().timeout();
+        if (retries >= maxRetries) {
+            return false;
+        }
+        retries++;
+        retransmitted = true;
+        timeout = Math.min(timeout * 2, MAX_TIMEOUT_MILLIS);
+        return true;
+    }
+
+    private void sample(double rtt) {
+        if (!sampled) { //first measurement, RFC 6298 section 2.2
+            smoothedRtt = rtt;
+            rttVariance = rtt / 2;
+            sampled = true;
+        } else {
+            rttVariance = (1 - BETA) * rttVariance + BETA * Math.abs(smoothedRtt - rtt);
+            smoothedRtt = (1 - ALPHA) * smoothedRtt + ALPHA * rtt;
+        }
+    }
+
+    private int computeTimeout() {
+        return clamp((int) Math.ceil(smoothedRtt + 4 * rttVariance));
+    }
+
+    private static int clamp(int millis) {
+        return Math.max(MIN_TIMEOUT_MILLIS, Math.min(millis, MAX_TIMEOUT_MILLIS));
+    }
+
+}
@@ -0,0 +1,50 @@
+package common;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.nio.ByteBuffer;
+
+/**
+ * The SocketTransport class is the DatagramTransport of a real network, every call goes
+ * straight to a DatagramSocket. When the socket belongs to a connected DatagramChannel
+ * blocks can be sent with gathering writes.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public class SocketTransport implements DatagramTransport {
+
+    private final DatagramSocket socket;
+
+    /**
+     * This constructor wraps a socket
+     *
+     * @param socket the socket datagrams are sent and received on
+     */
+    public SocketTransport(DatagramSocket socket) {
+        this.socket = socket;
+    }
+
+    @Override
+    public void send(DatagramPacket packet) throws IOException {
+        socket.send(packet);
+    }
+
+    @Override
+    public void receive(DatagramPacket packet, int timeoutMillis) throws IOException {
+        socket.setSoTimeout(timeoutMillis);
+        socket.receive(packet);
+    }
+
+    @Override
+    public boolean canGather() {
+        return socket.getChannel() != null && socket.isConnected();
+    }
+
+    @Override
+    public void send(ByteBuffer[] buffers) throws IOException {
+        socket.getChannel().write(buffers); //one datagram made of all buffers
+    }
+
+}
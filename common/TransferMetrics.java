@@ -0,0 +1,513 @@
+package common;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * The TransferMetrics class collects the counters and histograms of every transfer in the JVM:
+ * bytes sent and received, round trip times, timeouts, duplicate packets, errors by code, active sessions, queued
+ * packets, the sessions of the shared socket, the block cache, how long files take to open and how long packets
+ * wait for the BandwidthScheduler. Channels, event loop transfers and the retransmission
+ * timer report to the one global instance, every update is a LongAdder or histogram increment so
+ * it costs next to nothing on the hot path. The instance is registered as a JMX MBean
+ * (tftp:type=TransferMetrics) and can also print a snapshot line at a fixed period.
+ * The aggregate rate is computed by a sampler once every SAMPLE_SECONDS, so any number of readers
+ * (JMX clients, the snapshot line) see the same value without disturbing each other.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public class TransferMetrics implements TransferMetricsMBean {
+
+    public static final int SAMPLE_SECONDS = 1; //period of the aggregate rate
+
+    private static final ScheduledExecutorService SAMPLER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "tftp-metrics-sampler");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final TransferMetrics GLOBAL = register(new TransferMetrics());
+    private static final int ERROR_CODES = 9; //0 to 8, RFC 1350 and RFC 2347
+
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder started = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder duplicateAcks = new LongAdder(); //stale acks and OACKs ignored instead of answered
+    private final LongAdder duplicateData = new LongAdder(); //blocks received again and not written
+    private final LongAdder queueDepth = new LongAdder(); //packets queued for channels and transfers queued for event loops
+    private final LongAdder sessions = new LongAdder(); //clients of the shared socket with a transfer in the session table
+    private final LongAdder sessionsEvicted = new LongAdder();
+    private final LongAdder blockCacheHits = new LongAdder();
+    private final LongAdder blockCacheMisses = new LongAdder();
+    private final LongAdder blockCacheEvictions = new LongAdder();
+    private final LongAdder blockCacheBytes = new LongAdder();
+    private final AtomicLongArray errorsSent = new AtomicLongArray(ERROR_CODES);
+    private final AtomicLongArray errorsReceived = new AtomicLongArray(ERROR_CODES);
+    private final Histogram rtt = new Histogram(); //microseconds
+    private final Histogram fileOpen = new Histogram(); //microseconds
+    private final Histogram sessionThroughput = new Histogram(); //bytes per second of each finished transfer
+    private final Histogram pacingWait = new Histogram(); //microseconds
+    private volatile BandwidthScheduler scheduler; //null if the egress is not paced
+    private final Set<TransferStats> active = ConcurrentHashMap.newKeySet();
+    private long lastBytes; //at the previous sample, only used by the sampler
+    private long lastNanos = System.nanoTime();
+    private volatile long throughput; //bytes per second over the last sample period
+
+    /**
+     * Getter method for the instance every transfer reports to.
+     *
+     * @return the global metrics
+     */
+    public static TransferMetrics global() {
+        return GLOBAL;
+    }
+
+    private static TransferMetrics register(TransferMetrics metrics) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName("tftp:type=TransferMetrics"));
+        } catch (JMException | SecurityException ex) {
+            Log.warn("Could not register transfer metrics with JMX: ", ex.getMessage()); //metrics still work without JMX
+        }
+        SAMPLER.scheduleAtFixedRate(metrics::sampleThroughput, SAMPLE_SECONDS, SAMPLE_SECONDS, TimeUnit.SECONDS);
+        return metrics;
+    }
+
+    //the aggregate rate since the previous sample, the only writer of lastBytes, lastNanos and throughput
+    private void sampleThroughput() {
+        long bytes = bytesSent.sum() + bytesReceived.sum();
+        long now = System.nanoTime();
+        throughput = (long) ((bytes - lastBytes) * 1e9 / Math.max(1, now - lastNanos));
+        lastBytes = bytes;
+        lastNanos = now;
+    }
+
+    /**
+     * Starts the statistics of a transfer and counts it as active.
+     *
+     * @param fileName name of the file being transferred
+     * @param peer address of the other side
+     * @param sending true if this side sends the file, false if it receives it
+     * @return statistics to be updated by the transfer and passed to transferEnded
+     */
+    public TransferStats transferStarted(String fileName, Object peer, boolean sending) {
+        TransferStats stats = new TransferStats(fileName, String.valueOf(peer), sending);
+        started.increment();
+        active.add(stats);
+        return stats;
+    }
+
+    /**
+     * Ends the statistics of a transfer, records its throughput and stops counting it as active.
+     *
+     * @param stats statistics returned by transferStarted
+     * @param succeeded true if the whole file was transferred
+     */
+    public void transferEnded(TransferStats stats, boolean succeeded) {
+        if (!active.remove(stats)) {
+            return; //already ended
+        }
+        stats.end(succeeded);
+        Log.transfer(stats);
+        (succeeded ? completed : failed).increment();
+        if (succeeded) {
+            sessionThroughput.record(stats.getBytesPerSecond());
+        }
+    }
+
+    /**
+     * Counts payload bytes sent, for the aggregate and for one transfer.
+     *
+     * @param stats statistics of the transfer, null if it has none
+     * @param count number of bytes
+     */
+    public void bytesSent(TransferStats stats, long count) {
+        bytesSent.add(count);
+        if (stats != null) {
+            stats.addBytes(count);
+        }
+    }
+
+    /**
+     * Counts payload bytes received, for the aggregate and for one transfer.
+     *
+     * @param stats statistics of the transfer, null if it has none
+     * @param count number of bytes
+     */
+    public void bytesReceived(TransferStats stats, long count) {
+        bytesReceived.add(count);
+        if (stats != null) {
+            stats.addBytes(count);
+        }
+    }
+
+    /**
+     * Records a round trip time measured by a retransmission timer.
+     *
+     * @param nanos time from sending a packet to its reply
+     */
+    public void recordRtt(long nanos) {
+        rtt.record(nanos / 1000);
+    }
+
+    /**
+     * Records how long opening a file took.
+     *
+     * @param nanos time taken to open the file
+     */
+    public void recordFileOpen(long nanos) {
+        fileOpen.record(nanos / 1000);
+    }
+
+    /**
+     * Records how long a packet waited for the BandwidthScheduler before it was sent.
+     *
+     * @param nanos time from asking to send the packet to being allowed to
+     */
+    public void recordPacingWait(long nanos) {
+        pacingWait.record(nanos / 1000);
+    }
+
+    /**
+     * Setter method for the scheduler whose allocations getBandwidthAllocations reports.
+     *
+     * @param scheduler the scheduler pacing the egress, null for none
+     */
+    public void setScheduler(BandwidthScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Counts a reply that did not arrive within the retransmission timeout.
+     */
+    public void timeout() {
+        timeouts.increment();
+    }
+
+    /**
+     * Counts a stale duplicate acknowledgement that was ignored.
+     */
+    public void duplicateAck() {
+        duplicateAcks.increment();
+    }
+
+    /**
+     * Counts a DATA block that had already been received.
+     */
+    public void duplicateData() {
+        duplicateData.increment();
+    }
+
+    /**
+     * Counts a transfer refused because the server was at its session cap.
+     */
+    public void transferRejected() {
+        rejected.increment();
+    }
+
+    /**
+     * Counts an ERROR packet sent.
+     *
+     * @param errorCode error code of the packet
+     */
+    public void errorSent(int errorCode) {
+        errorsSent.incrementAndGet(Math.min(Math.max(errorCode, 0), ERROR_CODES - 1));
+    }
+
+    /**
+     * Counts an ERROR packet received.
+     *
+     * @param errorCode error code of the packet
+     */
+    public void errorReceived(int errorCode) {
+        errorsReceived.incrementAndGet(Math.min(Math.max(errorCode, 0), ERROR_CODES - 1));
+    }
+
+    /**
+     * Adjusts the number of packets or transfers waiting in a queue.
+     *
+     * @param change +1 when one is queued, -1 when one is taken
+     */
+    public void queued(int change) {
+        queueDepth.add(change);
+    }
+
+    /**
+     * Adjusts the number of clients the session table routes packets for.
+     *
+     * @param change number of sessions added, negative when sessions are removed
+     */
+    public void sessionsTracked(int change) {
+        sessions.add(change);
+    }
+
+    /**
+     * Counts sessions removed from the session table because they went idle.
+     *
+     * @param count number of sessions evicted
+     */
+    public void sessionsEvicted(int count) {
+        sessionsEvicted.add(count);
+    }
+
+    /**
+     * Counts a block served from a BlockCache without reading the file.
+     */
+    public void blockCacheHit() {
+        blockCacheHits.increment();
+    }
+
+    /**
+     * Counts a block a BlockCache had to read from the file.
+     */
+    public void blockCacheMiss() {
+        blockCacheMisses.increment();
+    }
+
+    /**
+     * Records a block added to a BlockCache and the blocks evicted to make room for it.
+     *
+     * @param bytes change of the memory held by cached blocks
+     * @param evicted number of blocks evicted
+     */
+    public void blockCacheChanged(long bytes, int evicted) {
+        blockCacheBytes.add(bytes);
+        blockCacheEvictions.add(evicted);
+    }
+
+    /**
+     * Starts printing a snapshot line to the console at a fixed period.
+     *
+     * @param periodSeconds time between two snapshots
+     */
+    public void startSnapshots(long periodSeconds) {
+        ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "tftp-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleAtFixedRate(() -> {
+            if (Log.isEnabled(Log.Level.INFO)) {
+                Log.info(getSnapshot()); //only built when it is printed
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    /**
+     * Getter method for the aggregate rate of all transfers over the last sample period.
+     * Reading it changes nothing, every caller sees the rate of the same SAMPLE_SECONDS.
+     *
+     * @return bytes sent and received per second
+     */
+    @Override
+    public long getThroughputBytesPerSecond() {
+        return throughput;
+    }
+
+    @Override
+    public long getTransfersStarted() {
+        return started.sum();
+    }
+
+    @Override
+    public long getTransfersCompleted() {
+        return completed.sum();
+    }
+
+    @Override
+    public long getTransfersFailed() {
+        return failed.sum();
+    }
+
+    @Override
+    public long getTransfersRejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public int getActiveSessions() {
+        return active.size();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public long getDuplicateAcks() {
+        return duplicateAcks.sum();
+    }
+
+    @Override
+    public long getDuplicateData() {
+        return duplicateData.sum();
+    }
+
+    @Override
+    public long getQueueDepth() {
+        return queueDepth.sum();
+    }
+
+    @Override
+    public long getSessionTableSize() {
+        return sessions.sum();
+    }
+
+    @Override
+    public long getSessionsEvicted() {
+        return sessionsEvicted.sum();
+    }
+
+    @Override
+    public long getBlockCacheHits() {
+        return blockCacheHits.sum();
+    }
+
+    @Override
+    public long getBlockCacheMisses() {
+        return blockCacheMisses.sum();
+    }
+
+    @Override
+    public long getBlockCacheEvictions() {
+        return blockCacheEvictions.sum();
+    }
+
+    @Override
+    public long getBlockCacheBytes() {
+        return blockCacheBytes.sum();
+    }
+
+    @Override
+    public long[] getErrorsSentByCode() {
+        return toArray(errorsSent);
+    }
+
+    @Override
+    public long[] getErrorsReceivedByCode() {
+        return toArray(errorsReceived);
+    }
+
+    @Override
+    public double getRttMeanMicros() {
+        return rtt.getMean();
+    }
+
+    @Override
+    public long getRttP50Micros() {
+        return rtt.getPercentile(50);
+    }
+
+    @Override
+    public long getRttP99Micros() {
+        return rtt.getPercentile(99);
+    }
+
+    @Override
+    public long getRttMaxMicros() {
+        return rtt.getMax();
+    }
+
+    @Override
+    public long getFileOpenP50Micros() {
+        return fileOpen.getPercentile(50);
+    }
+
+    @Override
+    public long getFileOpenP99Micros() {
+        return fileOpen.getPercentile(99);
+    }
+
+    @Override
+    public long getSessionThroughputP50() {
+        return sessionThroughput.getPercentile(50);
+    }
+
+    @Override
+    public long getSessionThroughputP99() {
+        return sessionThroughput.getPercentile(99);
+    }
+
+    @Override
+    public long getPacingWaitP50Micros() {
+        return pacingWait.getPercentile(50);
+    }
+
+    @Override
+    public long getPacingWaitP99Micros() {
+        return pacingWait.getPercentile(99);
+    }
+
+    /**
+     * Lists the egress allocation of the BandwidthScheduler, the global cap and the rate each client subnet got.
+     *
+     * @return one line for the global cap and one per client subnet, none if the egress is not paced
+     */
+    @Override
+    public String[] getBandwidthAllocations() {
+        BandwidthScheduler current = scheduler;
+        return current == null ? new String[0] : current.getAllocations();
+    }
+
+    /**
+     * Lists the transfers in progress with their current rate.
+     *
+     * @return one line per active transfer
+     */
+    @Override
+    public String[] getActiveTransfers() {
+        return active.stream().map(TransferStats::toString).toArray(String[]::new);
+    }
+
+    /**
+     * Describes the current state of all counters on one line.
+     *
+     * @return the snapshot line
+     */
+    @Override
+    public String getSnapshot() {
+        return "metrics active=" + getActiveSessions() + " started=" + getTransfersStarted() + " completed=" + getTransfersCompleted()
+                + " failed=" + getTransfersFailed() + " rejected=" + getTransfersRejected()
+                + " sent=" + getBytesSent() + "B received=" + getBytesReceived() + "B rate=" + getThroughputBytesPerSecond() + "B/s"
+                + " rttP50=" + getRttP50Micros() + "us rttP99=" + getRttP99Micros() + "us timeouts=" + getTimeouts()
+                + " dupAcks=" + getDuplicateAcks() + " dupData=" + getDuplicateData()
+                + " queued=" + getQueueDepth() + " sessions=" + getSessionTableSize() + " evicted=" + getSessionsEvicted()
+                + " cacheHits=" + getBlockCacheHits() + " cacheMisses=" + getBlockCacheMisses() + " cacheEvictions=" + getBlockCacheEvictions()
+                + " cached=" + getBlockCacheBytes() + "B"
+                + " openP99=" + getFileOpenP99Micros() + "us pacingP99=" + getPacingWaitP99Micros() + "us"
+                + " errorsSent=" + Arrays.toString(getErrorsSentByCode())
+                + " errorsReceived=" + Arrays.toString(getErrorsReceivedByCode());
+    }
+
+    private static long[] toArray(AtomicLongArray counts) {
+        long[] values = new long[counts.length()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = counts.get(i);
+        }
+        return values;
+    }
+
+}
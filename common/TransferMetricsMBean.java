@@ -0,0 +1,78 @@
+package common;
+
+/**
+ * The TransferMetricsMBean interface is the JMX view of TransferMetrics, registered as
+ * tftp:type=TransferMetrics. Times are in microseconds, rates in bytes per second.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public interface TransferMetricsMBean {
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    long getThroughputBytesPerSecond();
+
+    long getTransfersStarted();
+
+    long getTransfersCompleted();
+
+    long getTransfersFailed();
+
+    long getTransfersRejected();
+
+    int getActiveSessions();
+
+    long getTimeouts();
+
+    long getDuplicateAcks();
+
+    long getDuplicateData();
+
+    long getQueueDepth();
+
+    long getSessionTableSize();
+
+    long getSessionsEvicted();
+
+    long getBlockCacheHits();
+
+    long getBlockCacheMisses();
+
+    long getBlockCacheEvictions();
+
+    long getBlockCacheBytes();
+
+    long[] getErrorsSentByCode();
+
+    long[] getErrorsReceivedByCode();
+
+    double getRttMeanMicros();
+
+    long getRttP50Micros();
+
+    long getRttP99Micros();
+
+    long getRttMaxMicros();
+
+    long getFileOpenP50Micros();
+
+    long getFileOpenP99Micros();
+
+    long getSessionThroughputP50();
+
+    long getSessionThroughputP99();
+
+    long getPacingWaitP50Micros();
+
+    long getPacingWaitP99Micros();
+
+    String[] getBandwidthAllocations();
+
+    String[] getActiveTransfers();
+
+    String getSnapshot();
+
+}
@@ -0,0 +1,603 @@
+package common;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Adler32;
+
+/**
+ * The TransferOptions class holds the option values (RFC 2347) that apply to a
+ * single transfer. A client fills it in with the values it would like to use,
+ * the server negotiates it down to the values it is willing to accept and
+ * the client then applies whatever came back in the option acknowledgement (OACK).
+ * Any option that is not negotiated keeps its RFC 1350 default so plain lock-step
+ * transfers still work with peers that do not understand options.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public class TransferOptions {
+
+    public static final String BLOCK_SIZE = "blksize";
+    public static final String WINDOW_SIZE = "windowsize";
+    public static final String TIMEOUT = "timeout";
+    public static final String TRANSFER_SIZE = "tsize";
+    public static final String MULTICAST = "multicast"; //RFC 2090, the server answers with "address,port,master"
+    public static final String RANGE = "range"; //extension, "offset,length" of the part of the file a read request asks for
+    public static final String RESUME = "resume"; //extension, "offset,checksum" of the part of the file the receiver already holds
+
+    public static final int DEFAULT_BLOCK_SIZE = 512; //RFC 1350 block size
+    public static final int MIN_BLOCK_SIZE = 8; //RFC 2348 limits
+    public static final int MAX_BLOCK_SIZE = 65464;
+    public static final int DEFAULT_WINDOW_SIZE = 1; //1 = plain lock-step as in RFC 1350
+    public static final int MAX_WINDOW_SIZE = 64; //upper bound the server will agree to, each window block is buffered for retransmission
+    public static final int MIN_TIMEOUT = 1; //RFC 2349 limits, in seconds
+    public static final int MAX_TIMEOUT = 255;
+
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+    private int windowSize = DEFAULT_WINDOW_SIZE;
+    private int timeout = 0; //0 = not negotiated, the retransmission timer adapts on its own
+    private long transferSize = -1; //-1 = not negotiated
+    private boolean multicast; //request the file over multicast, negotiated by the server's multicast sessions and not by negotiate
+    private MulticastGroup multicastGroup; //group acknowledged by the server, null if multicast was not acknowledged
+    private long rangeOffset; //first byte of the file a read request transfers
+    private long rangeLength = -1; //-1 = not negotiated, the whole file
+    private boolean resume; //the receiver keeps a failed transfer in a part file to continue it later
+    private long resumeOffset; //bytes of the file the receiver already holds
+    private long resumeChecksum = 1; //Adler-32 of those bytes, 1 for none
+
+    /**
+     * This constructor creates a set of options with every value at its default
+     */
+    public TransferOptions() {
+    }
+
+    /**
+     * This constructor copies the values of another set of options
+     *
+     * @param other options to be copied
+     */
+    public TransferOptions(TransferOptions other) {
+        this.blockSize = other.blockSize;
+        this.windowSize = other.windowSize;
+        this.timeout = other.timeout;
+        this.transferSize = other.transferSize;
+        this.multicast = other.multicast;
+        this.multicastGroup = other.multicastGroup;
+        this.rangeOffset = other.rangeOffset;
+        this.rangeLength = other.rangeLength;
+        this.resume = other.resume;
+        this.resumeOffset = other.resumeOffset;
+        this.resumeChecksum = other.resumeChecksum;
+    }
+
+    /**
+     * Getter method for the block size.
+     *
+     * @return number of file bytes carried by a full data block
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Setter method for the block size (RFC 2348).
+     *
+     * @param blockSize number of file bytes per data block, between 8 and 65464
+     */
+    public void setBlockSize(int blockSize) {
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Block size out of range: " + blockSize);
+        }
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Getter method for the size of the largest packet of this transfer.
+     *
+     * @return block size plus the 4 byte DATA header
+     */
+    public int getPacketSize() {
+        return blockSize + 4;
+    }
+
+    /**
+     * Getter method for the window size.
+     *
+     * @return number of data blocks sent before an acknowledgement is expected
+     */
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * Setter method for the window size (RFC 7440).
+     *
+     * @param windowSize number of data blocks to send before waiting for an acknowledgement
+     */
+    public void setWindowSize(int windowSize) {
+        if (windowSize < 1 || windowSize > 65535) {
+            throw new IllegalArgumentException("Window size out of range: " + windowSize);
+        }
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * Getter method for the timeout.
+     *
+     * @return timeout in seconds (RFC 2349), 0 if it was not negotiated
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Setter method for the timeout (RFC 2349). The value is used as the initial
+     * retransmission timeout, the timer adapts to the measured round trip time after that.
+     *
+     * @param timeout timeout in seconds between 1 and 255, or 0 to leave it out
+     */
+    public void setTimeout(int timeout) {
+        if (timeout != 0 && (timeout < MIN_TIMEOUT || timeout > MAX_TIMEOUT)) {
+            throw new IllegalArgumentException("Timeout out of range: " + timeout);
+        }
+        this.timeout = timeout;
+    }
+
+    /**
+     * Getter method for the transfer size.
+     *
+     * @return size of the file in bytes (RFC 2349), -1 if it was not negotiated
+     */
+    public long getTransferSize() {
+        return transferSize;
+    }
+
+    /**
+     * Setter method for the transfer size (RFC 2349). A client sends 0 in a RRQ
+     * to ask the server for the file size, and the real size in a WRQ.
+     *
+     * @param transferSize size in bytes, or -1 to leave it out
+     */
+    public void setTransferSize(long transferSize) {
+        if (transferSize < -1) {
+            throw new IllegalArgumentException("Transfer size out of range: " + transferSize);
+        }
+        this.transferSize = transferSize;
+    }
+
+    /**
+     * Getter method for the multicast option.
+     *
+     * @return true if read requests ask for the file over multicast (RFC 2090)
+     */
+    public boolean isMulticast() {
+        return multicast;
+    }
+
+    /**
+     * Setter method for the multicast option (RFC 2090). It only applies to read requests,
+     * the option is sent without a value and the server answers with the group to join.
+     *
+     * @param multicast true to ask for the file over multicast
+     */
+    public void setMulticast(boolean multicast) {
+        this.multicast = multicast;
+    }
+
+    /**
+     * Getter method for the multicast group acknowledged by the server.
+     *
+     * @return the group and master flag of the last OACK, null if it did not acknowledge multicast
+     */
+    public MulticastGroup getMulticastGroup() {
+        return multicastGroup;
+    }
+
+    /**
+     * Getter method for the first byte of the range.
+     *
+     * @return offset in the file of the first byte transferred, 0 if no range was negotiated
+     */
+    public long getRangeOffset() {
+        return rangeOffset;
+    }
+
+    /**
+     * Getter method for the length of the range.
+     *
+     * @return number of bytes transferred from the offset on, -1 if no range was negotiated
+     */
+    public long getRangeLength() {
+        return rangeLength;
+    }
+
+    /**
+     * Checks whether a read request transfers only a part of the file.
+     *
+     * @return true if a range was set or acknowledged
+     */
+    public boolean hasRange() {
+        return rangeLength >= 0;
+    }
+
+    /**
+     * Setter method for the range option. It only applies to read requests: the server sends the
+     * bytes from offset to offset + length as if they were the whole file, so block 1 carries the byte
+     * at the offset and a short block ends the range. Servers that do not know the option leave it out
+     * of their OACK and send the whole file.
+     *
+     * @param offset offset in the file of the first byte
+     * @param length number of bytes, or -1 to leave the option out
+     */
+    public void setRange(long offset, long length) {
+        if (offset < 0 || length < -1) {
+            throw new IllegalArgumentException("Range out of range: " + offset + "," + length);
+        }
+        this.rangeOffset = length < 0 ? 0 : offset;
+        this.rangeLength = length;
+    }
+
+    /**
+     * Getter method for the resume option.
+     *
+     * @return true if the receiver writes the file into a part file that is kept if the transfer fails
+     */
+    public boolean isResume() {
+        return resume;
+    }
+
+    /**
+     * Setter method for the resume option. The receiver of the file states how many bytes of it
+     * it already holds and the Adler-32 checksum of them: the client in a RRQ, the server in the
+     * OACK of a WRQ. The sender checks the checksum against its own file and continues after those
+     * bytes, so block 1 carries the byte at the offset. A receiver holding nothing states 0,1.
+     *
+     * @param resume true to ask for the option
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+        if (!resume) {
+            setResumePoint(0, 1);
+        }
+    }
+
+    /**
+     * Getter method for the resume offset.
+     *
+     * @return number of bytes the receiver already holds, the transfer starts after them
+     */
+    public long getResumeOffset() {
+        return resumeOffset;
+    }
+
+    /**
+     * Getter method for the resume checksum.
+     *
+     * @return Adler-32 checksum of the bytes the receiver already holds
+     */
+    public long getResumeChecksum() {
+        return resumeChecksum;
+    }
+
+    /**
+     * Sets how much of the file the receiver already holds, sent with the resume option.
+     *
+     * @param offset number of bytes held
+     * @param checksum Adler-32 checksum of those bytes, see prefixChecksum
+     */
+    public void setResumePoint(long offset, long checksum) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("Resume offset out of range: " + offset);
+        }
+        this.resumeOffset = offset;
+        this.resumeChecksum = checksum;
+    }
+
+    /**
+     * Computes the Adler-32 checksum of the start of a file, as stated with the resume option.
+     *
+     * @param file the file
+     * @param length number of bytes from the start of the file
+     * @return the checksum, or -1 if the file is shorter than length
+     * @throws IOException if the file cannot be read
+     */
+    public static long prefixChecksum(File file, long length) throws IOException {
+        Adler32 checksum = new Adler32();
+        byte[] buffer = new byte[64 * 1024];
+        long remaining = length;
+        try (InputStream input = new FileInputStream(file)) {
+            while (remaining > 0) {
+                int read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) {
+                    return -1;
+                }
+                checksum.update(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+        return checksum.getValue();
+    }
+
+    /**
+     * Builds the options that a client should append to its RRQ or WRQ.
+     * Options still at their default value are left out so that a request
+     * without any changed option is a plain RFC 1350 request.
+     *
+     * @return map of option names to values, in the order they should be written
+     */
+    public Map<String, String> toRequestOptions() {
+        Map<String, String> requested = new LinkedHashMap<>();
+
+        if (blockSize != DEFAULT_BLOCK_SIZE) {
+            requested.put(BLOCK_SIZE, Integer.toString(blockSize));
+        }
+        if (windowSize != DEFAULT_WINDOW_SIZE) {
+            requested.put(WINDOW_SIZE, Integer.toString(windowSize));
+        }
+        if (timeout != 0) {
+            requested.put(TIMEOUT, Integer.toString(timeout));
+        }
+        if (transferSize >= 0) {
+            requested.put(TRANSFER_SIZE, Long.toString(transferSize));
+        }
+        if (multicast) {
+            requested.put(MULTICAST, ""); //empty in the request, the server fills in the group
+        }
+        if (rangeLength >= 0) {
+            requested.put(RANGE, rangeOffset + "," + rangeLength);
+        }
+        if (resume) {
+            requested.put(RESUME, resumeOffset + "," + resumeChecksum);
+        }
+
+        return requested;
+    }
+
+    /**
+     * Server side negotiation. Every option the server understands is clamped to
+     * what the server supports and stored in this instance. Unknown or malformed
+     * options are ignored as required by RFC 2347.
+     *
+     * @param requested options read from the incoming RRQ or WRQ
+     * @return the accepted options that should be sent back in an OACK, empty if none were accepted
+     */
+    public Map<String, String> negotiate(Map<String, String> requested) {
+        Map<String, String> accepted = new LinkedHashMap<>();
+
+        for (Map.Entry<String, String> option : requested.entrySet()) {
+            String name = option.getKey().toLowerCase();
+            long value = parseValue(option.getValue());
+
+            if (name.equals(BLOCK_SIZE) && value >= MIN_BLOCK_SIZE) {
+                blockSize = (int) Math.min(value, MAX_BLOCK_SIZE);
+                accepted.put(BLOCK_SIZE, Integer.toString(blockSize));
+            } else if (name.equals(WINDOW_SIZE) && value >= 1) {
+                windowSize = (int) Math.min(value, MAX_WINDOW_SIZE);
+                accepted.put(WINDOW_SIZE, Integer.toString(windowSize));
+            } else if (name.equals(TIMEOUT) && value >= MIN_TIMEOUT && value <= MAX_TIMEOUT) {
+                timeout = (int) value; //RFC 2349 does not allow the server to change the timeout, only to accept or ignore it
+                accepted.put(TIMEOUT, Integer.toString(timeout));
+            } else if (name.equals(TRANSFER_SIZE) && value >= 0) {
+                transferSize = value; //for a RRQ the server replaces this with the real file size
+                accepted.put(TRANSFER_SIZE, Long.toString(transferSize));
+            }
+        }
+
+        return accepted;
+    }
+
+    /**
+     * Answers the tsize option of a read request (RFC 2349) with the real size of the file.
+     * If the file does not exist the option is dropped and the transfer fails with the usual file not found error.
+     *
+     * @param accepted options that will be sent in the OACK, updated in place
+     * @param file the file being read
+     */
+    public void acceptTransferSize(Map<String, String> accepted, File file) {
+        if (!accepted.containsKey(TRANSFER_SIZE)) {
+            return;
+        }
+
+        if (file.isFile()) {
+            transferSize = file.length();
+            accepted.put(TRANSFER_SIZE, Long.toString(transferSize));
+        } else {
+            transferSize = -1;
+            accepted.remove(TRANSFER_SIZE);
+        }
+    }
+
+    /**
+     * Answers the range option of a read request. The option is not part of negotiate because it
+     * changes what the DATA blocks carry, so only servers that can send a part of a file ask for it.
+     * The range is cut to the end of the file, if the file does not exist or the option is malformed
+     * it is dropped and the whole file is sent.
+     *
+     * @param requested options read from the RRQ
+     * @param accepted options that will be sent in the OACK, updated in place
+     * @param file the file being read
+     */
+    public void acceptRange(Map<String, String> requested, Map<String, String> accepted, File file) {
+        rangeOffset = 0;
+        rangeLength = -1;
+
+        long[] range = parseRange(requestedValue(requested, RANGE));
+        if (range == null || !file.isFile()) {
+            return;
+        }
+
+        long size = file.length();
+        rangeOffset = Math.min(range[0], size);
+        rangeLength = Math.min(range[1], size - rangeOffset);
+        accepted.put(RANGE, rangeOffset + "," + rangeLength);
+    }
+
+    /**
+     * Answers the resume option of a read request. If the client's checksum matches the start of the
+     * file the option is acknowledged unchanged and the rest of the file after the offset is sent, as a range.
+     * Otherwise the option is dropped, the whole file is sent and the client starts its part file again.
+     * A range asked for in the same request takes precedence. The check reads the file up to the offset
+     * the client chose, so it belongs on the transfer's own thread and never on a thread that receives for other transfers.
+     *
+     * @param requested options read from the RRQ
+     * @param accepted options that will be sent in the OACK, updated in place
+     * @param file the file being read
+     * @throws IOException if the file cannot be read to check the checksum
+     */
+    public void acceptReadResume(Map<String, String> requested, Map<String, String> accepted, File file) throws IOException {
+        resume = false;
+        long[] held = parseRange(requestedValue(requested, RESUME));
+        if (held == null || hasRange() || !file.isFile() || held[0] > file.length()) {
+            return;
+        }
+
+        if (prefixChecksum(file, held[0]) == held[1]) {
+            resume = true;
+            setResumePoint(held[0], held[1]);
+            rangeOffset = held[0];
+            rangeLength = file.length() - held[0];
+            accepted.put(RESUME, held[0] + "," + held[1]);
+        }
+    }
+
+    /**
+     * Answers the resume option of a write request with what the server already holds of the file,
+     * the part file left behind by an earlier write request that failed (0,1 if there is none).
+     * The client checks the checksum against its own file and sends the rest. The part file is read
+     * whole, so like acceptReadResume this belongs on the transfer's own thread.
+     *
+     * @param requested options read from the WRQ
+     * @param accepted options that will be sent in the OACK, updated in place
+     * @param partFile the part file of the file being written
+     * @throws IOException if the part file cannot be read
+     */
+    public void acceptWriteResume(Map<String, String> requested, Map<String, String> accepted, File partFile) throws IOException {
+        resume = requestedValue(requested, RESUME) != null;
+        if (!resume) {
+            return;
+        }
+
+        long held = partFile.isFile() ? partFile.length() : 0;
+        setResumePoint(held, held == 0 ? 1 : prefixChecksum(partFile, held));
+        accepted.put(RESUME, resumeOffset + "," + resumeChecksum);
+    }
+
+    /**
+     * Client side handling of an OACK. Only options that the server acknowledged
+     * are applied, everything else falls back to the default value.
+     * Every option is checked before anything is applied. An option the client did not request, a malformed or out of range value, a block size
+     * or window size larger than the one requested (the server may only lower them, RFC 2348 and RFC 7440)
+     * or a timeout other than the one requested (RFC 2349) refuses the whole OACK, and the client
+     * then ends the transfer with error 8 as RFC 2347 asks.
+     *
+     * @param acknowledged options read from the OACK packet
+     * @throws IllegalArgumentException if the OACK is refused, this instance is left unchanged
+     */
+    public void applyAcknowledged(Map<String, String> acknowledged) {
+        checkAcknowledged(acknowledged);
+
+        blockSize = DEFAULT_BLOCK_SIZE;
+        windowSize = DEFAULT_WINDOW_SIZE;
+        timeout = 0;
+        transferSize = -1;
+        multicast = false;
+        multicastGroup = null;
+        rangeOffset = 0;
+        rangeLength = -1;
+        boolean resumeRequested = resume;
+        setResume(false);
+
+        for (Map.Entry<String, String> option : acknowledged.entrySet()) {
+            String name = option.getKey().toLowerCase();
+            long value = parseValue(option.getValue());
+
+            if (name.equals(BLOCK_SIZE) && value >= MIN_BLOCK_SIZE) {
+                setBlockSize((int) value);
+            } else if (name.equals(WINDOW_SIZE) && value >= 1) {
+                setWindowSize((int) value);
+            } else if (name.equals(TIMEOUT) && value >= MIN_TIMEOUT) {
+                setTimeout((int) value);
+            } else if (name.equals(TRANSFER_SIZE) && value >= 0) {
+                setTransferSize(value);
+            } else if (name.equals(MULTICAST)) {
+                multicastGroup = MulticastGroup.parse(option.getValue());
+                multicast = multicastGroup != null;
+            } else if (name.equals(RANGE)) {
+                long[] range = parseRange(option.getValue());
+                if (range != null) {
+                    setRange(range[0], range[1]);
+                }
+            } else if (name.equals(RESUME)) {
+                long[] held = parseRange(option.getValue());
+                if (held != null) {
+                    resume = true;
+                    setResumePoint(held[0], held[1]);
+                }
+            }
+        }
+
+        if (resumeRequested && !resume) {
+            resume = true; //not acknowledged, the file is received from the start but still into the part file
+        }
+    }
+
+    //refuses an OACK with options or values this client did not ask for, compared against the request still held
+    private void checkAcknowledged(Map<String, String> acknowledged) {
+        Map<String, String> requested = toRequestOptions();
+        for (Map.Entry<String, String> option : acknowledged.entrySet()) {
+            String name = option.getKey().toLowerCase();
+            long value = parseValue(option.getValue());
+
+            if (!requested.containsKey(name)) {
+                throw new IllegalArgumentException("Option not requested: " + option.getKey()); //RFC 2347, the server may only answer what was asked
+            } else if (name.equals(BLOCK_SIZE) && (value < MIN_BLOCK_SIZE || value > blockSize)) {
+                throw new IllegalArgumentException("Block size not acceptable: " + option.getValue());
+            } else if (name.equals(WINDOW_SIZE) && (value < 1 || value > windowSize)) {
+                throw new IllegalArgumentException("Window size not acceptable: " + option.getValue());
+            } else if (name.equals(TIMEOUT) && (timeout == 0 || value != timeout)) {
+                throw new IllegalArgumentException("Timeout not acceptable: " + option.getValue());
+            } else if (name.equals(TRANSFER_SIZE) && value < 0) {
+                throw new IllegalArgumentException("Transfer size not acceptable: " + option.getValue());
+            } else if ((name.equals(RANGE) || name.equals(RESUME)) && parseRange(option.getValue()) == null) {
+                throw new IllegalArgumentException("Malformed " + name + ": " + option.getValue());
+            }
+        }
+    }
+
+    //value of an option of a request, the names are not case sensitive
+    private static String requestedValue(Map<String, String> requested, String name) {
+        for (Map.Entry<String, String> option : requested.entrySet()) {
+            if (option.getKey().equalsIgnoreCase(name)) {
+                return option.getValue();
+            }
+        }
+        return null;
+    }
+
+    //"offset,length" or "offset,checksum" with both values not negative, null if malformed
+    private static long[] parseRange(String value) {
+        if (value == null) {
+            return null;
+        }
+        String[] parts = value.split(",");
+        if (parts.length != 2) {
+            return null;
+        }
+        long offset = parseValue(parts[0]);
+        long length = parseValue(parts[1]);
+        return offset < 0 || length < 0 ? null : new long[]{offset, length};
+    }
+
+    private static long parseValue(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException ex) {
+            return -1; //malformed values are treated as if the option was never sent
+        }
+    }
+
+}
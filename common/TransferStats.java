@@ -0,0 +1,180 @@
+package common;
+
+/**
+ * The TransferStats class counts what happens during one transfer: the bytes moved, the
+ * retransmissions and how long it has been running. It is written by the thread running the
+ * transfer and may be read at any time by TransferMetrics to list the transfers in progress.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public class TransferStats {
+
+    private final String fileName;
+    private final String peer;
+    private final boolean sending;
+    private final long startNanos = System.nanoTime();
+    private volatile long bytes; //only written by the transfer's own thread
+    private volatile int retransmissions;
+    private volatile long endNanos;
+    private volatile long firstBlockNanos; //System.nanoTime() when the first block arrived or was acknowledged, 0 before
+    private volatile boolean succeeded;
+
+    /**
+     * This constructor starts the clock of a transfer
+     *
+     * @param fileName name of the file being transferred
+     * @param peer address of the other side
+     * @param sending true if this side sends the file, false if it receives it
+     */
+    public TransferStats(String fileName, String peer, boolean sending) {
+        this.fileName = fileName;
+        this.peer = peer;
+        this.sending = sending;
+    }
+
+    /**
+     * Counts payload bytes sent or received.
+     *
+     * @param count number of bytes
+     */
+    public void addBytes(long count) {
+        bytes += count;
+    }
+
+    /**
+     * Counts one retransmission of a packet or a window.
+     */
+    public void addRetransmission() {
+        retransmissions++;
+    }
+
+    /**
+     * Marks that the first block of the file arrived (receiving) or was acknowledged (sending),
+     * only the first call counts.
+     */
+    public void firstBlock() {
+        if (firstBlockNanos == 0) {
+            firstBlockNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Adds the bytes and retransmissions of a part of this transfer, e.g. one range of a parallel download.
+     * The first block of the part becomes the first block of this transfer if it came earlier.
+     *
+     * @param part statistics of a part that has ended
+     */
+    public void add(TransferStats part) {
+        bytes += part.bytes;
+        retransmissions += part.retransmissions;
+        if (part.firstBlockNanos != 0 && (firstBlockNanos == 0 || part.firstBlockNanos - firstBlockNanos < 0)) {
+            firstBlockNanos = part.firstBlockNanos;
+        }
+    }
+
+    /**
+     * Stops the clock, called once by TransferMetrics when the transfer ends.
+     *
+     * @param succeeded true if the whole file was transferred
+     */
+    void end(boolean succeeded) {
+        this.succeeded = succeeded;
+        this.endNanos = System.nanoTime();
+    }
+
+    /**
+     * Getter method for the file name.
+     *
+     * @return name of the file being transferred
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * Getter method for the peer.
+     *
+     * @return address of the other side
+     */
+    public String getPeer() {
+        return peer;
+    }
+
+    /**
+     * Getter method for the direction.
+     *
+     * @return true if this side sends the file, false if it receives it
+     */
+    public boolean isSending() {
+        return sending;
+    }
+
+    /**
+     * Getter method for the payload bytes moved so far.
+     *
+     * @return number of bytes
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Getter method for the number of retransmissions.
+     *
+     * @return retransmissions so far
+     */
+    public int getRetransmissions() {
+        return retransmissions;
+    }
+
+    /**
+     * Getter method for the outcome.
+     *
+     * @return true if the transfer has ended with the whole file transferred
+     */
+    public boolean isSucceeded() {
+        return succeeded;
+    }
+
+    /**
+     * Getter method for the running time.
+     *
+     * @return nanoseconds from the start until the end, or until now if the transfer is still running
+     */
+    public long getDurationNanos() {
+        long end = endNanos;
+        return (end != 0 ? end : System.nanoTime()) - startNanos;
+    }
+
+    /**
+     * Getter method for the time of the first block.
+     *
+     * @return System.nanoTime() value when the first block arrived or was acknowledged, 0 if it never did
+     */
+    public long getFirstBlockNanos() {
+        return firstBlockNanos;
+    }
+
+    /**
+     * Getter method for the throughput.
+     *
+     * @return bytes per second over the running time
+     */
+    public long getBytesPerSecond() {
+        long nanos = Math.max(1, getDurationNanos());
+        return (long) (bytes * 1e9 / nanos);
+    }
+
+    /**
+     * Describes the transfer on one line.
+     *
+     * @return file, peer, direction, bytes, duration, rate and retransmissions
+     */
+    @Override
+    public String toString() {
+        return "file=" + fileName + " peer=" + peer +  " dir=" + (sending ? "send" : "receive") + " bytes=" + bytes
+                + " ms=" + getDurationNanos() / 1_000_000 + " rate=" + getBytesPerSecond() + "B/s retries=" + retransmissions;
+    }
+
+}
@@ -0,0 +1,413 @@
+package common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The WriteBehindSink class writes a received file in the background so that a block can be
+ * acknowledged as soon as it has been copied into memory. Blocks are copied into a ring of
+ * reusable buffers and a background writer takes every block waiting in the ring and writes
+ * them to the file with one gathering FileChannel write. When the ring is full the receiver waits
+ * for the writer, so a slow disk slows the transfer down instead of filling the memory.
+ * The writes run as short tasks on a shared pool of WRITER_THREADS threads, a task writes what is
+ * waiting and ends, so a sink only holds a thread while it is writing. The direct buffers of the ring
+ * come from the DirectBufferPool and go back to it when the sink is committed or closed.
+ * The file is written under a temporary name in the same directory and only renamed to its
+ * final name by commit, so a failed transfer never leaves a truncated file behind.
+ * A sink can also write one range of a file that several sinks share (a parallel download),
+ * it then writes at its own positions and leaves opening, renaming and closing the file to its owner.
+ * A resumable sink writes into the part file of its target instead, appending after the bytes an
+ * earlier transfer left there, and keeps the part file when it is aborted so it can be resumed again.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public class WriteBehindSink implements Closeable {
+
+    public static final int DEFAULT_RING_BYTES = 1024 * 1024; //per transfer, the number of blocks follows from the block size
+    public static final int MIN_RING_BLOCKS = 4;
+    public static final int MAX_RING_BLOCKS = 64;
+    public static final int WRITER_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors()); //writes of all transfers at once
+
+    /**
+     * When the written data is forced to the disk.
+     */
+    public enum FsyncPolicy {
+        /** never, the operating system writes the file back when it likes */
+        NONE,
+        /** once before the file is renamed to its final name */
+        ON_COMMIT,
+        /** after every batch the writer writes, and before the rename */
+        EVERY_BATCH
+    }
+
+    private static final ExecutorService WRITERS = Executors.newFixedThreadPool(WRITER_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "tftp-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final ByteBuffer END = ByteBuffer.allocate(0); //queued by commit and abort to stop the writer
+
+    private final Path target; //null when writing a range of a shared file
+    private final Path temp;
+    private final boolean resumable; //the temporary file is the part file and survives an abort
+    private final FileChannel file;
+    private long position; //next position in a shared file, only used by the writer
+    private final FsyncPolicy fsyncPolicy;
+    private final BlockingQueue<ByteBuffer> free; //empty buffers, taking one blocks while the ring is full
+    private final int blockSize;
+    private final int ringBlocks;
+    private int allocated; //buffers of the ring created so far, they are only created when needed so small files stay small
+    private final BlockingQueue<ByteBuffer> filled; //blocks waiting for the writer, in file order
+    private final AtomicBoolean writing = new AtomicBoolean(); //a write task is queued or running, at most one per sink
+    private final ArrayBlockingQueue<Boolean> done = new ArrayBlockingQueue<>(1); //the writer has stopped
+    private volatile IOException failure; //first write error of the writer, reported by the next write or commit
+    private boolean closed;
+
+    /**
+     * This constructor creates a sink with a ring of about DEFAULT_RING_BYTES
+     *
+     * @param fileName final name of the file
+     * @param blockSize negotiated block size, the size of every buffer in the ring
+     * @param fsyncPolicy when written data is forced to the disk
+     * @throws IOException if the temporary file cannot be created
+     */
+    public WriteBehindSink(String fileName, int blockSize, FsyncPolicy fsyncPolicy) throws IOException {
+        this(fileName, blockSize, Math.max(MIN_RING_BLOCKS, Math.min(MAX_RING_BLOCKS, DEFAULT_RING_BYTES / blockSize)), fsyncPolicy);
+    }
+
+    /**
+     * This constructor creates the temporary file, the writer starts with the first block
+     *
+     * @param fileName final name of the file
+     * @param blockSize negotiated block size, the size of every buffer in the ring
+     * @param ringBlocks number of blocks the ring holds
+     * @param fsyncPolicy when written data is forced to the disk
+     * @throws IOException if the temporary file cannot be created
+     */
+    public WriteBehindSink(String fileName, int blockSize, int ringBlocks, FsyncPolicy fsyncPolicy) throws IOException {
+        this.target = Paths.get(fileName).toAbsolutePath();
+        this.temp = Files.createTempFile(target.getParent(), "." + target.getFileName(), ".part"); //same directory so the rename is atomic
+        this.resumable = false;
+        this.file = FileChannel.open(temp, StandardOpenOption.WRITE);
+        this.fsyncPolicy = fsyncPolicy;
+        this.blockSize = blockSize;
+        this.ringBlocks = ringBlocks;
+        this.free = new ArrayBlockingQueue<>(ringBlocks);
+        this.filled = new ArrayBlockingQueue<>(ringBlocks + 1); //room for END when the ring is full
+    }
+
+    /**
+     * This constructor creates a resumable sink. The part file
+     * (see partFile) is cut to the offset and blocks are appended from there on, anything an earlier
+     * transfer wrote after the offset is dropped.
+     *
+     * @param fileName final name of the file
+     * @param blockSize negotiated block size, the size of every buffer in the ring
+     * @param fsyncPolicy when written data is forced to the disk
+     * @param resumeOffset number of bytes of the part file that are kept, 0 to start it again
+     * @throws IOException if the part file cannot be opened or is shorter than the offset
+     */
+    public WriteBehindSink(String fileName, int blockSize, FsyncPolicy fsyncPolicy, long resumeOffset) throws IOException {
+        this.target = Paths.get(fileName).toAbsolutePath();
+        this.temp = partFile(fileName);
+        this.resumable = true;
+        this.file = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (file.size() < resumeOffset) {
+            file.close();
+            throw new IOException("Part file " + temp + " is shorter than the resume offset " + resumeOffset);
+        }
+        file.truncate(resumeOffset);
+        file.position(resumeOffset); //the gathering writes append from here
+        this.fsyncPolicy = fsyncPolicy;
+        this.blockSize = blockSize;
+        this.ringBlocks = Math.max(MIN_RING_BLOCKS, Math.min(MAX_RING_BLOCKS, DEFAULT_RING_BYTES / blockSize));
+        this.free = new ArrayBlockingQueue<>(ringBlocks);
+        this.filled = new ArrayBlockingQueue<>(ringBlocks + 1);
+    }
+
+    /**
+     * Getter method for the part file a resumable sink writes a file into.
+     *
+     * @param fileName final name of the file
+     * @return hidden file next to the final one, the same for every transfer of the file
+     */
+    public static Path partFile(String fileName) {
+        Path target = Paths.get(fileName).toAbsolutePath();
+        return target.resolveSibling("." + target.getFileName() + ".part");
+    }
+
+    /**
+     * This constructor creates a sink that writes a range of a file shared with other sinks.
+     * Blocks are written with positional writes from the offset on,
+     * commit only waits for them and the file is never closed or renamed by the sink.
+     *
+     * @param file open file, written but not closed by this sink
+     * @param offset position in the file of the first byte written
+     * @param blockSize negotiated block size, the size of every buffer in the ring
+     * @param fsyncPolicy when written data is forced to the disk
+     */
+    public WriteBehindSink(FileChannel file, long offset, int blockSize, FsyncPolicy fsyncPolicy) {
+        this.target = null;
+        this.temp = null;
+        this.resumable = false;
+        this.file = file;
+        this.position = offset;
+        this.fsyncPolicy = fsyncPolicy;
+        this.blockSize = blockSize;
+        this.ringBlocks = Math.max(MIN_RING_BLOCKS, Math.min(MAX_RING_BLOCKS, DEFAULT_RING_BYTES / blockSize));
+        this.free = new ArrayBlockingQueue<>(ringBlocks);
+        this.filled = new ArrayBlockingQueue<>(ringBlocks + 1);
+    }
+
+    /**
+     * Copies a block into the ring, waiting for the writer if the ring is full.
+     *
+     * @param data array holding the block
+     * @param offset index of the first byte of the block
+     * @param length length of the block
+     * @throws IOException if the writer has failed
+     */
+    public void write(byte[] data, int offset, int length) throws IOException {
+        checkFailure();
+        ByteBuffer buffer = takeFree();
+        buffer.clear();
+        buffer.put(data, offset, length).flip();
+        filled.add(buffer);
+        scheduleWrite();
+    }
+
+    /**
+     * Copies a block into the ring, waiting for the writer if the ring is full.
+     *
+     * @param data buffer holding the block between its position and limit, its position is moved to the limit
+     * @throws IOException if the writer has failed
+     */
+    public void write(ByteBuffer data) throws IOException {
+        checkFailure();
+        ByteBuffer buffer = takeFree();
+        buffer.clear();
+        buffer.put(data).flip();
+        filled.add(buffer);
+        scheduleWrite();
+    }
+
+    /**
+     * Waits until every block has been written, applies the fsync policy and renames the
+     * temporary file to its final name, replacing any earlier file of that name.
+     *
+     * @throws IOException if a block could not be written or the file could not be renamed, the temporary file is then deleted
+     */
+    public void commit() throws IOException {
+        stopWriter();
+        try {
+            checkFailure();
+            if (fsyncPolicy != FsyncPolicy.NONE) {
+                file.force(false);
+            }
+            if (target == null) {
+                closed = true; //range written, the owner of the file publishes it
+                return;
+            }
+            file.close();
+
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException ex) {
+            abort();
+            throw ex;
+        }
+        closed = true;
+    }
+
+    /**
+     * Stops the writer and deletes the temporary file, the final name is left untouched.
+     * The part file of a resumable sink is kept with every block received so far.
+     */
+    public void abort() {
+        end(!resumable);
+    }
+
+    /**
+     * Stops the writer and deletes the temporary file, also the part file of a resumable sink,
+     * e.g. when the sender found that it does not match its file.
+     */
+    public void discard() {
+        end(true);
+    }
+
+    private void end(boolean delete) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        stopWriter();
+        if (target == null) {
+            return; //the owner of the shared file deletes it
+        }
+        try {
+            file.close();
+            if (delete) {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException ex) {
+            Log.warn("Could not delete ", temp);
+        }
+    }
+
+    /**
+     * Aborts the sink unless it has been committed.
+     */
+    @Override
+    public void close() {
+        abort();
+    }
+
+    /**
+     * Checks whether write can take a block straight away, for callers that must not wait for the writer.
+     *
+     * @return true if a buffer of the ring is free or can still be created
+     */
+    public boolean hasRoom() {
+        return !free.isEmpty() || allocated < ringBlocks;
+    }
+
+    /**
+     * Getter method for the buffers of the ring this sink holds, none once it is committed or closed.
+     *
+     * @return buffers taken from the pool and not given back yet
+     */
+    public int getBufferCount() {
+        return allocated;
+    }
+
+    //starts a write task unless one is queued or running
+    private void scheduleWrite() {
+        if (!filled.isEmpty() && writing.compareAndSet(false, true)) {
+            WRITERS.execute(this::writeSome);
+        }
+    }
+
+    //takes every block waiting in the ring and writes them with one call, until the ring is empty or END is reached
+    private void writeSome() {
+        List<ByteBuffer> batch = new ArrayList<>();
+        boolean end = false;
+        try {
+            while (!end && filled.drainTo(batch) > 0) {
+                end = batch.get(batch.size() - 1) == END;
+                if (end) {
+                    batch.remove(batch.size() - 1);
+                }
+
+                if (failure == null && !batch.isEmpty()) {
+                    writeBatch(batch);
+                }
+                for (ByteBuffer buffer : batch) {
+                    free.add(buffer);
+                }
+                batch.clear();
+            }
+        } finally {
+            writing.set(false);
+            if (end) {
+                done.add(Boolean.TRUE);
+            }
+        }
+        if (!end) {
+            scheduleWrite(); //a block queued after the ring was found empty
+        }
+    }
+
+    private void writeBatch(List<ByteBuffer> batch) {
+        ByteBuffer[] buffers = batch.toArray(new ByteBuffer[0]);
+        try {
+            if (target == null) {
+                for (ByteBuffer buffer : buffers) {
+                    while (buffer.hasRemaining()) {
+                        position += file.write(buffer, position); //positional, other sinks write other ranges at the same time
+                    }
+                }
+            } else {
+                long remaining = 0;
+                for (ByteBuffer buffer : buffers) {
+                    remaining += buffer.remaining();
+                }
+                while (remaining > 0) {
+                    remaining -= file.write(buffers); //gathering write at the end of the file
+                }
+            }
+            if (fsyncPolicy == FsyncPolicy.EVERY_BATCH) {
+                file.force(false);
+            }
+        } catch (IOException ex) {
+            failure = ex; //later blocks are dropped, the receiver sees the error on its next write
+        }
+    }
+
+    private ByteBuffer takeFree() throws IOException {
+        ByteBuffer buffer = free.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        if (allocated < ringBlocks) {
+            allocated++;
+            return DirectBufferPool.acquire(blockSize); //direct so the FileChannel does not copy it again
+        }
+
+        try {
+            while ((buffer = free.poll(100, TimeUnit.MILLISECONDS)) == null) {
+                checkFailure(); //backpressure, the writer is behind
+            }
+            return buffer;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the writer", ex);
+        }
+    }
+
+    //waits for the blocks in the ring to be written and gives the buffers back to the pool
+    private void stopWriter() {
+        if (done.isEmpty()) {
+            filled.add(END);
+            scheduleWrite();
+        }
+        try {
+            done.take();
+            done.add(Boolean.TRUE); //a second stop returns straight away
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return; //the writer may still hold the buffers, they are left to the garbage collector
+        }
+        ByteBuffer buffer;
+        while ((buffer = free.poll()) != null) {
+            DirectBufferPool.release(buffer);
+            allocated--;
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+}
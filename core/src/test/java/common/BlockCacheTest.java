@@ -0,0 +1,90 @@
+package common;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The BlockCacheTest class checks that transfers of the same file share the cached blocks, each
+ * reading them with its own position, that a small budget still caches across fewer stripes, and
+ * that the hits, misses and evictions reach the TransferMetrics. No other test uses a BlockCache,
+ * so the global counters only move by what this test does.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public class BlockCacheTest {
+
+    private static final int BLOCK_SIZE = 512;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void transfersOfOneFileShareItsBlocks() throws Exception {
+        byte[] data = new byte[100 * BLOCK_SIZE + 17];
+        new Random(BLOCK_SIZE).nextBytes(data);
+        Path file = dir.resolve("boot.img");
+        Files.write(file, data);
+
+        BlockCache cache = new BlockCache();
+        assertEquals(BlockCache.MAX_STRIPES, cache.getStripeCount());
+        TransferMetrics metrics = TransferMetrics.global();
+        long hits = metrics.getBlockCacheHits();
+        long misses = metrics.getBlockCacheMisses();
+
+        try (BlockSource first = cache.open(file.toString(), BLOCK_SIZE); BlockSource second = cache.open(file.toString(), BLOCK_SIZE)) {
+            assertEquals(101, first.getBlockCount(), "the last block holds the 17 remaining bytes");
+            for (long index = 0; index < first.getBlockCount(); index++) {
+                ByteBuffer a = first.block(index);
+                ByteBuffer b = second.block(index);
+                a.get(new byte[a.remaining()]); //sending from one view leaves the other where it was
+                assertArrayEquals(slice(data, index), remaining(b));
+            }
+            assertArrayEquals(slice(data, 95), remaining(first.block(95)), "a block of the last window sent again starts at its beginning");
+        }
+
+        assertEquals(101, metrics.getBlockCacheMisses() - misses, "each block read from the file once");
+        assertEquals(101, metrics.getBlockCacheHits() - hits, "the second transfer served from the cache, the block sent again not even looked up");
+        assertEquals(data.length, cache.getUsedBytes());
+    }
+
+    @Test
+    public void smallBudgetEvictsTheLeastRecentlyUsedBlocks() throws Exception {
+        Path file = dir.resolve("large.bin");
+        Files.write(file, new byte[64 * BLOCK_SIZE]);
+
+        BlockCache cache = new BlockCache(16 * BLOCK_SIZE, true);
+        assertEquals(1, cache.getStripeCount(), "too small to split");
+        long evictions = TransferMetrics.global().getBlockCacheEvictions();
+        try (BlockSource source = cache.open(file.toString(), BLOCK_SIZE)) {
+            for (long index = 0; index < 64; index++) {
+                assertTrue(source.block(index).isDirect());
+            }
+        }
+
+        assertEquals(16 * BLOCK_SIZE, cache.getUsedBytes(), "held within the budget");
+        assertEquals(48, TransferMetrics.global().getBlockCacheEvictions() - evictions);
+    }
+
+    private static byte[] slice(byte[] data, long index) {
+        int from = (int) index * BLOCK_SIZE;
+        byte[] block = new byte[Math.min(BLOCK_SIZE, data.length - from)];
+        System.arraycopy(data, from, block, 0, block.length);
+        return block;
+    }
+
+    private static byte[] remaining(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+}
@@ -0,0 +1,236 @@
+package common;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The ChannelTransferTest class sends files between two Channels over loopback, every datagram
+ * passing through a NetworkSimulator so that the retransmission and window rules are exercised
+ * the way a bad network would. Both channels receive straight from their socket (sync mode), as the client does.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public class ChannelTransferTest {
+
+    private static final int FILE_SIZE = 200 * 1024 + 77; //not a whole number of blocks, the last one is short
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void lockStepTransferSurvivesLoss() throws Exception {
+        NetworkSimulator network = new NetworkSimulator(42);
+
+        Transfer transfer = transfer(network, new TransferOptions(), 0.05);
+
+        assertArrayEquals(transfer.data, transfer.received(), "file received under loss");
+        assertTrue(transfer.receiver.getTransferStats().isSucceeded(), "receiver completed");
+        assertTrue(transfer.sender.getRetransmissions() > 0, "lost blocks were retransmitted");
+        assertTrue(network.getDropped() > 0);
+    }
+
+    @Test
+    public void windowedTransferSurvivesLossAndReordering() throws Exception {
+        NetworkSimulator network = new NetworkSimulator(7);
+        network.setReordering(0.05, 5);
+        TransferOptions options = new TransferOptions();
+        options.setWindowSize(8);
+        options.setBlockSize(1024);
+
+        Transfer transfer = transfer(network, options, 0.05);
+
+        assertArrayEquals(transfer.data, transfer.received(), "file received under loss and reordering");
+        assertTrue(transfer.receiver.getTransferStats().isSucceeded(), "receiver completed");
+        assertTrue(network.getDropped() > 0);
+        assertTrue(transfer.sender.getTransferStats().getBytes() > FILE_SIZE, "lost blocks were sent again");
+    }
+
+    @Test
+    public void duplicatesAreNeitherAnsweredNorWrittenTwice() throws Exception {
+        for (int windowSize : new int[]{1, 4}) {
+            NetworkSimulator network = new NetworkSimulator(windowSize);
+            network.setDuplication(0.3);
+            TransferOptions options = new TransferOptions();
+            options.setWindowSize(windowSize);
+            long duplicateAcks = TransferMetrics.global().getDuplicateAcks();
+            long duplicateData = TransferMetrics.global().getDuplicateData();
+
+            Transfer transfer = transfer(network, options, 0);
+
+            assertArrayEquals(transfer.data, transfer.received(), "file written once per block, window " + windowSize);
+            assertTrue(transfer.receiver.getTransferStats().isSucceeded());
+            assertEquals(FILE_SIZE, transfer.sender.getTransferStats().getBytes(), "no block sent twice (Sorcerer's Apprentice), window " + windowSize);
+            assertTrue(TransferMetrics.global().getDuplicateAcks() > duplicateAcks, "duplicate acks counted");
+            assertTrue(TransferMetrics.global().getDuplicateData() > duplicateData, "duplicate blocks counted");
+        }
+    }
+
+    @Test
+    public void lostFinalAckIsSentAgainWhileTheReceiverDallies() throws Exception {
+        NetworkSimulator network = new NetworkSimulator(3);
+        int finalBlock = FILE_SIZE / 512 + 1;
+        AtomicBoolean dropped = new AtomicBoolean();
+        DatagramTransport.Factory losingFinalAck = socket -> new DropFirstAck(network.open(socket), finalBlock, dropped);
+
+        Transfer transfer = transfer(network, losingFinalAck, new TransferOptions(), 0);
+
+        assertTrue(dropped.get(), "the first final ack was lost");
+        assertArrayEquals(transfer.data, transfer.received());
+        assertEquals(1, transfer.sender.getRetransmissions(), "only the last block was sent again");
+    }
+
+    @Test
+    public void duplicateAcksDoNotPostponeTheRetransmission() throws Exception {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        try (DatagramSocket peer = new DatagramSocket(0, loopback); DatagramSocket socket = new DatagramSocket(0, loopback)) {
+            peer.setSoTimeout(20);
+            Channel channel = new Channel(new DatagramPacket(new byte[0], 0, peer.getLocalSocketAddress()), DatagramTransport.DIRECT.open(socket), true);
+            channel.sendOptionAck(Map.of(TransferOptions.BLOCK_SIZE, "1024"));
+
+            Thread waiting = new Thread(() -> {
+                try {
+                    channel.receiveAck(0);
+                } catch (IOException ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }, "test-ack-wait");
+            waiting.start();
+
+            //a stale ack every 20 ms for longer than the initial timeout, the OACK must still be sent again
+            ByteBuffer ack = ByteBuffer.allocate(4);
+            int length = new PacketFactory().encodeAck(ack, 7);
+            DatagramPacket received = new DatagramPacket(new byte[516], 516);
+            int oacks = 0;
+            long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RetransmissionTimer.DEFAULT_INITIAL_TIMEOUT_MILLIS * 3 / 2);
+            while (System.nanoTime() < end) {
+                peer.send(new DatagramPacket(ack.array(), length, socket.getLocalSocketAddress()));
+                try {
+                    peer.receive(received);
+                    oacks++;
+                } catch (SocketTimeoutException ex) {
+                    //nothing sent yet
+                }
+            }
+            assertTrue(oacks >= 2, "OACK retransmitted on time despite duplicates, received " + oacks);
+
+            ack.clear();
+            length = new PacketFactory().encodeAck(ack, 0);
+            peer.send(new DatagramPacket(ack.array(), length, socket.getLocalSocketAddress()));
+            waiting.join(5000);
+            assertFalse(waiting.isAlive(), "the matching ack ends the wait");
+        }
+    }
+
+    //sends a random file from one channel to the other like a WRQ after its ACK 0, the loss starts once ACK 0 has arrived
+    Transfer transfer(NetworkSimulator network, TransferOptions options, double loss) throws Exception {
+        return transfer(network, network, options, loss);
+    }
+
+    //as above, with the receiver's datagrams going through a transport of its own
+    Transfer transfer(NetworkSimulator network, DatagramTransport.Factory receiverTransport, TransferOptions options, double loss) throws Exception {
+        Transfer transfer = new Transfer();
+        transfer.data = new byte[FILE_SIZE];
+        new Random(FILE_SIZE).nextBytes(transfer.data);
+        Path source = dir.resolve("source.bin");
+        Files.write(source, transfer.data);
+        transfer.target = dir.resolve("target.bin");
+
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        try (DatagramSocket senderSocket = new DatagramSocket(0, loopback);
+                DatagramSocket receiverSocket = new DatagramSocket(0, loopback)) {
+
+            transfer.sender = new Channel(new DatagramPacket(new byte[0], 0, receiverSocket.getLocalSocketAddress()), network.open(senderSocket), true);
+            transfer.receiver = new Channel(new DatagramPacket(new byte[0], 0, senderSocket.getLocalSocketAddress()), receiverTransport.open(receiverSocket), true);
+            transfer.sender.setOptions(new TransferOptions(options));
+            transfer.receiver.setOptions(new TransferOptions(options));
+
+            Thread sending = new Thread(() -> {
+                try {
+                    transfer.sender.receiveAck(0);
+                    network.setLoss(loss);
+                    transfer.sender.sendFile(source.toString());
+                } catch (IOException | RuntimeException ex) {
+                    transfer.senderFailure = ex;
+                }
+            }, "test-sender");
+            sending.start();
+            transfer.receiver.sendAck(0);
+            transfer.receiver.receiveData(transfer.target.toString());
+            sending.join(30_000);
+            assertFalse(sending.isAlive(), "sender finished");
+        }
+        //the receiver dallies after its final ack, so the sender gets it even when the first one is lost
+        assertNull(transfer.senderFailure, "sender finished without an exception");
+        assertTrue(transfer.sender.getTransferStats().isSucceeded(), "sender saw its last block acknowledged");
+        return transfer;
+    }
+
+    //loses the first ack of one block, e.g. the final ack of a transfer
+    static class DropFirstAck implements DatagramTransport {
+        private final DatagramTransport transport;
+        private final int blockNum;
+        private final AtomicBoolean dropped;
+
+        DropFirstAck(DatagramTransport transport, int blockNum, AtomicBoolean dropped) {
+            this.transport = transport;
+            this.blockNum = blockNum;
+            this.dropped = dropped;
+        }
+
+        @Override
+        public void send(DatagramPacket packet) throws IOException {
+            PacketView sent = new PacketView().wrap(packet.getData(), packet.getLength());
+            if (sent.getOpCode() == 4 && sent.getBlockNum() == blockNum && dropped.compareAndSet(false, true)) {
+                return;
+            }
+            transport.send(packet);
+        }
+
+        @Override
+        public void receive(DatagramPacket packet, int timeoutMillis) throws IOException {
+            transport.receive(packet, timeoutMillis);
+        }
+
+        @Override
+        public boolean canGather() {
+            return transport.canGather();
+        }
+
+        @Override
+        public void send(ByteBuffer[] buffers) throws IOException {
+            transport.send(buffers);
+        }
+    }
+
+    static class Transfer {
+        byte[] data;
+        Path target;
+        Channel sender;
+        Channel receiver;
+        Exception senderFailure;
+
+        byte[] received() throws IOException {
+            return Files.readAllBytes(target);
+        }
+    }
+
+}
@@ -0,0 +1,150 @@
+package common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The EventLoopTest class checks that the loop calls onTimeout when a transfer's deadline passes,
+ * and only then: a deadline pushed later by every packet must not fire at the time it was first queued.
+ * It also checks that work handed back by other threads runs on the loop thread.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public class EventLoopTest {
+
+    private static final long TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    @Test
+    public void packetsPostponeTheTimeoutAndSilenceFiresIt() throws Exception {
+        EventLoop loop = new EventLoop();
+        Thread thread = new Thread(loop, "test-loop");
+        thread.start();
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        try (DatagramChannel channel = DatagramChannel.open().bind(new InetSocketAddress(loopback, 0));
+                DatagramChannel peer = DatagramChannel.open().bind(new InetSocketAddress(loopback, 0))) {
+            channel.configureBlocking(false);
+            Probe probe = new Probe(channel);
+            loop.register(probe);
+
+            //a packet every 20 ms for five timeouts, each one moves the deadline on
+            long end = System.nanoTime() + 5 * TIMEOUT_NANOS;
+            while (System.nanoTime() < end) {
+                peer.send(ByteBuffer.wrap(new byte[]{1}), channel.getLocalAddress());
+                Thread.sleep(20);
+            }
+            assertEquals(0, probe.timeouts.get(), "no timeout while packets arrive");
+            assertTrue(probe.packets.get() > 10);
+
+            assertTrue(probe.timedOut.await(1, TimeUnit.SECONDS), "timeout once the packets stop");
+        } finally {
+            loop.stop();
+            thread.join(1000);
+        }
+    }
+
+    @Test
+    public void tasksRunOnTheLoopThreadAndCanFinishTheirTransfer() throws Exception {
+        EventLoop loop = new EventLoop();
+        Thread thread = new Thread(loop, "test-loop");
+        thread.start();
+        try (DatagramChannel channel = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            channel.configureBlocking(false);
+            Probe probe = new Probe(channel);
+            loop.register(probe);
+
+            AtomicReference<Thread> ranOn = new AtomicReference<>();
+            CountDownLatch ran = new CountDownLatch(1);
+            new Thread(() -> loop.execute(probe, () -> { //like a file thread that is done with the transfer's file
+                ranOn.set(Thread.currentThread());
+                probe.done = true;
+                ran.countDown();
+            }), "test-worker").start();
+
+            assertTrue(ran.await(1, TimeUnit.SECONDS));
+            assertEquals(thread, ranOn.get(), "run by the loop thread");
+            long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+            while (channel.isOpen() && System.nanoTime() < end) {
+                Thread.sleep(10);
+            }
+            assertFalse(channel.isOpen(), "the finished transfer was closed after the task");
+            assertEquals(0, loop.getActive());
+        } finally {
+            loop.stop();
+            thread.join(1000);
+        }
+    }
+
+    //a transfer whose deadline is one timeout after its last packet
+    private static class Probe implements EventLoop.Handler {
+
+        private final DatagramChannel channel;
+        private final AtomicInteger packets = new AtomicInteger();
+        private final AtomicInteger timeouts = new AtomicInteger();
+        private final CountDownLatch timedOut = new CountDownLatch(1);
+        private final ByteBuffer buffer = ByteBuffer.allocate(16);
+        private volatile long deadline;
+        private volatile boolean done;
+
+        Probe(DatagramChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public DatagramChannel getChannel() {
+            return channel;
+        }
+
+        @Override
+        public void start() {
+            deadline = System.nanoTime() + TIMEOUT_NANOS;
+        }
+
+        @Override
+        public void onReadable() {
+            try {
+                while (channel.receive(buffer.clear()) != null) {
+                    packets.incrementAndGet();
+                    deadline = System.nanoTime() + TIMEOUT_NANOS;
+                }
+            } catch (IOException ex) {
+                done = true;
+            }
+        }
+
+        @Override
+        public void onTimeout() {
+            timeouts.incrementAndGet();
+            timedOut.countDown();
+            done = true;
+        }
+
+        @Override
+        public void abort() {
+            done = true;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done;
+        }
+
+        @Override
+        public long getDeadline() {
+            return deadline;
+        }
+    }
+
+}
@@ -0,0 +1,143 @@
+package common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The OptionNegotiationTest class checks the option negotiation of RFC 2347 and its options:
+ * what the server accepts from a request, what the client applies from an OACK, and that a
+ * client refuses an OACK it did not ask for with error 8.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public class OptionNegotiationTest {
+
+    @Test
+    public void serverClampsAndClientAppliesTheAgreedOptions() {
+        TransferOptions client = new TransferOptions();
+        client.setBlockSize(1468);
+        client.setWindowSize(200);
+        client.setTimeout(3);
+
+        TransferOptions server = new TransferOptions();
+        Map<String, String> accepted = server.negotiate(client.toRequestOptions());
+
+        assertEquals("1468", accepted.get(TransferOptions.BLOCK_SIZE));
+        assertEquals(Integer.toString(TransferOptions.MAX_WINDOW_SIZE), accepted.get(TransferOptions.WINDOW_SIZE), "window lowered to what the server buffers");
+        assertEquals("3", accepted.get(TransferOptions.TIMEOUT));
+
+        client.applyAcknowledged(accepted);
+        assertEquals(1468, client.getBlockSize());
+        assertEquals(TransferOptions.MAX_WINDOW_SIZE, client.getWindowSize());
+        assertEquals(3, client.getTimeout());
+        assertEquals(1468 + 4, client.getPacketSize());
+    }
+
+    @Test
+    public void serverIgnoresMalformedAndUnknownOptions() {
+        Map<String, String> requested = new LinkedHashMap<>();
+        requested.put("BLKSIZE", "4");
+        requested.put("windowsize", "many");
+        requested.put("timeout", "256");
+        requested.put("colour", "blue");
+
+        TransferOptions server = new TransferOptions();
+        assertTrue(server.negotiate(requested).isEmpty(), "nothing to acknowledge, a plain RFC 1350 reply");
+        assertEquals(TransferOptions.DEFAULT_BLOCK_SIZE, server.getBlockSize());
+        assertEquals(TransferOptions.DEFAULT_WINDOW_SIZE, server.getWindowSize());
+    }
+
+    @Test
+    public void clientFallsBackToDefaultsForOptionsNotAcknowledged() {
+        TransferOptions client = new TransferOptions();
+        client.setBlockSize(8192);
+        client.setWindowSize(4);
+
+        client.applyAcknowledged(Map.of(TransferOptions.BLOCK_SIZE, "1024"));
+
+        assertEquals(1024, client.getBlockSize(), "the server may lower the block size");
+        assertEquals(TransferOptions.DEFAULT_WINDOW_SIZE, client.getWindowSize());
+    }
+
+    @Test
+    public void clientRefusesValuesItDidNotAskFor() {
+        assertRefused(Map.of(TransferOptions.BLOCK_SIZE, "65465"));
+        assertRefused(Map.of(TransferOptions.BLOCK_SIZE, "4096")); //larger than the 1024 requested
+        assertRefused(Map.of(TransferOptions.BLOCK_SIZE, "big"));
+        assertRefused(Map.of(TransferOptions.WINDOW_SIZE, "70000"));
+        assertRefused(Map.of(TransferOptions.WINDOW_SIZE, "9")); //larger than the 8 requested
+        assertRefused(Map.of(TransferOptions.TIMEOUT, "300"));
+        assertRefused(Map.of(TransferOptions.TIMEOUT, "5")); //RFC 2349, the server may not change it
+        assertRefused(Map.of(TransferOptions.TRANSFER_SIZE, "-5"));
+        assertRefused(Map.of(TransferOptions.RANGE, "10"));
+    }
+
+    @Test
+    public void clientRefusesOptionsItDidNotRequest() {
+        for (String unsolicited : new String[]{TransferOptions.RANGE, TransferOptions.RESUME, TransferOptions.TRANSFER_SIZE, TransferOptions.TIMEOUT, "colour"}) {
+            TransferOptions client = new TransferOptions();
+            client.setBlockSize(1024);
+            Map<String, String> acknowledged = new LinkedHashMap<>();
+            acknowledged.put(TransferOptions.BLOCK_SIZE, "1024");
+            acknowledged.put(unsolicited, "0,0");
+
+            IllegalArgumentException refused = assertThrows(IllegalArgumentException.class, () -> client.applyAcknowledged(acknowledged), unsolicited);
+            assertTrue(refused.getMessage().contains(unsolicited), "RFC 2347, only requested options may be acknowledged");
+            assertFalse(client.hasRange());
+            assertFalse(client.isResume());
+        }
+    }
+
+    @Test
+    public void channelAnswersRefusedOackWithError8() throws Exception {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        try (DatagramSocket server = new DatagramSocket(0, loopback); DatagramSocket clientSocket = new DatagramSocket(0, loopback)) {
+            server.setSoTimeout(5000);
+            Channel client = new Channel(new DatagramPacket(new byte[0], 0, server.getLocalSocketAddress()), DatagramTransport.DIRECT.open(clientSocket), true);
+            TransferOptions requested = new TransferOptions();
+            requested.setBlockSize(1024);
+            client.setOptions(requested);
+
+            ByteBuffer oack = ByteBuffer.allocate(516);
+            int length = new PacketFactory().encodeOACK(oack, Map.of(TransferOptions.BLOCK_SIZE, "70000"));
+            server.send(new DatagramPacket(oack.array(), length, clientSocket.getLocalSocketAddress()));
+
+            IllegalStateException refused = assertThrows(IllegalStateException.class, client::receiveOptionAck);
+            assertTrue(refused.getMessage().contains("Block size"));
+            assertEquals(1024, client.getOptions().getBlockSize(), "nothing applied");
+
+            byte[] buffer = new byte[516];
+            DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
+            server.receive(reply);
+            PacketView error = new PacketView().wrap(buffer, reply.getLength());
+            assertEquals(5, error.getOpCode());
+            assertEquals(8, error.getErrorCode());
+        }
+    }
+
+    //an OACK for a request of blksize 1024, windowsize 8, tsize, a range and no timeout, refused without changing the options
+    private static void assertRefused(Map<String, String> acknowledged) {
+        TransferOptions client = new TransferOptions();
+        client.setBlockSize(1024);
+        client.setWindowSize(8);
+        client.setTransferSize(0);
+        client.setRange(0, 4096);
+
+        assertThrows(IllegalArgumentException.class, () -> client.applyAcknowledged(acknowledged), acknowledged.toString());
+        assertEquals(1024, client.getBlockSize());
+        assertEquals(8, client.getWindowSize());
+        assertFalse(client.isMulticast());
+    }
+
+}
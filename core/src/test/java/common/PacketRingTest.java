@@ -0,0 +1,59 @@
+package common;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The PacketRingTest class checks that a ring is sized once from the options of its transfer,
+ * within MAX_RING_BYTES, and hands packets over in order without growing.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public class PacketRingTest {
+
+    @Test
+    public void ringIsSizedFromTheOptionsWithinTheMemoryCap() {
+        PacketRing lockStep = PacketRing.forTransfer(516, 1, PacketRing.WaitStrategy.PARK);
+        assertEquals(PacketRing.MIN_CAPACITY, lockStep.getCapacity());
+        assertEquals(516, lockStep.getSlotSize());
+
+        PacketRing windowed = PacketRing.forTransfer(1472, 16, PacketRing.WaitStrategy.PARK);
+        assertEquals(32, windowed.getCapacity(), "two windows");
+        assertTrue(windowed.isSizedFor(1472, 16));
+        assertFalse(windowed.isSizedFor(1472, 32));
+
+        int largest = TransferOptions.MAX_BLOCK_SIZE + 4;
+        PacketRing large = PacketRing.forTransfer(largest, TransferOptions.MAX_WINDOW_SIZE, PacketRing.WaitStrategy.PARK);
+        assertEquals(largest, large.getSlotSize());
+        assertTrue((long) large.getCapacity() * large.getSlotSize() <= PacketRing.MAX_RING_BYTES, "capped, not two windows of 64 KB packets");
+    }
+
+    @Test
+    public void packetsArriveInOrderAndOversizedOnesAreDropped() throws Exception {
+        PacketRing ring = PacketRing.forTransfer(600, 1, PacketRing.WaitStrategy.PARK);
+        byte[] packet = new byte[700];
+        for (int i = 0; i < ring.getCapacity(); i++) {
+            Arrays.fill(packet, (byte) i);
+            assertTrue(ring.offer(packet, 600));
+        }
+        assertFalse(ring.offer(packet, 600), "full");
+
+        for (int i = 0; i < ring.getCapacity(); i++) {
+            assertTrue(ring.next(0));
+            assertEquals(600, ring.length());
+            byte[] expected = new byte[600];
+            Arrays.fill(expected, (byte) i);
+            assertArrayEquals(expected, Arrays.copyOf(ring.array(), ring.length()));
+        }
+        assertFalse(ring.next(0), "empty");
+
+        assertFalse(ring.offer(packet, 700), "larger than the negotiated packet size");
+    }
+
+}
@@ -0,0 +1,52 @@
+package common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The RequestParserTest class checks that requests and errors are read from the bytes of their own
+ * datagram only, the receive buffers are reused so the older packets after them must not leak into
+ * a file name or message, and that a string without its null terminator makes the packet malformed.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public class RequestParserTest {
+
+    private final RequestParser parser = new RequestParser();
+
+    @Test
+    public void stringsEndWithinTheirOwnDatagram() {
+        byte[] buffer = new byte[TransferOptions.MAX_BLOCK_SIZE + 4];
+        Arrays.fill(buffer, (byte) 'x'); //an older, longer packet, with no null byte in it
+
+        int length = copy(buffer, "\0\1boot.img\0octet\0");
+        Request request = parser.parseRequest(buffer, length);
+        assertEquals("boot.img", request.getFileName());
+        assertEquals(0, request.getOptions().size());
+
+        length = copy(buffer, "\0\5\0\1not found\0");
+        assertEquals("not found", parser.parseRequest(buffer, length).getErrorMessage());
+    }
+
+    @Test
+    public void unterminatedStringsAreMalformed() {
+        byte[] buffer = new byte[TransferOptions.MAX_BLOCK_SIZE + 4]; //zeros after the packet, which used to end its strings
+
+        assertNull(parser.parseRequest(buffer, copy(buffer, "\0\1boot.img")), "file name not terminated");
+        assertNull(parser.parseRequest(buffer, copy(buffer, "\0\2boot.img\0octet")), "mode not terminated");
+        assertNull(parser.parseRequest(buffer, copy(buffer, "\0\5\0\1not found")), "message not terminated");
+        assertNull(parser.extractFileName(buffer, 2));
+    }
+
+    private static int copy(byte[] buffer, String packet) {
+        byte[] bytes = packet.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(bytes, 0, buffer, 0, bytes.length);
+        return bytes.length;
+    }
+
+}
@@ -0,0 +1,118 @@
+package common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Adler32;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The ResumeTest class checks how the server answers the resume option: a read resumes after the
+ * bytes the client holds only if their checksum matches the file, a write states what the part
+ * file holds so the client can check it against its own file.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public class ResumeTest {
+
+    private static final int FILE_SIZE = 100_000;
+    private static final int HELD = 40_000;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void readResumesAfterAMatchingPrefix() throws Exception {
+        File file = randomFile("served.bin", FILE_SIZE);
+        long checksum = TransferOptions.prefixChecksum(file, HELD);
+
+        TransferOptions server = new TransferOptions();
+        Map<String, String> accepted = new LinkedHashMap<>();
+        server.acceptReadResume(Map.of(TransferOptions.RESUME, HELD + "," + checksum), accepted, file);
+
+        assertEquals(HELD + "," + checksum, accepted.get(TransferOptions.RESUME));
+        assertTrue(server.isResume());
+        assertTrue(server.hasRange());
+        assertEquals(HELD, server.getRangeOffset(), "only the rest of the file is sent");
+        assertEquals(FILE_SIZE - HELD, server.getRangeLength());
+    }
+
+    @Test
+    public void readStartsAgainWhenThePrefixDoesNotMatch() throws Exception {
+        File file = randomFile("served.bin", FILE_SIZE);
+        long checksum = TransferOptions.prefixChecksum(file, HELD);
+
+        TransferOptions server = new TransferOptions();
+        Map<String, String> accepted = new LinkedHashMap<>();
+        server.acceptReadResume(Map.of(TransferOptions.RESUME, HELD + "," + (checksum ^ 1)), accepted, file);
+
+        assertFalse(accepted.containsKey(TransferOptions.RESUME), "option dropped, the client starts its part file again");
+        assertFalse(server.isResume());
+        assertFalse(server.hasRange(), "the whole file is sent");
+    }
+
+    @Test
+    public void readIgnoresAnOffsetPastTheEndOfTheFile() throws Exception {
+        File file = randomFile("served.bin", FILE_SIZE);
+
+        TransferOptions server = new TransferOptions();
+        Map<String, String> accepted = new LinkedHashMap<>();
+        server.acceptReadResume(Map.of(TransferOptions.RESUME, (FILE_SIZE + 1) + ",1"), accepted, file);
+
+        assertTrue(accepted.isEmpty());
+        assertFalse(server.isResume());
+    }
+
+    @Test
+    public void writeStatesWhatThePartFileHolds() throws Exception {
+        File part = randomFile("written.bin.part", HELD);
+        byte[] held = Files.readAllBytes(part.toPath());
+        Adler32 expected = new Adler32();
+        expected.update(held);
+
+        TransferOptions server = new TransferOptions();
+        Map<String, String> accepted = new LinkedHashMap<>();
+        server.acceptWriteResume(Map.of(TransferOptions.RESUME, "0,1"), accepted, part);
+
+        assertEquals(HELD + "," + expected.getValue(), accepted.get(TransferOptions.RESUME));
+
+        File local = randomFile("local.bin", FILE_SIZE);
+        assertFalse(TransferOptions.prefixChecksum(local, HELD) == server.getResumeChecksum(), "a different local file does not match, the client sends error 8");
+        Files.write(local.toPath(), Arrays.copyOf(held, FILE_SIZE));
+        assertEquals(server.getResumeChecksum(), TransferOptions.prefixChecksum(local, HELD), "the same prefix matches, only the rest is sent");
+    }
+
+    @Test
+    public void writeWithoutPartFileStartsFromTheBeginning() throws Exception {
+        TransferOptions server = new TransferOptions();
+        Map<String, String> accepted = new LinkedHashMap<>();
+        server.acceptWriteResume(Map.of(TransferOptions.RESUME, "0,1"), accepted, dir.resolve("missing.part").toFile());
+
+        assertEquals("0,1", accepted.get(TransferOptions.RESUME));
+        assertEquals(0, server.getResumeOffset());
+    }
+
+    @Test
+    public void prefixOfAShorterFileHasNoChecksum() throws Exception {
+        assertEquals(-1, TransferOptions.prefixChecksum(randomFile("short.bin", 10), 11));
+    }
+
+    private File randomFile(String name, int size) throws Exception {
+        byte[] data = new byte[size];
+        new Random(name.hashCode()).nextBytes(data);
+        Path path = dir.resolve(name);
+        Files.write(path, data);
+        return path.toFile();
+    }
+
+}
@@ -0,0 +1,92 @@
+package common;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The WriteBehindSinkTest class checks that a sink writes its blocks in order on the shared writer
+ * pool and gives its direct buffers back to the DirectBufferPool, so the next sink reuses them.
+ * The pool is shared by the whole JVM, so the checks only look at the size class of this test
+ * and at the buffers the sink itself held.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public class WriteBehindSinkTest {
+
+    private static final int BLOCK_SIZE = 1000; //a size no other test pools
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void committedSinkWritesEveryBlockAndReturnsItsBuffers() throws Exception {
+        byte[] data = new byte[BLOCK_SIZE * 50 + 123];
+        new Random(BLOCK_SIZE).nextBytes(data);
+        Path target = dir.resolve("written.bin");
+
+        int held;
+        try (WriteBehindSink sink = new WriteBehindSink(target.toString(), BLOCK_SIZE, 8, WriteBehindSink.FsyncPolicy.NONE)) {
+            for (int offset = 0; offset < data.length; offset += BLOCK_SIZE) {
+                sink.write(data, offset, Math.min(BLOCK_SIZE, data.length - offset));
+            }
+            held = sink.getBufferCount();
+            sink.commit();
+            assertEquals(0, sink.getBufferCount(), "every buffer of the ring went back to the pool");
+        }
+
+        assertArrayEquals(data, Files.readAllBytes(target));
+        assertTrue(held > 0 && held <= 8);
+        assertTrue(DirectBufferPool.getPooledBytes(BLOCK_SIZE) >= (long) held * BLOCK_SIZE, "the ring is pooled");
+
+        long pooled = DirectBufferPool.getPooledBytes(BLOCK_SIZE);
+        ByteBuffer reused = DirectBufferPool.acquire(BLOCK_SIZE);
+        assertTrue(reused.isDirect());
+        assertEquals(pooled - BLOCK_SIZE, DirectBufferPool.getPooledBytes(BLOCK_SIZE), "taken from the pool, not allocated");
+        DirectBufferPool.release(reused);
+    }
+
+    @Test
+    public void abortedSinkLeavesNoFileAndReturnsItsBuffers() throws Exception {
+        Path target = dir.resolve("aborted.bin");
+
+        WriteBehindSink sink = new WriteBehindSink(target.toString(), BLOCK_SIZE, 4, WriteBehindSink.FsyncPolicy.NONE);
+        sink.write(new byte[BLOCK_SIZE], 0, BLOCK_SIZE);
+        assertEquals(1, sink.getBufferCount());
+        sink.close();
+
+        assertEquals(0, sink.getBufferCount(), "the buffer went back to the pool");
+        assertTrue(DirectBufferPool.getPooledBytes(BLOCK_SIZE) >= BLOCK_SIZE);
+        assertFalse(Files.exists(target));
+        try (var files = Files.list(dir)) {
+            assertFalse(files.findAny().isPresent(), "temporary file deleted");
+        }
+    }
+
+    @Test
+    public void oneBlockSizeCannotFillThePoolOfAnother() {
+        int large = 64 * 1024 + 1; //sizes no other test pools
+        int small = 1001;
+        List<ByteBuffer> buffers = new ArrayList<>();
+        for (long bytes = 0; bytes <= DirectBufferPool.MAX_POOLED_BYTES_PER_SIZE; bytes += large) {
+            buffers.add(DirectBufferPool.acquire(large));
+        }
+        buffers.forEach(DirectBufferPool::release);
+        assertTrue(DirectBufferPool.getPooledBytes(large) <= DirectBufferPool.MAX_POOLED_BYTES_PER_SIZE, "size class capped");
+
+        DirectBufferPool.release(DirectBufferPool.acquire(small));
+        assertEquals(small, DirectBufferPool.getPooledBytes(small), "still room for another size");
+    }
+
+}
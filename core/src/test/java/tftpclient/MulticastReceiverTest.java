@@ -0,0 +1,134 @@
+package tftpclient;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import common.MappedBlockSource;
+import common.MulticastGroup;
+import common.PacketView;
+import common.TransferOptions;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import tftpserver.MulticastSession;
+
+/**
+ * The MulticastReceiverTest class runs a multicast session (RFC 2090) with two receivers over the
+ * loopback interface. The first receiver is master and loses a share of the blocks and of its own ACKs,
+ * the second joins later and only gets its missing blocks once it is made master, which needs the
+ * first one's final ACK to reach the session even when it is lost.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public class MulticastReceiverTest {
+
+    private static final int BLOCK_SIZE = 512;
+    private static final int FILE_SIZE = 200 * BLOCK_SIZE + 99;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void bothReceiversGetTheFileWhenOneLosesPackets() throws Exception {
+        byte[] data = new byte[FILE_SIZE];
+        new Random(FILE_SIZE).nextBytes(data);
+        Path served = dir.resolve("served.bin");
+        Files.write(served, data);
+
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        NetworkInterface lo = NetworkInterface.getByInetAddress(loopback);
+        InetSocketAddress group = new InetSocketAddress(InetAddress.getByName("239.255.0.251"), MulticastGroup.DEFAULT_PORT);
+        Map<String, MulticastSession> registry = new HashMap<>();
+        TransferOptions options = new TransferOptions();
+        Map<String, String> accepted = new LinkedHashMap<>();
+        MulticastSession session = new MulticastSession("served", registry, group, lo, new MappedBlockSource(served.toString(), BLOCK_SIZE), options, accepted);
+        registry.put("served", session);
+        Thread sending = new Thread(session, "test-multicast-session");
+        sending.setDaemon(true);
+        sending.start();
+
+        try {
+            Receiver lossy = new Receiver(session, registry, dir.resolve("lossy.bin"), 0.05);
+            lossy.start();
+            assertTrue(lossy.joined.await(5, TimeUnit.SECONDS), "the first receiver is master");
+            Thread.sleep(50); //some blocks pass before the second one joins, it asks for them once it is master
+
+            long start = System.nanoTime();
+            Receiver clean = new Receiver(session, registry, dir.resolve("clean.bin"), 0);
+            clean.start();
+
+            lossy.join(30_000);
+            clean.join(30_000);
+            assertNotNull(lossy.path, "lossy receiver done: " + lossy.failure);
+            assertNotNull(clean.path, "clean receiver done: " + clean.failure);
+            assertArrayEquals(data, Files.readAllBytes(lossy.path), "file received by the lossy master");
+            assertArrayEquals(data, Files.readAllBytes(clean.path), "missing blocks repaired once the second receiver was master");
+            assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 15, "made master without waiting for the session to give up on the first");
+        } finally {
+            session.close();
+        }
+    }
+
+    //a client that joins the session the way the server adds it after an RRQ with the multicast option
+    private static class Receiver extends Thread {
+
+        private final MulticastSession session;
+        private final Map<String, MulticastSession> registry;
+        private final Path target;
+        private final double loss;
+        private final CountDownLatch joined = new CountDownLatch(1);
+        private volatile Path path; //set once the file is complete
+        private volatile Exception failure;
+
+        Receiver(MulticastSession session, Map<String, MulticastSession> registry, Path target, double loss) {
+            super("test-multicast-" + target.getFileName());
+            this.session = session;
+            this.registry = registry;
+            this.target = target;
+            this.loss = loss;
+        }
+
+        @Override
+        public void run() {
+            try (DatagramChannel unicast = DatagramChannel.open()) {
+                unicast.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+                synchronized (registry) {
+                    session.join(unicast.getLocalAddress());
+                }
+
+                byte[] buffer = new byte[516];
+                DatagramPacket oack = new DatagramPacket(buffer, buffer.length);
+                unicast.socket().setSoTimeout(5000);
+                unicast.socket().receive(oack);
+                PacketView view = new PacketView().wrap(buffer, oack.getLength());
+                MulticastGroup group = MulticastGroup.parse(view.getOptions().get(TransferOptions.MULTICAST));
+                joined.countDown();
+
+                MulticastReceiver receiver = new MulticastReceiver(unicast, oack.getSocketAddress(), BLOCK_SIZE, 1000);
+                if (loss > 0) {
+                    receiver.setLoss(loss, 1);
+                }
+                receiver.receive(group, target.toString());
+                path = target;
+            } catch (IOException | RuntimeException ex) {
+                failure = ex;
+            }
+        }
+    }
+
+}
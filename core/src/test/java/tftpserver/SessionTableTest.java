@@ -0,0 +1,75 @@
+package tftpserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import common.Channel;
+import common.DatagramTransport;
+import java.net.InetAddress;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The SessionTableTest class checks that the table finds the channel of every client, whether it is
+ * keyed by IPv4 address and port or by IPv6 socket address, and keeps finding the others as sessions
+ * end, are replaced or are evicted, which moves entries around the open addressing stripes.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public class SessionTableTest {
+
+    private static final int CLIENTS = 2000; //enough to grow every stripe several times
+
+    @Test
+    public void everyClientFindsItsChannelWhileOthersEnd() throws Exception {
+        SessionTable table = new SessionTable();
+        InetAddress client = InetAddress.getByName("10.0.0.1");
+        Channel[] channels = new Channel[CLIENTS];
+        for (int port = 0; port < CLIENTS; port++) {
+            channels[port] = channel();
+            table.put(client, port, channels[port]);
+        }
+
+        for (int port = 0; port < CLIENTS; port += 2) {
+            table.remove(client, port, channels[port]);
+        }
+        for (int port = 0; port < CLIENTS; port++) {
+            if (port % 2 == 0) {
+                assertNull(table.get(client, port), "session ended");
+            } else {
+                assertSame(channels[port], table.get(client, port), "found after its neighbours were removed");
+            }
+        }
+
+        Channel replaced = channels[1];
+        channels[1] = channel();
+        table.put(client, 1, channels[1]);
+        table.remove(client, 1, replaced);
+        assertSame(channels[1], table.get(client, 1), "an old transfer ending does not remove the new one");
+    }
+
+    @Test
+    public void idleSessionsAreEvictedOfBothFamilies() throws Exception {
+        SessionTable table = new SessionTable(0);
+        InetAddress ipv4 = InetAddress.getByName("192.168.1.7");
+        InetAddress ipv6 = InetAddress.getByName("::1");
+        for (int port = 1; port <= 100; port++) {
+            table.put(ipv4, port, channel());
+        }
+        table.put(ipv6, 69, channel());
+        Thread.sleep(1);
+
+        assertEquals(101, table.evictIdle());
+        for (int port = 1; port <= 100; port++) {
+            assertNull(table.get(ipv4, port));
+        }
+        assertNull(table.get(ipv6, 69));
+        assertEquals(0, table.evictIdle(), "nothing left");
+    }
+
+    private static Channel channel() {
+        return new Channel(null, (DatagramTransport) null, true);
+    }
+
+}
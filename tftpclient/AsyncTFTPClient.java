@@ -0,0 +1,147 @@
+package tftpclient;
+
+import common.EventLoop;
+import common.TransferOptions;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The AsyncTFTPClient class runs many transfers at once on a few threads. Every transfer gets its own
+ * DatagramChannel on an ephemeral port and is driven by one of the client's EventLoops as a
+ * ClientTransfer, so a caller can start thousands of small transfers without a thread for each.
+ * getFile and sendFile return at once with a future that completes when the transfer ends, with a
+ * TransferResult or exceptionally (IllegalStateException for an error from the server or a timeout).
+ * The future is completed on a loop thread: dependent actions that block must use the async variants
+ * of CompletableFuture so they do not hold up the other transfers of the loop.
+ * Options are requested like the TFTPClient does, except multicast and resume which need a blocking session.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public class AsyncTFTPClient implements Closeable {
+
+    private final InetSocketAddress server;
+    private final TransferOptions options;
+    private final EventLoop[] loops;
+    private final Thread[] threads;
+    private int next; //loop of the next transfer, guarded by this
+    private volatile boolean closed;
+
+    /**
+     * This constructor starts a client with one event loop
+     *
+     * @param host name or address of the server
+     * @param port port number of the server
+     * @param options options to request for every transfer
+     * @throws IOException if the host cannot be resolved or a selector cannot be opened
+     */
+    public AsyncTFTPClient(String host, int port, TransferOptions options) throws IOException {
+        this(host, port, options, 1);
+    }
+
+    /**
+     * This constructor starts a client and its event loop threads
+     *
+     * @param host name or address of the server, resolved once here
+     * @param port port number of the server
+     * @param options options to request for every transfer
+     * @param loopCount number of event loop threads the transfers are spread over
+     * @throws IOException if the host cannot be resolved or a selector cannot be opened
+     */
+    public AsyncTFTPClient(String host, int port, TransferOptions options, int loopCount) throws IOException {
+        this.server = new InetSocketAddress(host, port);
+        if (server.isUnresolved()) {
+            throw new IOException("Unknown host " + host);
+        }
+        this.options = new TransferOptions(options);
+        this.options.setMulticast(false);
+        this.options.setResume(false);
+
+        loops = new EventLoop[loopCount];
+        threads = new Thread[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop();
+            threads[i] = new Thread(loops[i], "tftp-client-loop-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    /**
+     * Starts reading a file from the server.
+     *
+     * @param remoteFileName name of the file being read
+     * @param localFileName name of the file being written, it only appears once it is complete
+     * @return future of the transfer's result
+     */
+    public CompletableFuture<TransferResult> getFile(String remoteFileName, String localFileName) {
+        return submit(true, remoteFileName, localFileName);
+    }
+
+    /**
+     * Starts writing a file to the server.
+     *
+     * @param localFileName name of the file being sent
+     * @param remoteFileName name the server stores the file under
+     * @return future of the transfer's result, failed with a FileNotFoundException if the local file does not exist
+     */
+    public CompletableFuture<TransferResult> sendFile(String localFileName, String remoteFileName) {
+        return submit(false, remoteFileName, localFileName);
+    }
+
+    /**
+     * Stops the event loops. Transfers still running are ended with an error to the server
+     * and their futures completed exceptionally.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (EventLoop loop : loops) {
+            loop.stop();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private CompletableFuture<TransferResult> submit(boolean read, String remoteFileName, String localFileName) {
+        if (closed) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Client closed"));
+        }
+
+        DatagramChannel channel = null;
+        try {
+            channel = DatagramChannel.open();
+            channel.bind(null); //ephemeral port, the transfer's TID
+            channel.configureBlocking(false);
+        } catch (IOException ex) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException closeFailure) {
+                    ex.addSuppressed(closeFailure);
+                }
+            }
+            return CompletableFuture.failedFuture(ex);
+        }
+
+        ClientTransfer transfer = new ClientTransfer(channel, server, read, remoteFileName, localFileName, new TransferOptions(options));
+        nextLoop().register(transfer);
+        return transfer.getResult();
+    }
+
+    private synchronized EventLoop nextLoop() {
+        EventLoop loop = loops[next];
+        next = (next + 1) % loops.length;
+        return loop;
+    }
+
+}
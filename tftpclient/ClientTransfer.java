@@ -0,0 +1,524 @@
+package tftpclient;
+
+import common.EventLoop;
+import common.Log;
+import common.MappedBlockSource;
+import common.PacketFactory;
+import common.PacketView;
+import common.RetransmissionTimer;
+import common.TransferMetrics;
+import common.TransferOptions;
+import common.TransferStats;
+import common.WriteBehindSink;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The ClientTransfer class is the state machine of a single transfer of the AsyncTFTPClient,
+ * the client side counterpart of the server's Transfer. It is driven by an EventLoop: a packet
+ * arriving on its DatagramChannel or its retransmission timer expiring, each event runs to
+ * completion on the loop thread. The channel is bound to an ephemeral port and sends the request
+ * to the server's well-known port, it is connected to the port the server answers from (the
+ * server's TID) so nothing else reaches the transfer after that.
+ * The result future is completed on the loop thread when the transfer ends, exceptionally
+ * with an IllegalStateException if the server sent an error or stopped answering.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public class ClientTransfer implements EventLoop.Handler {
+
+    private enum State {
+        REQUESTED, //RRQ or WRQ sent, waiting for the OACK, the first block or ACK 0
+        RECEIVING, //RRQ, data coming in
+        SENDING, //WRQ, windows of data going out
+        DALLYING, //RRQ complete, the final ack is sent again if the last window is retransmitted
+        DONE
+    }
+
+    private final DatagramChannel channel;
+    private final InetSocketAddress server;
+    private final boolean read;
+    private final String remoteFileName;
+    private final String localFileName;
+    private TransferOptions options; //requested until the server answers, agreed from then on
+    private final Map<String, String> requested;
+    private final CompletableFuture<TransferResult> result = new CompletableFuture<>();
+    private final RetransmissionTimer timer = new RetransmissionTimer();
+    private final PacketFactory factory = new PacketFactory();
+    private final PacketView view = new PacketView(); //wrapped around recvBuf for every packet read
+    private final ByteBuffer recvBuf;
+    private final ByteBuffer sendBuf; //the request, ACKs and ERRORs are encoded here, the last one stays for retransmission
+    private State state;
+    private long deadline; //System.nanoTime() at which the retransmission timer expires
+    private final TransferMetrics metrics = TransferMetrics.global();
+    private TransferStats stats;
+    private boolean complete; //the whole file has been received and committed, or sent and acknowledged
+
+    //RRQ state
+    private WriteBehindSink file; //opened with the first block, once the block size is agreed
+    private int expectedBlock = 1;
+    private int sinceAck;
+    private boolean gapAcknowledged;
+    private int dallyAnswers; //final acks sent again while dallying
+
+    //WRQ state, blocks are sent from a memory mapping of the file with gathering writes
+    private MappedBlockSource source;
+    private final ByteBuffer header = ByteBuffer.allocateDirect(4);
+    private final ByteBuffer[] gather = new ByteBuffer[]{header, null};
+    private long firstIndex; //index of the oldest unacknowledged block, counted from 0 without wrapping
+    private int inFlight; //blocks of the current window that have been sent
+    private int blockNo = 1;
+
+    /**
+     * This constructor sets up a transfer that has not been started yet
+     *
+     * @param channel non-blocking channel bound to an ephemeral port, not connected
+     * @param server address of the server's well-known port
+     * @param read true for a RRQ, false for a WRQ
+     * @param remoteFileName name of the file on the server
+     * @param localFileName name of the local file
+     * @param options options to request
+     */
+    public ClientTransfer(DatagramChannel channel, InetSocketAddress server, boolean read, String remoteFileName, String localFileName, TransferOptions options) {
+        this.channel = channel;
+        this.server = server;
+        this.read = read;
+        this.remoteFileName = remoteFileName;
+        this.localFileName = localFileName;
+        this.options = options;
+        this.requested = options.toRequestOptions();
+        this.recvBuf = ByteBuffer.allocate(Math.max(options.getPacketSize(), 516)); //the agreed block size is never bigger than the requested one
+        this.sendBuf = ByteBuffer.allocate(516 + 4 * remoteFileName.length()); //room for a long UTF-8 file name in the request
+        applyTimeout();
+    }
+
+    /**
+     * Getter method for the future completed when the transfer ends.
+     *
+     * @return the result of the transfer
+     */
+    public CompletableFuture<TransferResult> getResult() {
+        return result;
+    }
+
+    @Override
+    public DatagramChannel getChannel() {
+        return channel;
+    }
+
+    @Override
+    public long getDeadline() {
+        return deadline;
+    }
+
+    @Override
+    public boolean isDone() {
+        return state == State.DONE;
+    }
+
+    /**
+     * Starts the transfer by sending the request, a WRQ is only sent if the local file exists.
+     */
+    @Override
+    public void start() {
+        stats = metrics.transferStarted(localFileName, server, !read);
+        state = State.REQUESTED;
+        if (!read && !Files.isRegularFile(Paths.get(localFileName))) {
+            finish(new FileNotFoundException(localFileName));
+            return;
+        }
+
+        try {
+            if (read) {
+                factory.encodeRRQ(sendBuffer(), remoteFileName, requested);
+            } else {
+                factory.encodeWRQ(sendBuffer(), remoteFileName, requested);
+            }
+            send();
+        } catch (IOException ex) {
+            finish(ex);
+        }
+    }
+
+    /**
+     * Called by the event loop when the channel is readable. Every datagram waiting
+     * on the channel is read and fed into the state machine.
+     */
+    @Override
+    public void onReadable() {
+        boolean progressed = false; //only new packets restart the timer, a stream of duplicates must not keep the transfer alive
+        try {
+            while (state != State.DONE) {
+                recvBuf.clear();
+                InetSocketAddress from;
+                try {
+                    from = (InetSocketAddress) channel.receive(recvBuf);
+                } catch (PortUnreachableException ex) {
+                    continue; //ICMP for a late retransmission to a port the server has closed, its last reply may still be waiting
+                }
+                if (from == null) {
+                    break; //nothing more waiting
+                }
+                if (!channel.isConnected()) {
+                    if (!from.getAddress().equals(server.getAddress())) {
+                        continue; //not from the server
+                    }
+                    channel.connect(from); //the port the server answered from is its TID for this transfer
+                }
+
+                PacketView received = view.wrap(recvBuf.array(), recvBuf.position());
+
+                if (state == State.DALLYING) {
+                    onDally(received);
+                } else if (!received.isValid()) {
+                    fail(0, "Invalid packet");
+                } else if (received.getOpCode() == 5) {
+                    metrics.errorReceived(received.getErrorCode());
+                    finish(new IllegalStateException("Error received: " + received.getErrorCode() + " " + received.getErrorMessage()));
+                } else if (state == State.REQUESTED) {
+                    timer.replyReceived();
+                    onFirstReply(received);
+                    progressed = true;
+                } else if (state == State.RECEIVING) {
+                    progressed |= onData(received);
+                } else {
+                    progressed |= onAck(received);
+                }
+            }
+            if (progressed && state != State.DALLYING) {
+                restartTimer(); //like a blocking receive, the next packet gets a full timeout from now
+            }
+        } catch (IOException ex) {
+            if (Log.isEnabled(Log.Level.WARN)) {
+                Log.warn("Transfer of " + localFileName + " failed: ", ex.getMessage());
+            }
+            finish(ex);
+        }
+    }
+
+    /**
+     * Called by the event loop when the retransmission timer has expired.
+     * The last packet (or window) is sent again unless the retry limit has been reached.
+     */
+    @Override
+    public void onTimeout() {
+        if (state == State.DALLYING) {
+            state = State.DONE; //the final ack arrived, the server did not retransmit
+            return;
+        }
+        if (!timer.backoff()) {
+            fail(0, "Transfer timed out");
+            return;
+        }
+        stats.addRetransmission();
+
+        try {
+            if (state == State.SENDING) {
+                sendWindow();
+            } else if (state == State.RECEIVING && sinceAck > 0) {
+                sendAck((expectedBlock - 1) & 0xffff); //rest of the window was lost, tell the sender where to restart
+                sinceAck = 0;
+            } else {
+                resend();
+            }
+        } catch (IOException ex) {
+            fail(0, "Could not retransmit");
+        }
+    }
+
+    /**
+     * Called by the event loop when the client is closed, the server is told with an error.
+     */
+    @Override
+    public void abort() {
+        if (state == State.DALLYING) {
+            state = State.DONE; //the file was received, nothing is open
+            return;
+        }
+        if (stats == null) {
+            state = State.DONE; //never started
+            result.completeExceptionally(new IllegalStateException("Client closed"));
+            return;
+        }
+        fail(0, "Client closed");
+    }
+
+    //the OACK, or the first block or ACK 0 of a server that ignored the options
+    private void onFirstReply(PacketView received) throws IOException {
+        int opCode = received.getOpCode();
+        if (opCode == 6) {
+            try {
+                options.applyAcknowledged(received.getOptions());
+            } catch (IllegalArgumentException ex) {
+                fail(8, ex.getMessage()); //8 = option negotiation refused (RFC 2347)
+                return;
+            }
+        } else {
+            options = new TransferOptions(); //the server ignored the options
+        }
+        applyTimeout();
+
+        if (read && opCode == 6) {
+            state = State.RECEIVING;
+            sendAck(0); //acknowledging the OACK tells the server to start sending data
+        } else if (read && opCode == 3) {
+            state = State.RECEIVING;
+            onData(received);
+        } else if (!read && (opCode == 6 || opCode == 4 && received.getBlockNum() == 0)) {
+            source = new MappedBlockSource(localFileName, options.getBlockSize());
+            state = State.SENDING;
+            sendWindow();
+        } else {
+            fail(4, "Unexpected response"); //4 = illegal TFTP operation
+        }
+    }
+
+    //returns false for a duplicate block or OACK, which is not written or applied again
+    private boolean onData(PacketView received) throws IOException {
+        if (received.getOpCode() == 6 && expectedBlock == 1) {
+            metrics.duplicateAck(); //the server sent its OACK again, ack 0 was lost
+            sendAck(0);
+            return false;
+        }
+        if (received.getOpCode() != 3) {
+            fail(4, "Unexpected opcode");
+            return false;
+        }
+
+        int behind = (expectedBlock - received.getBlockNum()) & 0xffff;
+        if (behind > 0 && behind <= options.getWindowSize()) {
+            metrics.duplicateData();
+            if (behind == 1 && sinceAck == 0) {
+                sendAck(received.getBlockNum()); //last block acknowledged, the ack itself was lost
+            }
+            return false;
+        }
+
+        if (behind != 0) {
+            //out of sequence, acknowledge the last good block once so the sender restarts the window from there
+            if (!gapAcknowledged) {
+                sendAck((expectedBlock - 1) & 0xffff);
+                gapAcknowledged = true;
+            }
+            sinceAck = 0;
+            return false;
+        }
+        timer.replyReceived();
+
+        if (file == null) {
+            try {
+                file = new WriteBehindSink(localFileName, options.getBlockSize(), WriteBehindSink.FsyncPolicy.NONE);
+            } catch (IOException ex) {
+                fail(2, "Could not write file"); //2 = access violation
+                return false;
+            }
+            stats.firstBlock();
+        }
+
+        int size = received.getPayloadLength();
+        recvBuf.limit(received.getPayloadOffset() + size).position(received.getPayloadOffset()); //write the payload straight from the receive buffer
+        file.write(recvBuf); //copied into the ring, written by the background writer
+        metrics.bytesReceived(stats, size);
+
+        boolean lastBlock = size < options.getBlockSize();
+        gapAcknowledged = false;
+        sinceAck++;
+
+        if (lastBlock) {
+            try {
+                file.commit(); //the file is complete under its own name before the final ack goes out
+            } catch (IOException ex) {
+                fail(3, "Could not write file"); //3 = disk full or allocation exceeded
+                return false;
+            }
+            complete = true;
+        }
+
+        if (lastBlock || sinceAck == options.getWindowSize()) { //only the last block of each window is acknowledged
+            sendAck(expectedBlock);
+            sinceAck = 0;
+        }
+
+        expectedBlock = (expectedBlock + 1) & 0xffff;
+
+        if (lastBlock) {
+            dally();
+        }
+        return true;
+    }
+
+    //the file is complete and the result is given, the transfer stays on the loop for the dally timeout so a lost
+    //final ack does not leave the server retrying until it gives up on a file that was received (RFC 1350 section 6)
+    private void dally() {
+        finish(null);
+        state = State.DALLYING;
+        deadline = System.nanoTime() + timer.getDallyTimeout() * 1_000_000L;
+    }
+
+    //a block of the last window means the final ack was lost and the window is retransmitted, its last block is
+    //answered with the final ack, which is still in sendBuf, anything else ends the dally
+    private void onDally(PacketView received) throws IOException {
+        int behind = received.isValid() && received.getOpCode() == 3 ? (expectedBlock - 1 - received.getBlockNum()) & 0xffff : options.getWindowSize();
+        if (behind >= options.getWindowSize() || dallyAnswers == RetransmissionTimer.DEFAULT_MAX_RETRIES) {
+            state = State.DONE;
+            return;
+        }
+        metrics.duplicateData();
+        if (behind == 0) {
+            resend();
+            dallyAnswers++;
+            deadline = System.nanoTime() + timer.getDallyTimeout() * 1_000_000L; //the next retransmission may follow a backed off timeout
+        }
+    }
+
+    //returns false for a stale duplicate, which is ignored rather than answered with the window (RFC 1123 section 4.2.3.1)
+    private boolean onAck(PacketView received) throws IOException {
+        if (received.getOpCode() == 6) {
+            metrics.duplicateAck(); //OACK sent again before our first window arrived
+            return false;
+        }
+        if (received.getOpCode() != 4) {
+            fail(4, "Unexpected response");
+            return false;
+        }
+
+        int acknowledged = (received.getBlockNum() - blockNo + 1) & 0xffff; //wraps the same way block numbers do
+        if (acknowledged == 0 || acknowledged > inFlight) {
+            metrics.duplicateAck(); //e.g. the ack of a window that was also retransmitted, answering it would send every window twice
+            return false;
+        }
+        timer.replyReceived();
+        if (firstIndex == 0) {
+            stats.firstBlock();
+        }
+
+        firstIndex += acknowledged;
+        blockNo = (blockNo + acknowledged) & 0xffff;
+
+        if (firstIndex == source.getBlockCount()) {
+            complete = true;
+            finish(null); //last block acknowledged
+        } else {
+            sendWindow();
+        }
+        return true;
+    }
+
+    //sends every unacknowledged block of the window, straight from the mapping
+    private void sendWindow() throws IOException {
+        inFlight = (int) Math.min(options.getWindowSize(), source.getBlockCount() - firstIndex);
+
+        for (int i = 0; i < inFlight; i++) {
+            header.clear();
+            factory.encodeDataHeader(header, blockNo + i);
+            header.flip();
+
+            gather[1] = source.block(firstIndex + i);
+            metrics.bytesSent(stats, gather[1].remaining());
+            try {
+                channel.write(gather); //one datagram made of both buffers
+            } catch (PortUnreachableException ex) {
+                //reported for an earlier packet, this one is lost like any other and the timer resends it
+            }
+        }
+
+        timer.packetSent();
+        restartTimer();
+    }
+
+    private void sendAck(int blockNum) throws IOException {
+        factory.encodeAck(sendBuffer(), blockNum);
+        send();
+    }
+
+    private ByteBuffer sendBuffer() {
+        sendBuf.clear();
+        return sendBuf;
+    }
+
+    //sends what was encoded into sendBuf since sendBuffer() was called
+    private void send() throws IOException {
+        sendBuf.flip();
+        transmit();
+    }
+
+    //sends the last packet again, it is still in sendBuf
+    private void resend() throws IOException {
+        sendBuf.rewind();
+        transmit();
+    }
+
+    //the request goes to the well-known port, everything after it to the server's TID
+    private void transmit() throws IOException {
+        try {
+            if (channel.isConnected()) {
+                channel.write(sendBuf); //a full socket buffer drops the packet, the timer will resend it
+            } else {
+                channel.send(sendBuf, server);
+            }
+        } catch (PortUnreachableException ex) {
+            //reported for an earlier packet, the timer resends this one
+        }
+        timer.packetSent();
+        restartTimer();
+    }
+
+    //a negotiated timeout option replaces the default initial retransmission timeout
+    private void applyTimeout() {
+        timer.setInitialTimeout(options.getTimeout() > 0 ? options.getTimeout() * 1000 : RetransmissionTimer.DEFAULT_INITIAL_TIMEOUT_MILLIS);
+    }
+
+    private void restartTimer() {
+        deadline = System.nanoTime() + timer.getTimeout() * 1_000_000L;
+    }
+
+    //tells the server, if it has answered, and ends the transfer
+    private void fail(int errorCode, String errorMessage) {
+        if (channel.isConnected()) {
+            metrics.errorSent(errorCode);
+            try {
+                factory.encodeError(sendBuffer(), errorCode, errorMessage);
+                sendBuf.flip();
+                channel.write(sendBuf);
+            } catch (IOException ex) {
+                Log.warn("Could not send error!");
+            }
+        }
+        finish(new IllegalStateException(errorMessage));
+    }
+
+    private void finish(Throwable failure) {
+        if (state == State.DALLYING) {
+            state = State.DONE; //already ended when the dally began
+            return;
+        }
+        state = State.DONE;
+        metrics.transferEnded(stats, complete);
+        if (source != null) {
+            try {
+                source.close();
+            } catch (IOException ex) {
+                Log.warn("Could not close ", localFileName);
+            }
+        }
+        if (file != null) {
+            file.close(); //deletes the partial file unless it was committed
+        }
+
+        if (complete) {
+            result.complete(new TransferResult(remoteFileName, localFileName, read, options, stats));
+        } else {
+            result.completeExceptionally(failure);
+        }
+    }
+
+}
@@ -0,0 +1,307 @@
+package tftpclient;
+
+import common.Histogram;
+import common.TransferOptions;
+import common.TransferStats;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The LoadGenerator class runs many TFTP sessions against one server from a single JVM, for
+ * example to reproduce a boot storm. A number of workers (the concurrency) each run one session
+ * after another, every session on a new ephemeral port so the server sees a new TID. Workers are
+ * started evenly over the ramp-up time and stop when the session count or the duration is reached.
+ * Each session picks a file from the mix by weight and reads (RRQ) or writes (WRQ) it.
+ * The generator records the time to the first block and the total time of every session,
+ * the bytes moved and the errors by cause. Downloaded files go to a scratch directory that is
+ * deleted at the end, uploads of a file replace the same remote file (loadgen-name) every time.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public class LoadGenerator {
+
+    public static final int PROGRESS_SECONDS = 5;
+
+    private final String host;
+    private final int port;
+    private final TransferOptions options;
+    private final List<MixEntry> mix = new ArrayList<>();
+    private int totalWeight;
+    private int concurrency = 100;
+    private long sessions = 1000;
+    private long durationSeconds; //0 = no time limit
+    private long rampUpSeconds;
+
+    private final AtomicLong started = new AtomicLong();
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final Histogram firstBlockMicros = new Histogram();
+    private final Histogram totalMicros = new Histogram();
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private long startNanos;
+    private long endNanos;
+
+    /**
+     * This constructor sets up a generator for one server
+     *
+     * @param host name or address of the server
+     * @param port port of the server
+     * @param options options requested by every session
+     */
+    public LoadGenerator(String host, int port, TransferOptions options) {
+        this.host = host;
+        this.port = port;
+        this.options = options;
+    }
+
+    /**
+     * Adds a file to the mix.
+     *
+     * @param read true to read the file from the server, false to write the local file to the server as loadgen-name
+     * @param fileName name of the file
+     * @param weight relative share of the sessions that use this file
+     */
+    public void addFile(boolean read, String fileName, int weight) {
+        if (weight <= 0) {
+            throw new IllegalStateException("Weight of " + fileName + " must be positive");
+        }
+        mix.add(new MixEntry(read, fileName, weight));
+        totalWeight += weight;
+    }
+
+    /**
+     * Sets the number of sessions running at once.
+     *
+     * @param concurrency number of workers
+     */
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Sets the number of sessions to run in total.
+     *
+     * @param sessions sessions over all workers, 0 to run until the duration is over
+     */
+    public void setSessions(long sessions) {
+        this.sessions = sessions;
+    }
+
+    /**
+     * Sets how long the load runs.
+     *
+     * @param durationSeconds seconds from the start, 0 to run until the session count is reached
+     */
+    public void setDurationSeconds(long durationSeconds) {
+        this.durationSeconds = durationSeconds;
+    }
+
+    /**
+     * Sets the time over which the workers are started.
+     *
+     * @param rampUpSeconds seconds between the first and the last worker starting, 0 to start all at once
+     */
+    public void setRampUpSeconds(long rampUpSeconds) {
+        this.rampUpSeconds = rampUpSeconds;
+    }
+
+    /**
+     * Runs the load and waits until every worker has finished. A progress line is printed every few seconds.
+     *
+     * @throws IOException if the scratch directory cannot be created
+     * @throws InterruptedException if interrupted while waiting for the workers
+     */
+    public void run() throws IOException, InterruptedException {
+        if (mix.isEmpty()) {
+            throw new IllegalStateException("No files in the mix");
+        }
+        if (sessions <= 0 && durationSeconds <= 0) {
+            throw new IllegalStateException("Either a session count or a duration is needed");
+        }
+
+        Path scratch = Files.createTempDirectory("tftp-load");
+        ExecutorService workers = newExecutor();
+        ScheduledProgress progress = new ScheduledProgress();
+        startNanos = System.nanoTime();
+        try {
+            for (int i = 0; i < concurrency; i++) {
+                long delayNanos = concurrency > 1 ? TimeUnit.SECONDS.toNanos(rampUpSeconds) * i / (concurrency - 1) : 0;
+                File local = scratch.resolve("worker-" + i).toFile();
+                workers.execute(() -> work(delayNanos, local));
+            }
+            workers.shutdown();
+            while (!workers.awaitTermination(1, TimeUnit.SECONDS)) {
+                progress.tick();
+            }
+        } finally {
+            endNanos = System.nanoTime();
+            workers.shutdownNow();
+            deleteScratch(scratch);
+        }
+    }
+
+    //one worker, runs sessions one after another until the count or the time is up
+    private void work(long delayNanos, File local) {
+        long startAt = startNanos + delayNanos;
+        long wait;
+        while ((wait = startAt - System.nanoTime()) > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException ex) {
+                return;
+            }
+        }
+
+        long stopAt = startNanos + TimeUnit.SECONDS.toNanos(durationSeconds);
+        while (!Thread.currentThread().isInterrupted()) {
+            if (durationSeconds > 0 && System.nanoTime() - stopAt >= 0) {
+                return;
+            }
+            if (sessions > 0 && started.incrementAndGet() > sessions) {
+                return;
+            }
+            runSession(pick(), local);
+        }
+    }
+
+    private void runSession(MixEntry entry, File local) {
+        TFTPClient client = new TFTPClient(host, port, 0, options); //0 = ephemeral port, a new TID for every session
+        long start = System.nanoTime();
+        try {
+            TransferStats stats = entry.read ? client.getFile(entry.fileName, local.getPath()) : client.sendFile(entry.fileName, entry.remoteName);
+            long end = System.nanoTime();
+
+            if (stats == null) { //received over multicast, no block timing
+                succeeded.increment();
+                totalMicros.record((end - start) / 1000);
+                bytes.add(local.length());
+            } else if (stats.isSucceeded()) {
+                succeeded.increment();
+                totalMicros.record((end - start) / 1000);
+                if (stats.getFirstBlockNanos() != 0) {
+                    firstBlockMicros.record((stats.getFirstBlockNanos() - start) / 1000);
+                }
+                bytes.add(stats.getBytes());
+            } else {
+                error(stats.getFirstBlockNanos() == 0 ? "no data" : "transfer incomplete");
+            }
+        } catch (IllegalStateException ex) {
+            error(String.valueOf(ex.getMessage()));
+        }
+    }
+
+    private void error(String cause) {
+        failed.increment();
+        errors.computeIfAbsent(cause, key -> new LongAdder()).increment();
+    }
+
+    private MixEntry pick() {
+        int ticket = ThreadLocalRandom.current().nextInt(totalWeight);
+        for (MixEntry entry : mix) {
+            ticket -= entry.weight;
+            if (ticket < 0) {
+                return entry;
+            }
+        }
+        return mix.get(mix.size() - 1);
+    }
+
+    /**
+     * Describes the results so far over several lines: sessions, error rate, throughput,
+     * percentiles of the time to first block and of the total time, and the errors by cause.
+     *
+     * @return the report
+     */
+    public String getReport() {
+        long ok = succeeded.sum();
+        long bad = failed.sum();
+        long end = endNanos != 0 ? endNanos : System.nanoTime();
+        double seconds = Math.max(1, end - startNanos) / 1e9;
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("sessions=%d ok=%d failed=%d errorRate=%.2f%% elapsed=%.1fs%n",
+                ok + bad, ok, bad, ok + bad == 0 ? 0.0 : 100.0 * bad / (ok + bad), seconds));
+        report.append(String.format("throughput=%.1f sessions/s %.2f MB/s%n", ok / seconds, bytes.sum() / seconds / (1024 * 1024)));
+        report.append(percentiles("firstBlock", firstBlockMicros));
+        report.append(percentiles("total", totalMicros));
+        for (Map.Entry<String, LongAdder> error : errors.entrySet()) {
+            report.append("error ").append(error.getKey()).append(": ").append(error.getValue().sum()).append('\n');
+        }
+        return report.toString();
+    }
+
+    private static String percentiles(String name, Histogram histogram) {
+        return String.format("%s ms: p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f%n", name,
+                histogram.getPercentile(50) / 1000.0, histogram.getPercentile(90) / 1000.0, histogram.getPercentile(99) / 1000.0,
+                histogram.getPercentile(99.9) / 1000.0, histogram.getMax() / 1000.0);
+    }
+
+    private static void deleteScratch(Path scratch) {
+        File[] files = scratch.toFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        scratch.toFile().delete();
+    }
+
+    //virtual threads (Java 21+) let thousands of blocking sessions run cheaply, looked up by reflection as in TransferExecutor
+    private static ExecutorService newExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "tftp-load");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    //prints one progress line every PROGRESS_SECONDS while the load runs
+    private class ScheduledProgress {
+
+        private long next = System.nanoTime() + TimeUnit.SECONDS.toNanos(PROGRESS_SECONDS);
+
+        private void tick() {
+            if (System.nanoTime() - next >= 0) {
+                next += TimeUnit.SECONDS.toNanos(PROGRESS_SECONDS);
+                System.out.println("progress ok=" + succeeded.sum() + " failed=" + failed.sum() + " total p99=" + totalMicros.getPercentile(99) / 1000 + "ms");
+            }
+        }
+    }
+
+    //a file of the mix
+    private static class MixEntry {
+
+        private final boolean read;
+        private final String fileName;
+        private final String remoteName; //uploads get a name of their own so they never replace a file being read
+        private final int weight;
+
+        MixEntry(boolean read, String fileName, int weight) {
+            this.read = read;
+            this.fileName = fileName;
+            this.remoteName = "loadgen-" + new File(fileName).getName();
+            this.weight = weight;
+        }
+    }
+
+}
@@ -0,0 +1,302 @@
+package tftpclient;
+
+import common.MulticastGroup;
+import common.PacketFactory;
+import common.PacketView;
+import common.RetransmissionTimer;
+import common.TransferOptions;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * The MulticastReceiver class receives a file over multicast (RFC 2090) once the server has
+ * acknowledged the multicast option. The client joins the group and writes every block it
+ * receives to its place in the file, whichever order the blocks come in. While the client is the
+ * master client it acknowledges the block before the first one it is missing, which makes the
+ * server send that block next. A client that is not the master only listens until the server makes
+ * it master with a new OACK or until it has every block. When the file is complete the last block
+ * is acknowledged so the server drops the client from the session. That ACK can be lost like any other,
+ * so the client lingers for up to LINGER_MILLIS and sends it again, with a doubling interval and whenever
+ * the server shows it missed it (it sends the last block again, or makes the client master). It stops early
+ * once the server streams other blocks to the group, which means a new master has taken over.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public class MulticastReceiver {
+
+    public static final int LINGER_MILLIS = 2000; //how long the final ACK is repeated in case it was lost
+    private static final int MAX_IDLE_MILLIS = 120_000; //a client waiting for its turn as master gives up after this long without packets
+
+    private final DatagramChannel unicast;
+    private final SocketAddress server;
+    private final int blockSize;
+    private final PacketFactory factory = new PacketFactory();
+    private final PacketView view = new PacketView();
+    private final RetransmissionTimer timer = new RetransmissionTimer();
+    private final ByteBuffer sendBuf = ByteBuffer.allocate(4); //only ACKs are sent
+    private final ByteBuffer recvBuf;
+    private final BitSet received = new BitSet(); //bit n is set once block n has been written
+    private int lastBlock = -1; //block number of the short block that ends the file, -1 until it arrives
+    private boolean master;
+    private double loss; //share of packets ignored or not sent, as if the network had lost them
+    private Random random;
+
+    /**
+     * This constructor sets up the receiver for a transfer whose OACK has already arrived
+     *
+     * @param unicast channel the request was sent from, ACKs are sent from it and further OACKs arrive on it
+     * @param server address and port of the session on the server (the source of the OACK)
+     * @param blockSize negotiated block size
+     * @param timeoutMillis initial retransmission timeout for the master's ACKs
+     */
+    public MulticastReceiver(DatagramChannel unicast, SocketAddress server, int blockSize, int timeoutMillis) {
+        this.unicast = unicast;
+        this.server = server;
+        this.blockSize = blockSize;
+        this.recvBuf = ByteBuffer.allocate(Math.max(blockSize + 4, 516));
+        timer.setInitialTimeout(timeoutMillis);
+    }
+
+    /**
+     * Sets a share of packets this receiver treats as lost: blocks from the group it ignores and ACKs it
+     * does not send, e.g. to try how the session repairs a lossy receiver. Must be set before receive.
+     *
+     * @param loss probability between 0 and 1
+     * @param seed seed of the random decisions
+     */
+    public void setLoss(double loss, long seed) {
+        this.loss = loss;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Joins the group and receives the file.
+     *
+     * @param group group and master flag from the OACK
+     * @param localFileName name of the file to be written
+     * @throws IOException if an I/O error occurs or the transfer times out
+     */
+    public void receive(MulticastGroup group, String localFileName) throws IOException {
+        NetworkInterface networkInterface = MulticastGroup.interfaceTowards(((InetSocketAddress) server).getAddress());
+
+        try (DatagramChannel multicast = DatagramChannel.open(StandardProtocolFamily.INET);
+                Selector selector = Selector.open();
+                RandomAccessFile out = new RandomAccessFile(localFileName, "rw")) {
+
+            out.setLength(0);
+            FileChannel file = out.getChannel();
+
+            multicast.setOption(StandardSocketOptions.SO_REUSEADDR, true); //every client on this host listens on the group port
+            multicast.bind(new InetSocketAddress(group.getGroup().getPort()));
+            MembershipKey membership = multicast.join(group.getGroup().getAddress(), networkInterface);
+
+            multicast.configureBlocking(false);
+            unicast.configureBlocking(false);
+            multicast.register(selector, SelectionKey.OP_READ);
+            unicast.register(selector, SelectionKey.OP_READ);
+
+            if (group.isMaster()) {
+                becomeMaster();
+            }
+
+            long lastPacket = System.nanoTime();
+
+            while (!isComplete()) {
+                int timeout = master ? timer.getTimeout() : 1000;
+                if (selector.select(timeout) == 0) {
+                    if (master) {
+                        if (!timer.backoff()) {
+                            throw new IOException("Multicast transfer timed out");
+                        }
+                        sendAck(firstMissing() - 1); //ask again for the block after the last one in sequence
+                    } else if (System.nanoTime() - lastPacket > MAX_IDLE_MILLIS * 1_000_000L) {
+                        throw new IOException("Multicast transfer timed out waiting to become master");
+                    }
+                    continue;
+                }
+                selector.selectedKeys().clear();
+                lastPacket = System.nanoTime();
+
+                readGroup(multicast, file);
+                readServer();
+            }
+
+            sendAck(lastBlock); //tells the server this client is done, as master or not
+            linger(selector, multicast);
+            membership.drop();
+        }
+    }
+
+    //repeats the final ACK until the server has moved on to a new master or LINGER_MILLIS have passed
+    private void linger(Selector selector, DatagramChannel multicast) throws IOException {
+        long sent = System.nanoTime();
+        long end = sent + LINGER_MILLIS * 1_000_000L;
+        long interval = timer.getTimeout();
+        long nextResend = sent + interval * 1_000_000L;
+
+        while (true) {
+            long now = System.nanoTime();
+            if (now - end >= 0) {
+                return;
+            }
+            if (now - nextResend >= 0) {
+                sendAck(lastBlock);
+                interval *= 2;
+                nextResend = now + interval * 1_000_000L;
+            }
+            long waitMillis = Math.max(1, (Math.min(end, nextResend) - now) / 1_000_000L);
+            if (selector.select(waitMillis) == 0) {
+                continue;
+            }
+            selector.selectedKeys().clear();
+
+            boolean missed = false;
+            recvBuf.clear();
+            SocketAddress source;
+            while ((source = multicast.receive(recvBuf)) != null) {
+                PacketView packet = view.wrap(recvBuf.array(), recvBuf.position());
+                recvBuf.clear();
+                if (!source.equals(server) || !packet.isValid() || packet.getOpCode() != 3 || !master) {
+                    continue; //the stream of another master goes on whether or not this client is done
+                }
+                if (packet.getBlockNum() == lastBlock) {
+                    missed = true; //the last block sent again, the server still waits for this client
+                } else if (System.nanoTime() - sent > RetransmissionTimer.MIN_TIMEOUT_MILLIS * 1_000_000L + (long) (timer.getSmoothedRtt() * 1_000_000)) {
+                    return; //not an answer to an earlier ACK, the server streams for a new master
+                }
+            }
+            while ((source = unicast.receive(recvBuf)) != null) {
+                PacketView packet = view.wrap(recvBuf.array(), recvBuf.position());
+                recvBuf.clear();
+                if (!source.equals(server) || !packet.isValid()) {
+                    continue;
+                }
+                if (packet.getOpCode() == 6) {
+                    missed = true; //an OACK, the server made this client master again
+                } else if (packet.getOpCode() == 5) {
+                    return; //the session has ended
+                }
+            }
+            if (missed) {
+                sendAck(lastBlock);
+            }
+        }
+    }
+
+    //writes every DATA block waiting on the group socket
+    private void readGroup(DatagramChannel multicast, FileChannel file) throws IOException {
+        while (true) {
+            recvBuf.clear();
+            SocketAddress source = multicast.receive(recvBuf);
+            if (source == null) {
+                return;
+            }
+            if (!source.equals(server)) {
+                continue; //another session sending to the same port
+            }
+
+            PacketView packet = view.wrap(recvBuf.array(), recvBuf.position());
+            if (!packet.isValid() || packet.getOpCode() != 3 || lost()) {
+                continue;
+            }
+
+            int blockNum = packet.getBlockNum();
+            if (blockNum == 0 || received.get(blockNum)) {
+                if (master && !isComplete()) {
+                    sendAck(firstMissing() - 1); //sent again by the session because this master's ACK was lost
+                }
+                continue; //already written, sent again for another client
+            }
+
+            int size = packet.getPayloadLength();
+            recvBuf.limit(packet.getPayloadOffset() + size).position(packet.getPayloadOffset());
+            long position = (long) (blockNum - 1) * blockSize;
+            while (recvBuf.hasRemaining()) {
+                position += file.write(recvBuf, position);
+            }
+
+            received.set(blockNum);
+            if (size < blockSize) {
+                lastBlock = blockNum;
+            }
+
+            if (master && !isComplete()) {
+                timer.replyReceived();
+                sendAck(firstMissing() - 1);
+            }
+        }
+    }
+
+    //handles OACKs and errors from the session, an OACK with the master flag makes this client master
+    private void readServer() throws IOException {
+        while (true) {
+            recvBuf.clear();
+            SocketAddress source = unicast.receive(recvBuf);
+            if (source == null) {
+                return;
+            }
+
+            PacketView packet = view.wrap(recvBuf.array(), recvBuf.position());
+            if (!packet.isValid()) {
+                continue;
+            }
+
+            if (packet.getOpCode() == 5) {
+                throw new IllegalStateException("Multicast transfer failed: " + packet.getErrorCode() + " " + packet.getErrorMessage());
+            }
+
+            if (packet.getOpCode() == 6) {
+                String value = packet.getOptions().get(TransferOptions.MULTICAST);
+                MulticastGroup group = value == null ? null : MulticastGroup.parse(value);
+                if (group != null && group.isMaster() && !master) {
+                    becomeMaster();
+                }
+            }
+        }
+    }
+
+    private void becomeMaster() throws IOException {
+        master = true;
+        if (!isComplete()) {
+            sendAck(firstMissing() - 1); //the server continues from the first block this client is missing
+        }
+    }
+
+    private int firstMissing() {
+        return received.nextClearBit(1);
+    }
+
+    private boolean isComplete() {
+        return lastBlock > 0 && firstMissing() > lastBlock;
+    }
+
+    private void sendAck(int blockNum) throws IOException {
+        timer.packetSent();
+        if (lost()) {
+            return;
+        }
+        sendBuf.clear();
+        factory.encodeAck(sendBuf, blockNum);
+        sendBuf.flip();
+        unicast.send(sendBuf, server);
+    }
+
+    private boolean lost() {
+        return random != null && random.nextDouble() < loss;
+    }
+
+}
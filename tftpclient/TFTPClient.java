@@ -1,12 +1,38 @@
 package tftpclient;
 
 import common.Channel;
+import common.DatagramTransport;
+import common.Log;
+import common.MulticastGroup;
 import common.PacketFactory;
 import common.RequestParser;
+import common.RetransmissionTimer;
+import common.TransferMetrics;
+import common.TransferOptions;
+import common.TransferStats;
+import common.WriteBehindSink;
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 /**
@@ -20,8 +46,11 @@ public class TFTPClient {
 
     PacketFactory packetFactory = new PacketFactory();
     RequestParser parser = new RequestParser();
+    private final String host;
     private final int portNumServer;
     private final int portNumClient;
+    private final TransferOptions options;
+    private DatagramTransport.Factory transportFactory = DatagramTransport.DIRECT;
 
     /**
      * This constructor initialises the port number for both the client and the
@@ -31,41 +60,250 @@ public class TFTPClient {
      * @param portNumClient port number of the client
      */
     public TFTPClient(int portNumServer, int portNumClient) {
+        this(portNumServer, portNumClient, new TransferOptions());
+    }
+
+    /**
+     * This constructor initialises the port numbers and the options the client
+     * will ask the server for. Options left at their default are not sent, so
+     * the requests stay plain RFC 1350 requests.
+     *
+     * @param portNumServer port number of the server
+     * @param portNumClient port number of the client
+     * @param options options to request for every transfer
+     */
+    public TFTPClient(int portNumServer, int portNumClient, TransferOptions options) {
+        this("localhost", portNumServer, portNumClient, options);
+    }
+
+    /**
+     * This constructor initialises a client for a server on another host.
+     *
+     * @param host name or address of the server
+     * @param portNumServer port number of the server
+     * @param portNumClient port number of the client, 0 for an ephemeral port chosen by the system
+     * @param options options to request for every transfer
+     */
+    public TFTPClient(String host, int portNumServer, int portNumClient, TransferOptions options) {
+        this.host = host;
         this.portNumServer = portNumServer;
         this.portNumClient = portNumClient;
+        this.options = options;
+    }
+
+    /**
+     * Sets the transport the following transfers send through, e.g. a NetworkSimulator.
+     *
+     * @param transportFactory creates the transport of each transfer from its socket
+     */
+    public void setTransportFactory(DatagramTransport.Factory transportFactory) {
+        this.transportFactory = transportFactory;
     }
 
     /**
      * The get file method executes read requests by sending a packet created
-     * with the help of the PacketFactory class
+     * with the help of the PacketFactory class.
+     * If the multicast option was requested and the server acknowledges it the
+     * file is received from the multicast group by a MulticastReceiver instead.
+     * With the resume option the bytes left in the part file by a failed read of the same
+     * local file are offered to the server, which sends only the rest if they match its file.
      *
      * @param remoteFileName name of the file being read
      * @param localFileName name of the file being written to the server
+     * @return statistics of the transfer, null if the file was received over multicast
      */
-    public void getFile(String remoteFileName, String localFileName) {
+    public TransferStats getFile(String remoteFileName, String localFileName) {
 
         //try with resources will automatically close socket at end of try statement
-        try (DatagramSocket socket = new DatagramSocket(portNumClient)) {
+        try (DatagramChannel datagramChannel = DatagramChannel.open(StandardProtocolFamily.INET)) {
+            datagramChannel.bind(new InetSocketAddress(portNumClient));
+            DatagramSocket socket = datagramChannel.socket(); //the multicast receiver needs the channel behind the socket
             DatagramPacket packet;
 
             PacketFactory factory = new PacketFactory();
-            byte[] rrq = factory.createRRQ(remoteFileName);
+            TransferOptions readOptions = new TransferOptions(options);
+            if (readOptions.isResume()) {
+                File part = WriteBehindSink.partFile(localFileName).toFile();
+                long held = part.isFile() ? part.length() : 0;
+                readOptions.setResumePoint(held, held == 0 ? 1 : TransferOptions.prefixChecksum(part, held));
+            }
+            Map<String, String> requested = readOptions.toRequestOptions();
+            byte[] rrq = factory.createRRQ(remoteFileName, requested);
 
-            InetAddress address = InetAddress.getByName("localhost");
+            InetAddress address = InetAddress.getByName(host);
 
             packet = new DatagramPacket(rrq, rrq.length, address, portNumServer); //creating packet to be sent
 
-            socket.send(packet);
+            Channel channel = new Channel(packet, transportFactory.open(socket), true);
+
+            channel.sendRequest(rrq); //retransmitted by the channel if the server does not answer
+
+            if (!requested.isEmpty()) {
+                channel.setOptions(readOptions);
+                boolean acknowledged = channel.receiveOptionAck();
+                MulticastGroup group = channel.getOptions().getMulticastGroup();
 
-            Channel channel = new Channel(packet, socket, true);
+                if (acknowledged && group != null) { //packet now holds the session's address, the OACK came from there
+                    int timeout = Math.max(channel.getOptions().getTimeout() * 1000, RetransmissionTimer.DEFAULT_INITIAL_TIMEOUT_MILLIS);
+                    new MulticastReceiver(datagramChannel, packet.getSocketAddress(), channel.getOptions().getBlockSize(), timeout).receive(group, localFileName);
+                    return null;
+                }
+                if (acknowledged) {
+                    channel.sendAck(0); //acknowledging the OACK tells the server to start sending data
+                }
+            }
 
             channel.receiveData(localFileName);
+            return channel.getTransferStats();
         } catch (IOException ex) {
             throw new IllegalStateException("No socket!");
         }
 
     }
 
+    /**
+     * Reads a file over several sessions at once, each one fetching a range of the file with the
+     * range option, so a big file can fill a link that a single session leaves mostly idle.
+     * A first request asks for the file size and the range option. If the server acknowledges both,
+     * this probe is ended with error 8 (RFC 2347) and the file is split into ranges of whole blocks.
+     * The ranges are fetched by concurrent sessions, each from its own ephemeral port, and written with
+     * positional writes into a temporary file that replaces the local file once every range is complete.
+     * A server that does not know the option answers the probe like any other read request,
+     * the probe then carries on as a single standard session.
+     *
+     * @param remoteFileName name of the file being read
+     * @param localFileName name of the file being written
+     * @param ranges number of sessions at once
+     * @return statistics of the whole download, or of the single session if the server does not support ranges
+     */
+    public TransferStats getFileParallel(String remoteFileName, String localFileName, int ranges) {
+
+        TransferOptions agreed;
+        try (DatagramSocket socket = new DatagramSocket(portNumClient)) {
+            TransferOptions probeOptions = new TransferOptions(options);
+            probeOptions.setMulticast(false);
+            probeOptions.setResume(false); //ranges are written into a temporary file of their own
+            probeOptions.setTransferSize(0);
+            probeOptions.setRange(0, 0); //only checks that the option is understood, the probe never gets to data if it is
+            Map<String, String> requested = probeOptions.toRequestOptions();
+            byte[] rrq = new PacketFactory().createRRQ(remoteFileName, requested);
+
+            DatagramPacket packet = new DatagramPacket(rrq, rrq.length, InetAddress.getByName(host), portNumServer);
+            Channel channel = new Channel(packet, transportFactory.open(socket), true);
+            channel.sendRequest(rrq);
+            channel.setOptions(probeOptions);
+
+            boolean acknowledged = channel.receiveOptionAck();
+            agreed = channel.getOptions();
+            if (!acknowledged || !agreed.hasRange()) { //no ranges, the probe becomes the download
+                if (acknowledged) {
+                    channel.sendAck(0);
+                }
+                channel.receiveData(localFileName);
+                return channel.getTransferStats();
+            }
+            channel.sendError(8, "Range probe complete"); //8 = option negotiation ended by the client
+        } catch (IOException ex) {
+            throw new IllegalStateException("No socket!");
+        }
+
+        if (agreed.getTransferSize() < 0) {
+            return getFile(remoteFileName, localFileName); //ranges without a size cannot be split, read it in one go
+        }
+        try {
+            return fetchRanges(remoteFileName, localFileName, agreed.getTransferSize(), agreed.getBlockSize(), ranges);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Could not write " + localFileName);
+        }
+    }
+
+    //fetches the ranges at once into a temporary file next to the local file, which replaces it if every range is complete
+    private TransferStats fetchRanges(String remoteFileName, String localFileName, long size, int blockSize, int ranges) throws IOException {
+        long rangeBlocks = Math.max(1, (size / blockSize + ranges - 1) / ranges);
+        long rangeBytes = rangeBlocks * blockSize;
+        int count = (int) Math.max(1, (size + rangeBytes - 1) / rangeBytes);
+
+        Path target = Paths.get(localFileName).toAbsolutePath();
+        Path temp = Files.createTempFile(target.getParent(), "." + target.getFileName(), ".part");
+        TransferStats stats = TransferMetrics.global().transferStarted(localFileName, host + ":" + portNumServer, false);
+        boolean complete = true;
+
+        ExecutorService sessions = Executors.newFixedThreadPool(count, runnable -> {
+            Thread thread = new Thread(runnable, "tftp-range");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try (RandomAccessFile output = new RandomAccessFile(temp.toFile(), "rw")) {
+            output.setLength(size); //every range writes into its own part of the file
+            FileChannel file = output.getChannel();
+
+            List<Future<TransferStats>> parts = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                long offset = i * rangeBytes;
+                long length = Math.min(rangeBytes, size - offset);
+                parts.add(sessions.submit(() -> fetchRange(remoteFileName, localFileName, file, offset, length)));
+            }
+
+            for (Future<TransferStats> part : parts) {
+                try {
+                    TransferStats partStats = part.get();
+                    stats.add(partStats);
+                    complete &= partStats.isSucceeded();
+                } catch (ExecutionException ex) {
+                    Log.warn("Range failed: ", ex.getCause().getMessage());
+                    complete = false;
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    complete = false;
+                }
+            }
+        } finally {
+            sessions.shutdownNow();
+            if (complete) {
+                try {
+                    Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException ex) {
+                    Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } else {
+                Files.deleteIfExists(temp);
+            }
+            TransferMetrics.global().transferEnded(stats, complete);
+        }
+        return stats;
+    }
+
+    //one range, from its own ephemeral port so the server sees a TID of its own
+    private TransferStats fetchRange(String remoteFileName, String localFileName, FileChannel file, long offset, long length) throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(0)) {
+            TransferOptions rangeOptions = new TransferOptions(options);
+            rangeOptions.setMulticast(false);
+            rangeOptions.setResume(false);
+            rangeOptions.setTransferSize(-1);
+            rangeOptions.setRange(offset, length);
+            byte[] rrq = new PacketFactory().createRRQ(remoteFileName, rangeOptions.toRequestOptions());
+
+            DatagramPacket packet = new DatagramPacket(rrq, rrq.length, InetAddress.getByName(host), portNumServer);
+            Channel channel = new Channel(packet, transportFactory.open(socket), true);
+            channel.sendRequest(rrq);
+            channel.setOptions(rangeOptions);
+
+            TransferOptions agreed = channel.receiveOptionAck() ? channel.getOptions() : null;
+            if (agreed == null || agreed.getRangeOffset() != offset || agreed.getRangeLength() != length) {
+                channel.sendError(8, "Range not acknowledged");
+                throw new IllegalStateException("Range " + offset + "," + length + " not acknowledged");
+            }
+            channel.sendAck(0);
+            channel.receiveRange(file, localFileName);
+
+            TransferStats stats = channel.getTransferStats();
+            if (stats.isSucceeded() && stats.getBytes() != length) {
+                throw new IllegalStateException("Range " + offset + "," + length + " ended after " + stats.getBytes() + " bytes");
+            }
+            return stats;
+        }
+    }
+
     /**
      * The send file method implements write requests to the server with the
      * help of the PacketFactory class
@@ -73,26 +311,59 @@ public class TFTPClient {
      * @param localFileName name of the file on the client-side to be written to
      * the server
      * @param remoteFileName name of the file that will be written to the server
+     * @return statistics of the transfer
      */
-    public void sendFile(String localFileName, String remoteFileName) {
+    public TransferStats sendFile(String localFileName, String remoteFileName) {
+        TransferStats stats = send(localFileName, remoteFileName, options);
+        if (stats == null) { //the server held a part of another file and has dropped it, start again without resuming
+            TransferOptions fresh = new TransferOptions(options);
+            fresh.setResume(false);
+            stats = send(localFileName, remoteFileName, fresh);
+        }
+        return stats;
+    }
+
+    //with the resume option the server answers how much of the file it holds, only the rest is sent if that matches the local file
+    private TransferStats send(String localFileName, String remoteFileName, TransferOptions options) {
 
         try (DatagramSocket socket = new DatagramSocket(portNumClient)) {
             DatagramPacket packet;
 
             PacketFactory factory = new PacketFactory();
-            byte[] wrq = factory.createWRQ(remoteFileName);
+            TransferOptions writeOptions = new TransferOptions(options);
+            if (writeOptions.getTransferSize() >= 0) {
+                writeOptions.setTransferSize(new File(localFileName).length()); //tsize of a WRQ carries the real file size
+            }
+            Map<String, String> requested = writeOptions.toRequestOptions();
+            byte[] wrq = factory.createWRQ(remoteFileName, requested);
 
-            InetAddress address = InetAddress.getByName("localhost");
+            InetAddress address = InetAddress.getByName(host);
 
             packet = new DatagramPacket(wrq, wrq.length, address, portNumServer); //creating packet to be sent
 
-            socket.send(packet);
+            Channel channel = new Channel(packet, transportFactory.open(socket), true);
 
-            Channel channel = new Channel(packet, socket, true);
+            channel.sendRequest(wrq);
             
-            channel.receiveAck(0);
+            if (requested.isEmpty()) {
+                channel.receiveAck(0);
+            } else {
+                channel.setOptions(writeOptions);
+                channel.receiveOptionAck(); //OACK or ACK 0, either way the server is ready for data
+            }
+
+            TransferOptions agreed = channel.getOptions();
+            if (agreed.isResume() && agreed.getResumeOffset() > 0) {
+                File local = new File(localFileName);
+                if (TransferOptions.prefixChecksum(local, agreed.getResumeOffset()) != agreed.getResumeChecksum()) {
+                    channel.sendError(8, "Resume point does not match");
+                    return null;
+                }
+                agreed.setRange(agreed.getResumeOffset(), local.length() - agreed.getResumeOffset());
+            }
 
             channel.sendFile(localFileName);
+            return channel.getTransferStats();
         } catch (IOException ex) {
             throw new IllegalStateException("Could not send file");
         }
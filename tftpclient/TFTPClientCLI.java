@@ -5,16 +5,28 @@
  */
 package tftpclient;
 
+import common.Log;
+import common.TransferOptions;
+import common.TransferStats;
 import java.io.IOException;
-import java.util.Scanner;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 /**
- * This class holes the TFTP-UDP-Client project's main method. It takes input
- * from the args[0] parameter of the project which I have left empty for
- * submission purposes. To make read or write requests ensure you have a file
- * name set as a parameter in the default config setup and that you are entering
- * a capital "R" or a capital "W" otherwise the project will not run correctly.
- * If no parameter is passed for args[0] the program will exit and a message explaining what has caused this will print in the console.
+ * This class holds the TFTP-UDP-Client project's main method. args[0] is the command:
+ * "get remote [local]" reads a file, "put local [remote]" writes one, "mget remote..." reads many files at once
+ * into the current directory with the AsyncTFTPClient and "load" runs the LoadGenerator.
+ * The arguments after the command are key=value settings:
+ * host (default localhost) and port (default 9000) of the server, blksize, windowsize, timeout, multicast=true
+ * and resume=true for the requested options, ranges=N for get to fetch the file over N sessions at once, loops=N for mget,
+ * and for load: mix (RRQ:file:weight or WRQ:file:weight, comma separated),
+ * concurrency (default 100), sessions (default 1000, 0 for no limit), duration and rampup in seconds.
+ * Example: load host=10.0.0.5 mix=RRQ:pxelinux.0:10,RRQ:vmlinuz:3,WRQ:log.txt:1 concurrency=2000 rampup=30 sessions=20000
  *
  * @version 1.0 - 09/05/2020
  * @author Candidate Number: 203068
@@ -25,41 +37,102 @@ public class TFTPClientCLI {
      * This is the main method for the whole TFTP-UDP-Client project and it
      * takes input from the command line
      *
-     * @param args input taken from the default config parameter in netbeans
+     * @param args command, file names and key=value settings
      * @throws IOException if there is an I/O error
+     * @throws InterruptedException if interrupted while the load or mget runs
      */
-    public static void main(String[] args) throws IOException {
+    public static void main(String[] args) throws IOException, InterruptedException {
         if (args.length == 0) {
-            System.err.println("ERROR: Expected a file name parameter for args[0]. Please pass a file name as a parameter using the default config menu!!");
+            System.err.println("Usage: get <remote> [local] | put <local> [remote] | mget <remote>... | load mix=RRQ:file:weight,... [key=value ...]");
             System.exit(1);
         }
 
-        TFTPClient client1 = new TFTPClient(9000, 10000);
-
-        TFTPClient client2 = new TFTPClient(9000, 10002);
-        
-        TFTPClient client3 = new TFTPClient(9000, 10003);
-        
-        TFTPClient client4 = new TFTPClient(9000, 10004);
-
-        Scanner in = new Scanner(System.in);
-
-        System.out.print("Enter R to generate a read request or W to generate a write request: ");
-
-        String s = in.nextLine();
-
-        if (s.equals("R")) { //RRQ
-
-            new Thread(() -> client1.getFile(args[0], "test1.pdf")).start();
-            new Thread(() -> client2.getFile(args[0], "test2.pdf")).start(); //2 clients run here to demonstrate multi-threading capability
+        Map<String, String> settings = new HashMap<>();
+        StringBuilder files = new StringBuilder(); //arguments that are not settings, the file names
+        for (int i = 1; i < args.length; i++) {
+            int equals = args[i].indexOf('=');
+            if (equals > 0) {
+                settings.put(args[i].substring(0, equals), args[i].substring(equals + 1));
+            } else {
+                files.append(args[i]).append('\n');
+            }
         }
+        String[] names = files.toString().split("\n");
 
-        if (s.equals("W")) { //WRQ
-
-            new Thread(() -> client3.sendFile(args[0], "test3.pdf")).start();
-            new Thread(() -> client4.sendFile(args[0], "test4.pdf")).start(); //2 clients run here to demonstrate multi-threading capability
+        String host = settings.getOrDefault("host", "localhost");
+        int port = Integer.parseInt(settings.getOrDefault("port", "9000"));
+        TransferOptions options = parseOptions(settings);
 
+        switch (args[0]) {
+            case "get": {
+                String local = names.length > 1 ? names[1] : names[0];
+                int ranges = Integer.parseInt(settings.getOrDefault("ranges", "1"));
+                TFTPClient client = new TFTPClient(host, port, 0, options);
+                TransferStats stats = ranges > 1 ? client.getFileParallel(names[0], local, ranges) : client.getFile(names[0], local);
+                System.out.println(stats == null ? "Received " + local + " over multicast" : stats.toString());
+                break;
+            }
+            case "put": {
+                String remote = names.length > 1 ? names[1] : names[0];
+                System.out.println(new TFTPClient(host, port, 0, options).sendFile(names[0], remote));
+                break;
+            }
+            case "mget": {
+                int loops = Integer.parseInt(settings.getOrDefault("loops", "1"));
+                try (AsyncTFTPClient client = new AsyncTFTPClient(host, port, options, loops)) {
+                    List<CompletableFuture<TransferResult>> results = new ArrayList<>();
+                    for (String name : names) {
+                        results.add(client.getFile(name, Paths.get(name).getFileName().toString()));
+                    }
+                    for (int i = 0; i < names.length; i++) {
+                        try {
+                            System.out.println(results.get(i).get());
+                        } catch (ExecutionException ex) {
+                            System.out.println(names[i] + " failed: " + ex.getCause().getMessage());
+                        }
+                    }
+                }
+                break;
+            }
+            case "load": {
+                if (System.getProperty("tftp.log.level") == null) {
+                    Log.setLevel(Log.Level.WARN); //no summary line for each of thousands of sessions
+                }
+                LoadGenerator load = new LoadGenerator(host, port, options);
+                for (String entry : settings.getOrDefault("mix", "").split(",")) {
+                    String[] parts = entry.split(":");
+                    if (parts.length != 3) {
+                        throw new IllegalStateException("Mix entries look like RRQ:file:weight, got " + entry);
+                    }
+                    load.addFile(!parts[0].equalsIgnoreCase("WRQ"), parts[1], Integer.parseInt(parts[2]));
+                }
+                load.setConcurrency(Integer.parseInt(settings.getOrDefault("concurrency", "100")));
+                load.setSessions(Long.parseLong(settings.getOrDefault("sessions", "1000")));
+                load.setDurationSeconds(Long.parseLong(settings.getOrDefault("duration", "0")));
+                load.setRampUpSeconds(Long.parseLong(settings.getOrDefault("rampup", "0")));
+                load.run();
+                System.out.print(load.getReport());
+                break;
+            }
+            default:
+                System.err.println("Unknown command " + args[0]);
+                System.exit(1);
         }
+    }
 
+    private static TransferOptions parseOptions(Map<String, String> settings) {
+        TransferOptions options = new TransferOptions();
+        if (settings.containsKey("blksize")) {
+            options.setBlockSize(Integer.parseInt(settings.get("blksize")));
+        }
+        if (settings.containsKey("windowsize")) {
+            options.setWindowSize(Integer.parseInt(settings.get("windowsize")));
+        }
+        if (settings.containsKey("timeout")) {
+            options.setTimeout(Integer.parseInt(settings.get("timeout")));
+        }
+        options.setMulticast(Boolean.parseBoolean(settings.get("multicast")));
+        options.setResume(Boolean.parseBoolean(settings.get("resume")));
+        return options;
     }
 }
@@ -0,0 +1,88 @@
+package tftpclient;
+
+import common.TransferOptions;
+import common.TransferStats;
+
+/**
+ * The TransferResult class is what a transfer of the AsyncTFTPClient completes with:
+ * the files involved, the options the server agreed to and the statistics of the transfer.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public class TransferResult {
+
+    private final String remoteFileName;
+    private final String localFileName;
+    private final boolean read;
+    private final TransferOptions options;
+    private final TransferStats stats;
+
+    /**
+     * This constructor initialises the result of a finished transfer
+     *
+     * @param remoteFileName name of the file on the server
+     * @param localFileName name of the local file
+     * @param read true for a read request, false for a write request
+     * @param options options agreed with the server
+     * @param stats statistics of the transfer
+     */
+    public TransferResult(String remoteFileName, String localFileName, boolean read, TransferOptions options, TransferStats stats) {
+        this.remoteFileName = remoteFileName;
+        this.localFileName = localFileName;
+        this.read = read;
+        this.options = options;
+        this.stats = stats;
+    }
+
+    /**
+     * Getter method for the name of the file on the server.
+     *
+     * @return the remote file name
+     */
+    public String getRemoteFileName() {
+        return remoteFileName;
+    }
+
+    /**
+     * Getter method for the name of the local file.
+     *
+     * @return the local file name
+     */
+    public String getLocalFileName() {
+        return localFileName;
+    }
+
+    /**
+     * Checks the direction of the transfer.
+     *
+     * @return true if the file was read from the server, false if it was written to it
+     */
+    public boolean isRead() {
+        return read;
+    }
+
+    /**
+     * Getter method for the options the server agreed to, the defaults if it ignored the request's options.
+     *
+     * @return the agreed options
+     */
+    public TransferOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * Getter method for the statistics of the transfer.
+     *
+     * @return bytes, duration, rate and retransmissions
+     */
+    public TransferStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public String toString() {
+        return (read ? "get " : "put ") + remoteFileName + " " + stats;
+    }
+
+}
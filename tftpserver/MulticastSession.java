@@ -0,0 +1,286 @@
+package tftpserver;
+
+import common.BlockSource;
+import common.Log;
+import common.MulticastGroup;
+import common.PacketFactory;
+import common.PacketView;
+import common.RetransmissionTimer;
+import common.TransferMetrics;
+import common.TransferOptions;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The MulticastSession class sends one file to any number of clients at once over multicast (RFC 2090).
+ * There is one session per file and block size, every client that asks for the file with the
+ * multicast option joins the running session instead of getting a stream of its own.
+ * The session sends the file to the group one block at a time, and only the master client
+ * (the client at the head of the queue) acknowledges the blocks. The master acknowledges the block before the
+ * first one it is missing, so the stream restarts wherever the master needs it. When the master has the
+ * whole file the next client is made master with a new OACK, and it asks for the blocks it missed.
+ * The session ends when no clients are left and nobody has joined for a while.
+ * Block numbers are not allowed to wrap, files of more than 65535 blocks are served by unicast instead.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public class MulticastSession implements Runnable {
+
+    public static final int MAX_BLOCKS = 65535;
+    private static final int IDLE_MILLIS = 5000; //how long a session without clients waits for a new one
+
+    private final DatagramChannel channel;
+    private final DatagramSocket socket;
+    private final InetSocketAddress group;
+    private final BlockSource source;
+    private final Map<String, String> accepted;
+    private final Map<String, MulticastSession> registry;
+    private final String key;
+    private final Queue<SocketAddress> joining = new ConcurrentLinkedQueue<>(); //added by the receiver thread, taken by the session thread
+    private final Deque<SocketAddress> clients = new ArrayDeque<>(); //head is the master, only used by the session thread
+    private final PacketFactory factory = new PacketFactory();
+    private final PacketView view = new PacketView();
+    private final RetransmissionTimer timer = new RetransmissionTimer();
+    private final ByteBuffer sendBuf;
+    private final byte[] recvBuf = new byte[516]; //ACK and ERROR packets only
+    private final DatagramPacket packet = new DatagramPacket(recvBuf, recvBuf.length);
+    private SocketAddress master;
+    private SocketAddress lastTarget; //where the packet in sendBuf went, for retransmission
+    private boolean closed; //guarded by the registry
+
+    /**
+     * This constructor opens the socket of the session, the session starts sending when its first client joins
+     *
+     * @param key key of the session in the registry
+     * @param registry sessions of the server, the session removes itself when it ends
+     * @param group multicast group and port the file is sent to
+     * @param networkInterface interface the group is sent on, null for the system default
+     * @param source blocks of the file, closed when the session ends
+     * @param options options negotiated for the session
+     * @param accepted options accepted for the session, sent in every OACK together with the multicast option
+     * @throws IOException if the socket cannot be opened
+     */
+    public MulticastSession(String key, Map<String, MulticastSession> registry, InetSocketAddress group, NetworkInterface networkInterface,
+            BlockSource source, TransferOptions options, Map<String, String> accepted) throws IOException {
+        this.key = key;
+        this.registry = registry;
+        this.group = group;
+        this.source = source;
+        this.accepted = accepted;
+        this.sendBuf = ByteBuffer.allocate(Math.max(options.getPacketSize(), 516));
+
+        channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        if (networkInterface != null) {
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+        }
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true); //clients on this host get the group too
+        channel.bind(new InetSocketAddress(0)); //the TID of the session, clients send their ACKs here
+        socket = channel.socket();
+
+        if (options.getTimeout() > 0) {
+            timer.setInitialTimeout(options.getTimeout() * 1000);
+        }
+    }
+
+    /**
+     * Adds a client to the session. Must be called while holding the lock of the registry.
+     *
+     * @param client address and port of the client
+     * @return false if the session has already ended and a new one must be started
+     */
+    public boolean join(SocketAddress client) {
+        if (closed) {
+            return false;
+        }
+        joining.add(client);
+        return true;
+    }
+
+    /**
+     * Runs the session until no clients are left.
+     */
+    @Override
+    public void run() {
+        try {
+            long idleSince = System.nanoTime();
+
+            while (true) {
+                acceptJoins();
+
+                if (master == null && !promote()) {
+                    if (endIfIdle(idleSince)) {
+                        return;
+                    }
+                    receive(100); //wait a little for a client to join
+                    continue;
+                }
+                idleSince = System.nanoTime();
+
+                if (!receive(timer.getTimeout())) {
+                    if (!timer.backoff()) {
+                        Log.warn("Multicast master timed out: ", master);
+                        clients.remove(master);
+                        master = null; //the next client takes over and asks for what it is missing
+                        continue;
+                    }
+                    transmit(lastTarget);
+                }
+            }
+        } catch (IOException ex) {
+            if (Log.isEnabled(Log.Level.ERROR)) {
+                Log.error("Multicast session for " + key + " failed", ex);
+            }
+        } finally {
+            close();
+        }
+    }
+
+    //sends the clients that joined since the last call their OACK, the first one is made master
+    private void acceptJoins() throws IOException {
+        SocketAddress client;
+        while ((client = joining.poll()) != null) {
+            if (client.equals(master)) {
+                sendOptionAck(client, true); //the master's OACK was lost and it asked again
+                continue;
+            }
+            if (!clients.contains(client)) {
+                clients.add(client);
+            }
+            if (master != null) {
+                sendOptionAck(client, false); //receives the blocks the master asks for until its own turn
+            }
+        }
+    }
+
+    //makes the next client master, it replies with an ACK for the block before the first one it is missing
+    private boolean promote() throws IOException {
+        master = clients.peek();
+        if (master == null) {
+            return false;
+        }
+        timer.replyReceived();
+        sendOptionAck(master, true);
+        return true;
+    }
+
+    //waits for a packet from a client and handles it, false only if nothing arrived in time
+    private boolean receive(int timeoutMillis) throws IOException {
+        socket.setSoTimeout(timeoutMillis);
+        packet.setData(recvBuf);
+        try {
+            socket.receive(packet);
+        } catch (SocketTimeoutException ex) {
+            return false;
+        }
+
+        PacketView received = view.wrap(recvBuf, packet.getLength());
+        SocketAddress client = packet.getSocketAddress();
+
+        if (!received.isValid()) {
+            return true;
+        }
+
+        if (received.getOpCode() == 5) { //a client gave up
+            Log.info("Error received: ", received.getErrorCode(), received.getErrorMessage());
+            leave(client);
+            return true;
+        }
+
+        if (received.getOpCode() != 4) {
+            return true;
+        }
+
+        int blockNum = received.getBlockNum();
+        if (blockNum == source.getBlockCount()) { //this client has the whole file
+            leave(client);
+            return true;
+        }
+
+        if (!client.equals(master) || blockNum > source.getBlockCount()) {
+            return true; //only the master's ACKs steer the stream
+        }
+
+        timer.replyReceived();
+        sendBlock(blockNum + 1); //the master has everything up to blockNum
+        return true;
+    }
+
+    private void leave(SocketAddress client) {
+        clients.remove(client);
+        if (client.equals(master)) {
+            master = null;
+        }
+    }
+
+    private void sendOptionAck(SocketAddress client, boolean makeMaster) throws IOException {
+        Map<String, String> oack = new LinkedHashMap<>(accepted);
+        oack.put(TransferOptions.MULTICAST, new MulticastGroup(group, makeMaster).toString());
+
+        sendBuf.clear();
+        factory.encodeOACK(sendBuf, oack);
+        sendBuf.flip();
+        transmit(client);
+    }
+
+    private void sendBlock(int blockNum) throws IOException {
+        sendBuf.clear();
+        factory.encodeData(sendBuf, blockNum, source.block(blockNum - 1));
+        sendBuf.flip();
+        transmit(group);
+        TransferMetrics.global().bytesSent(null, sendBuf.limit() - 4); //one copy for the whole group
+    }
+
+    private void transmit(SocketAddress target) throws IOException {
+        sendBuf.rewind();
+        channel.send(sendBuf, target);
+        lastTarget = target;
+        timer.packetSent();
+    }
+
+    private boolean endIfIdle(long idleSince) {
+        if (System.nanoTime() - idleSince < IDLE_MILLIS * 1_000_000L) {
+            return false;
+        }
+        synchronized (registry) {
+            if (!joining.isEmpty()) {
+                return false; //a client joined just now
+            }
+            closed = true;
+            registry.remove(key, this);
+        }
+        return true;
+    }
+
+    /**
+     * Ends the session and releases its socket and the file.
+     */
+    public void close() {
+        synchronized (registry) {
+            closed = true;
+            registry.remove(key, this);
+        }
+        try {
+            source.close();
+            channel.close();
+        } catch (IOException ex) {
+            Log.warn("Could not close multicast session for ", key);
+        }
+    }
+
+}
@@ -0,0 +1,272 @@
+package tftpserver;
+
+import common.Channel;
+import common.TransferMetrics;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The SessionTable class maps the address and port of a client to the Channel of its transfer
+ * on the shared well-known socket. An IPv4 client is keyed by a single long packing its address
+ * and port, so looking a packet up needs neither a reverse DNS lookup nor a formatted string.
+ * The IPv4 sessions are kept in open addressing tables of primitive keys, so a lookup boxes nothing,
+ * split into stripes with a lock each so the receivers and the transfers ending rarely wait for each other.
+ * IPv6 clients, which do not fit in a long, fall back to a table keyed by their socket address.
+ * Sessions are removed when their transfer ends, and sessions that have not seen a packet
+ * for the idle timeout are evicted by evictIdle, so the table cannot grow without limit.
+ * The number of sessions and of evictions is reported to the TransferMetrics.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public class SessionTable {
+
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 120_000; //longer than a transfer can wait with the default retries
+
+    private static final int STRIPES = 16; //a power of two
+
+    private final Stripe[] ipv4 = new Stripe[STRIPES];
+    private final Map<InetSocketAddress, Session> ipv6 = new ConcurrentHashMap<>();
+    private final long idleTimeoutNanos;
+    private final TransferMetrics metrics = TransferMetrics.global();
+
+    /**
+     * This constructor creates a table with the default idle timeout
+     */
+    public SessionTable() {
+        this(DEFAULT_IDLE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * This constructor creates a table that evicts sessions idle for longer than the given time
+     *
+     * @param idleTimeoutMillis time without packets after which a session is evicted
+     */
+    public SessionTable(long idleTimeoutMillis) {
+        this.idleTimeoutNanos = idleTimeoutMillis * 1_000_000L;
+        for (int i = 0; i < STRIPES; i++) {
+            ipv4[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Packs an IPv4 address and a port into one key, the address in the upper bits and the port in the lowest 16.
+     *
+     * @param address address of the client
+     * @param port port of the client
+     * @return the key, or -1 if the address is not an IPv4 address
+     */
+    public static long key(InetAddress address, int port) {
+        if (!(address instanceof Inet4Address)) {
+            return -1;
+        }
+
+        byte[] bytes = address.getAddress();
+        long ip = (bytes[0] & 0xffL) << 24 | (bytes[1] & 0xff) << 16 | (bytes[2] & 0xff) << 8 | (bytes[3] & 0xff);
+        return ip << 16 | port;
+    }
+
+    /**
+     * Looks up the channel of a client and marks the session as active.
+     *
+     * @param address address of the client
+     * @param port port of the client
+     * @return the channel of the client's transfer, null if it has none
+     */
+    public Channel get(InetAddress address, int port) {
+        long key = key(address, port);
+        Session session = key != -1 ? stripe(key).get(key) : ipv6.get(new InetSocketAddress(address, port));
+
+        if (session == null) {
+            return null;
+        }
+        session.lastActive = System.nanoTime();
+        return session.channel;
+    }
+
+    /**
+     * Adds the channel of a new transfer, replacing any earlier transfer of the same client.
+     *
+     * @param address address of the client
+     * @param port port of the client
+     * @param channel channel of the transfer
+     */
+    public void put(InetAddress address, int port, Channel channel) {
+        long key = key(address, port);
+        boolean added = key != -1
+                ? stripe(key).put(key, new Session(channel))
+                : ipv6.put(new InetSocketAddress(address, port), new Session(channel)) == null;
+        if (added) {
+            metrics.sessionsTracked(1);
+        }
+    }
+
+    /**
+     * Removes a session when its transfer has ended, whether it finished or failed.
+     * Nothing is removed if the client has started another transfer in the meantime.
+     *
+     * @param address address of the client
+     * @param port port of the client
+     * @param channel channel of the transfer that ended
+     */
+    public void remove(InetAddress address, int port, Channel channel) {
+        long key = key(address, port);
+        boolean removed;
+        if (key != -1) {
+            removed = stripe(key).remove(key, channel);
+        } else {
+            InetSocketAddress client = new InetSocketAddress(address, port);
+            Session session = ipv6.get(client);
+            removed = session != null && session.channel == channel && ipv6.remove(client, session);
+        }
+        if (removed) {
+            metrics.sessionsTracked(-1);
+        }
+    }
+
+    /**
+     * Evicts every session that has not received a packet within the idle timeout.
+     *
+     * @return number of sessions evicted
+     */
+    public int evictIdle() {
+        long oldest = System.nanoTime() - idleTimeoutNanos;
+        int count = 0;
+        for (Stripe stripe : ipv4) {
+            count += stripe.evictIdle(oldest);
+        }
+        for (Map.Entry<InetSocketAddress, Session> entry : ipv6.entrySet()) {
+            if (entry.getValue().lastActive - oldest < 0 && ipv6.remove(entry.getKey(), entry.getValue())) { //nanoTime values are only compared by difference
+                count++;
+            }
+        }
+
+        metrics.sessionsTracked(-count);
+        metrics.sessionsEvicted(count);
+        return count;
+    }
+
+    //the multiplication spreads the address and port over every bit, the top bits pick the stripe
+    private Stripe stripe(long key) {
+        return ipv4[(int) (mix(key) >>> 60) & (STRIPES - 1)];
+    }
+
+    private static long mix(long key) {
+        return key * 0x9E3779B97F4A7C15L;
+    }
+
+    private static class Session {
+
+        private final Channel channel;
+        private volatile long lastActive = System.nanoTime();
+
+        private Session(Channel channel) {
+            this.channel = channel;
+        }
+    }
+
+    //open addressing with linear probing, half full at most, a removed entry is filled by shifting the entries after it back
+    private static final class Stripe {
+
+        private long[] keys = new long[16];
+        private Session[] values = new Session[16]; //null marks an empty slot
+        private int size;
+
+        synchronized Session get(long key) {
+            int slot = find(key);
+            return slot >= 0 ? values[slot] : null;
+        }
+
+        //returns true if the key was not in the table
+        synchronized boolean put(long key, Session session) {
+            int slot = find(key);
+            if (slot >= 0) {
+                values[slot] = session;
+                return false;
+            }
+            if (2 * (size + 1) > keys.length) {
+                resize();
+            }
+            insert(key, session);
+            size++;
+            return true;
+        }
+
+        //removes the session of the key only if it still belongs to the channel
+        synchronized boolean remove(long key, Channel channel) {
+            int slot = find(key);
+            if (slot < 0 || values[slot].channel != channel) {
+                return false;
+            }
+            delete(slot);
+            return true;
+        }
+
+        synchronized int evictIdle(long oldest) {
+            int count = 0;
+            for (int slot = 0; slot < values.length; slot++) {
+                while (values[slot] != null && values[slot].lastActive - oldest < 0) {
+                    delete(slot); //an entry shifted back into this slot is checked too
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        private int find(long key) {
+            int mask = keys.length - 1;
+            for (int slot = home(key, mask); values[slot] != null; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        private void insert(long key, Session session) {
+            int mask = keys.length - 1;
+            int slot = home(key, mask);
+            while (values[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values[slot] = session;
+        }
+
+        private void delete(int slot) {
+            int mask = keys.length - 1;
+            values[slot] = null;
+            size--;
+            for (int next = (slot + 1) & mask; values[next] != null; next = (next + 1) & mask) {
+                int home = home(keys[next], mask);
+                if (((next - home) & mask) >= ((next - slot) & mask)) { //the gap lies on its probe path, it moves back into it
+                    keys[slot] = keys[next];
+                    values[slot] = values[next];
+                    values[next] = null;
+                    slot = next;
+                }
+            }
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            Session[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new Session[oldValues.length * 2];
+            for (int slot = 0; slot < oldKeys.length; slot++) {
+                if (oldValues[slot] != null) {
+                    insert(oldKeys[slot], oldValues[slot]);
+                }
+            }
+        }
+
+        private static int home(long key, int mask) {
+            long mixed = mix(key);
+            return (int) (mixed ^ mixed >>> 32) & mask;
+        }
+    }
+
+}
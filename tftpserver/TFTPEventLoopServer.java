@@ -0,0 +1,142 @@
+package tftpserver;
+
+import common.EventLoop;
+import common.Log;
+import common.PacketFactory;
+import common.Request;
+import common.RequestParser;
+import common.TransferOptions;
+import common.WriteBehindSink;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Map;
+
+/**
+ * The TFTPEventLoopServer class is an alternative to the TFTPMultiThreadedServer for large
+ * numbers of concurrent transfers. Instead of one thread per transfer, every transfer is a
+ * Transfer state machine on its own non-blocking DatagramChannel (a new TID as RFC 1350 asks),
+ * and the transfers are spread over a small number of EventLoop threads, one per core by default.
+ * The run method only receives RRQ and WRQ packets on the well-known port and hands the new
+ * transfers to the loops in turn.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public class TFTPEventLoopServer {
+
+    private final DatagramChannel listener;
+    private final EventLoop[] loops;
+    private final RequestParser parseR = new RequestParser();
+    private final PacketFactory factory = new PacketFactory();
+    private final ByteBuffer errorBuf = ByteBuffer.allocateDirect(516); //only used by the listener thread
+    private volatile WriteBehindSink.FsyncPolicy fsyncPolicy = WriteBehindSink.FsyncPolicy.NONE;
+
+    /**
+     * This constructor binds the well-known port and starts one event loop per core
+     *
+     * @param port port to listen on for requests
+     * @throws IOException if the port cannot be bound or a selector cannot be opened
+     */
+    public TFTPEventLoopServer(int port) throws IOException {
+        this(port, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * This constructor binds the well-known port and starts the given number of event loops
+     *
+     * @param port port to listen on for requests
+     * @param loopCount number of event loop threads
+     * @throws IOException if the port cannot be bound or a selector cannot be opened
+     */
+    public TFTPEventLoopServer(int port, int loopCount) throws IOException {
+        listener = DatagramChannel.open();
+        listener.bind(new InetSocketAddress(port)); //blocking, this thread does nothing but wait for requests
+
+        loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop();
+            Thread thread = new Thread(loops[i], "tftp-event-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Sets when files received by write requests are forced to the disk.
+     *
+     * @param fsyncPolicy the policy for every following write request
+     */
+    public void setFsyncPolicy(WriteBehindSink.FsyncPolicy fsyncPolicy) {
+        this.fsyncPolicy = fsyncPolicy;
+    }
+
+    /**
+     * Receives requests on the well-known port. Every RRQ or WRQ gets a new channel on an
+     * ephemeral port, connected to the client, and is handed to the next event loop.
+     * Anything else arriving on the well-known port is answered with an error.
+     */
+    public void run() {
+
+        ByteBuffer recvBuf = ByteBuffer.allocate(TransferOptions.MAX_BLOCK_SIZE + 4);
+        int next = 0;
+
+        while (true) {
+            SocketAddress client;
+            try {
+                recvBuf.clear();
+                client = listener.receive(recvBuf);
+            } catch (IOException ex) {
+                Log.warn("Could not receive packet");
+                continue;
+            }
+
+            Request request = parseR.parseRequest(recvBuf.array(), recvBuf.position());
+
+            if (request == null) {
+                sendError(client, 4, "Malformed request"); //unknown opcode, or a string not terminated within the packet
+                continue;
+            }
+
+            if (request.getOpCode() != 1 && request.getOpCode() != 2) {
+                sendError(client, 5, "Unknown transfer ID"); //packets of a transfer go to the transfer's own port
+                continue;
+            }
+
+            TransferOptions options = new TransferOptions();
+            Map<String, String> accepted = options.negotiate(request.getOptions());
+            if (request.getOpCode() == 1) {
+                options.acceptTransferSize(accepted, new File(request.getFileName()));
+            }
+
+            try {
+                DatagramChannel channel = DatagramChannel.open();
+                channel.bind(new InetSocketAddress(0)); //new TID for this transfer
+                channel.connect(client);
+                channel.configureBlocking(false);
+
+                Transfer transfer = new Transfer(loops[next], channel, request.getOpCode() == 1, request.getFileName(), options, accepted);
+                transfer.setFsyncPolicy(fsyncPolicy);
+                loops[next].register(transfer);
+                next = (next + 1) % loops.length;
+            } catch (IOException ex) {
+                Log.warn("Could not open channel for ", client);
+            }
+        }
+    }
+
+    private void sendError(SocketAddress client, int errorCode, String errorMessage) {
+        try {
+            errorBuf.clear();
+            factory.encodeError(errorBuf, errorCode, errorMessage);
+            errorBuf.flip();
+            listener.send(errorBuf, client);
+        } catch (IOException ex) {
+            Log.warn("Could not send error!");
+        }
+    }
+
+}
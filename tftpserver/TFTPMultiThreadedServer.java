@@ -1,18 +1,42 @@
 package tftpserver;
 
+import common.BandwidthScheduler;
+import common.BlockCache;
+import common.BlockSource;
 import common.Channel;
+import common.DatagramTransport;
+import common.Log;
+import common.MappedBlockSource;
+import common.MulticastGroup;
+import common.PacketRing;
+import common.PacketView;
 import common.Request;
 import common.RequestParser;
+import common.TransferMetrics;
+import common.TransferOptions;
+import common.WriteBehindSink;
+import java.io.File;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The TFTPMultiThreadedServer class is primarily responsible for keeping track of the different open threads.
  * It is also responsible for error handling and sending acknowledgements.
+ * Read requests may ask for a range of the file (the range option), which lets a client download
+ * a big file over several sessions at once, and both requests may resume a transfer that failed (the resume option).
+ * A BandwidthScheduler can cap the egress of read requests and share it fairly between clients.
  * 
  * @version 1.0 - 09/05/2020
  * @author Candidate Number: 203068
@@ -24,6 +48,17 @@ public class TFTPMultiThreadedServer {
      */
     protected DatagramSocket socket = null;
     RequestParser parseR = new RequestParser();
+    private final TransferExecutor transfers;
+    private final DatagramSocket[] sockets; //one per receiver thread, all bound to the well-known port
+    private final boolean ephemeralTids;
+    private final SessionTable sessions = new SessionTable(); //shared by all receivers, transfers remove themselves when they end
+    private volatile BlockCache blockCache; //shared by all read requests, null to read every file on its own
+    private volatile BandwidthScheduler scheduler; //paces the DATA packets of all read requests, null for no pacing
+    private volatile PacketRing.WaitStrategy waitStrategy = PacketRing.WaitStrategy.PARK; //how transfers on the shared socket wait for their packets
+    private volatile WriteBehindSink.FsyncPolicy fsyncPolicy = WriteBehindSink.FsyncPolicy.NONE;
+    private volatile DatagramTransport.Factory transportFactory = DatagramTransport.DIRECT; //a NetworkSimulator to test under loss
+    private final Map<String, MulticastSession> multicastSessions = new HashMap<>(); //one per file and block size, guarded by itself
+    private int nextGroup; //last byte of the group address of the next multicast session, guarded by multicastSessions
 
     
     public TFTPMultiThreadedServer() throws SocketException {
@@ -37,79 +72,456 @@ public class TFTPMultiThreadedServer {
      * @throws SocketException
      */
     public TFTPMultiThreadedServer(String name) throws SocketException {
-        socket = new DatagramSocket(9000);
+        this(name, TransferExecutor.DEFAULT_MAX_SESSIONS);
+    }
+
+    /**
+     * This constructor initialises this class with a cap on the number of concurrent transfers.
+     * Requests arriving while the cap is reached are refused with a "Server busy" error.
+     * 
+     * @param name
+     * @param maxSessions maximum number of transfers running at once
+     * @throws SocketException
+     */
+    public TFTPMultiThreadedServer(String name, int maxSessions) throws SocketException {
+        this(name, maxSessions, 1, false);
+    }
+
+    /**
+     * This constructor initialises this class with several receiver threads and/or a new TID per transfer.
+     * With more than one receiver the well-known port is bound once per receiver with SO_REUSEPORT,
+     * and the kernel spreads incoming packets over the sockets by source address, so every packet of a
+     * client lands on the same receiver. If SO_REUSEPORT is not supported a single receiver is used.
+     * With ephemeral TIDs every transfer gets its own socket on a new port (as RFC 1350 asks) and is
+     * served by its own task straight from that socket, the receivers then only ever see RRQ and WRQ packets.
+     * 
+     * @param name
+     * @param maxSessions maximum number of transfers running at once
+     * @param receivers number of receiver threads on the well-known port
+     * @param ephemeralTids true to serve every transfer from its own port
+     * @throws SocketException
+     */
+    public TFTPMultiThreadedServer(String name, int maxSessions, int receivers, boolean ephemeralTids) throws SocketException {
+        this.transfers = new TransferExecutor(maxSessions);
+        this.ephemeralTids = ephemeralTids;
+        this.sockets = bindReceivers(9000, receivers);
+        this.socket = sockets[0];
+    }
+
+    private static DatagramSocket[] bindReceivers(int port, int receivers) throws SocketException {
+        if (receivers <= 1) {
+            return new DatagramSocket[]{new DatagramSocket(port)};
+        }
+
+        DatagramSocket[] bound = new DatagramSocket[receivers];
+        for (int i = 0; i < receivers; i++) {
+            bound[i] = new DatagramSocket(null); //unbound so the option can be set before binding
+            try {
+                bound[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            } catch (UnsupportedOperationException | IOException ex) {
+                Log.warn("SO_REUSEPORT not supported, using a single receiver");
+                for (int j = 0; j <= i; j++) {
+                    bound[j].close();
+                }
+                return new DatagramSocket[]{new DatagramSocket(port)};
+            }
+            bound[i].bind(new InetSocketAddress(port));
+        }
+        return bound;
+    }
+
+    /**
+     * Getter method for the number of transfers running.
+     * 
+     * @return transfers started and not finished yet
+     */
+    public int getActiveSessions() {
+        return transfers.getActive();
+    }
+
+    /**
+     * Getter method for the number of refused transfers.
+     * 
+     * @return requests refused because the session cap was reached
+     */
+    public long getRejectedSessions() {
+        return transfers.getRejected();
+    }
+
+    /**
+     * Sets the block cache read requests are served from, so concurrent requests for the same file share its blocks.
+     * 
+     * @param blockCache the cache, null to read every file on its own
+     */
+    public void setBlockCache(BlockCache blockCache) {
+        this.blockCache = blockCache;
+    }
+
+    /**
+     * Sets the scheduler that shares the egress of read requests between clients, its allocations
+     * are reported by the TransferMetrics.
+     * 
+     * @param scheduler the scheduler, null to send without pacing
+     */
+    public void setScheduler(BandwidthScheduler scheduler) {
+        this.scheduler = scheduler;
+        TransferMetrics.global().setScheduler(scheduler);
+    }
+
+    /**
+     * Sets how transfers served from the shared socket wait for the packets the receiver hands them.
+     * 
+     * @param waitStrategy the strategy for every following transfer, PARK unless there are cores to spare
+     */
+    public void setWaitStrategy(PacketRing.WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Sets when files received by write requests are forced to the disk.
+     * 
+     * @param fsyncPolicy the policy for every following write request
+     */
+    public void setFsyncPolicy(WriteBehindSink.FsyncPolicy fsyncPolicy) {
+        this.fsyncPolicy = fsyncPolicy;
+    }
+
+    /**
+     * Sets the transport every following transfer sends through, e.g. a NetworkSimulator.
+     * Multicast sessions always use the real network.
+     * 
+     * @param transportFactory creates the transport of each channel from its socket
+     */
+    public void setTransportFactory(DatagramTransport.Factory transportFactory) {
+        this.transportFactory = transportFactory;
+    }
+
+    /**
+     * Getter method for the block cache, its hits, misses and evictions are read from here.
+     * 
+     * @return the cache, null if none is set
+     */
+    public BlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    /**
+     * Getter method for the session table of the shared well-known socket.
+     * Its size, lookup latency and evictions are read from here.
+     * 
+     * @return the session table
+     */
+    public SessionTable getSessions() {
+        return sessions;
+    }
+
+    /**
+     * Starts one receiver per well-known socket, the calling thread runs the first one.
+     */
+    public void run() {
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "tftp-session-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(sessions::evictIdle, 10, 10, TimeUnit.SECONDS); //idle sessions are only left behind by transfers that never ended
+
+        for (int i = 1; i < sockets.length; i++) {
+            DatagramSocket receiverSocket = sockets[i];
+            Thread receiver = new Thread(() -> receive(receiverSocket), "tftp-receiver-" + i);
+            receiver.start();
+        }
+
+        receive(sockets[0]);
     }
 
     /**
      *
-     * This run method contains the bulk of the logic for this class. 
-     * In this method the central data structure is the Hash Map which is used to keep track of the different threads. 
+     * This receive method contains the bulk of the logic for this class. 
+     * In this method the central data structure is the SessionTable which is used to keep track of the different threads. 
      * It stores the TIDs of each thread as an instance of channel and these threads are retrieved by looking them up by their
-     * corresponding keys.
-     * TIDs consist of the packet's address' host name combined with the packet's port number to create an identifier that is unique for every packet
+     * corresponding keys. All receivers share the table, SO_REUSEPORT always delivers a client's packets to the same receiver.
+     * TIDs consist of the packet's address combined with the packet's port number, packed into a long for IPv4 clients
      * 
+     * @param socket the well-known socket this receiver reads from
      */
-    public void run() {
+    private void receive(DatagramSocket socket) {
        
-        Map<String, Channel> channels = new HashMap<>(); //storing the different threads - string is key & channel is the transfer identifier
+        byte[] recvBuf = new byte[TransferOptions.MAX_BLOCK_SIZE + 4]; // a byte array that will store the data received by the client, large enough for any negotiated block size
+        PacketView view = new PacketView(); //one per receiver thread, wrapped around recvBuf for every packet
+        DatagramPacket packet = new DatagramPacket(recvBuf, recvBuf.length); //reused for every packet, transfers get their own
 
             while (true) {
                 
-                byte[] recvBuf = new byte[516];     // a byte array that will store the data received by the client
-                
-                DatagramPacket packet = new DatagramPacket(recvBuf, recvBuf.length);
-                
-                
+                packet.setData(recvBuf); //the length is cut to the last packet received
                 
             try {
                 socket.receive(packet);
             } catch (IOException ex) {
-                System.out.println("Could not receive packet");
+                Log.warn("Could not receive packet");
+                continue;
             }
 
-                String key = String.format("%s:%s", packet.getAddress().getHostName(), packet.getPort()); //creating a unique TID
+                InetAddress address = packet.getAddress();
+                int port = packet.getPort();
 
-                Request request = parseR.parseRequest(recvBuf, packet.getLength());
+                PacketView received = view.wrap(recvBuf, packet.getLength());
 
-                if (request == null) {
+                if (!received.isValid()) {
                  
-                    new Channel(packet, socket, true).sendError(0, "Invalid packet");
+                    new Channel(packet, transportFactory.open(socket), true).sendError(0, "Invalid packet");
                     
                     continue;
                 }
 
-                if (request.getOpCode() == 1) {
+                if (received.getOpCode() != 1 && received.getOpCode() != 2) {
+
+                    Channel channel = sessions.get(address, port);
+                    if (channel != null) {
+                        channel.receivePacket(recvBuf, packet.getLength()); //DATA, ACK and ERROR are handed over without being parsed
+                    } else {
+                        Log.trace("Unknown client, port", port, packet.getLength()); //stray packets can arrive at line rate, so they are sampled
+                    }
+                    continue;
+                }
+
+                if (!ephemeralTids && sessions.get(address, port) != null) {
+                    Log.trace("Duplicate request ignored, port", port, packet.getLength()); //the client retransmitted its request, the session already answers it
+                    continue;
+                }
+
+                Request request = parseR.parseRequest(recvBuf, packet.getLength()); //only requests are parsed into objects
+
+                if (request == null) {
+                    new Channel(packet, transportFactory.open(socket), true).sendError(4, "Malformed request"); //file name or mode not terminated within the packet
+                    continue;
+                }
+
+                if (request.getOpCode() == 1 && request.getOptions().containsKey(TransferOptions.MULTICAST)
+                        && joinMulticast(socket, packet.getSocketAddress(), address, request)) {
+                    continue; //served by the multicast session of the file
+                }
 
-                    Channel channel = new Channel(packet, socket, false);
+                if (ephemeralTids) {
 
-                    channels.put(key, channel); //storing channels in map to keep track of them 
+                    TransferOptions options = new TransferOptions();
+                    Map<String, String> accepted = options.negotiate(request.getOptions()); //the options that need the file are answered by the transfer's task
+
+                    SocketAddress client = packet.getSocketAddress();
+                    if (!transfers.submit(() -> serveOnNewTid(client, request, options, accepted))) {
+                        new Channel(packet, transportFactory.open(socket), true).sendError(0, "Server busy");
+                    }
+
+                } else if (request.getOpCode() == 1) {
+
+                    Channel channel = new Channel(new DatagramPacket(new byte[0], 0, packet.getSocketAddress()), transportFactory.open(socket), false);
+                    TransferOptions options = new TransferOptions();
+                    Map<String, String> accepted = options.negotiate(request.getOptions()); //the options that need the file are answered by the transfer's task
+                    channel.setWaitStrategy(waitStrategy);
+                    channel.setOptions(options); //creates the packet ring, once its size is known
+                    channel.setBlockCache(blockCache);
+                    channel.setScheduler(scheduler);
+
+                    sessions.put(address, port, channel); //storing channels in the table to keep track of them 
 
                     
                     
-                    new Thread(() -> channel.sendFile(request.getFileName())).start(); //channel send file not executed until thread started due to lambda expression
+                    if (!transfers.submit(() -> runSession(address, port, channel, () -> serveFile(channel, request, accepted)))) { //channel send file not executed until the executor runs it due to lambda expression
+                        sessions.remove(address, port, channel);
+                        channel.sendError(0, "Server busy");
+                    }
 
-                } else if (request.getOpCode() == 2) { //WRQ
+                } else { //WRQ
 
-                    Channel channel = new Channel(packet, socket, false);
+                    Channel channel = new Channel(new DatagramPacket(new byte[0], 0, packet.getSocketAddress()), transportFactory.open(socket), false);
+                    TransferOptions options = new TransferOptions();
+                    Map<String, String> accepted = options.negotiate(request.getOptions());
+                    channel.setWaitStrategy(waitStrategy);
+                    channel.setOptions(options);
+                    channel.setFsyncPolicy(fsyncPolicy);
 
-                    channels.put(key, channel); //storing channels
-                    try {
-                        channel.sendAck(0);
-                        new Thread(() -> channel.receiveData(request.getFileName())).start(); //receiving file from write request sent by client
-                    } catch (IOException ex) { //if sending ack throws exception it will not create thread because it wont be reached
-                        System.out.println("Could not send ack for write request");
-                    }
-                } else {
+                    sessions.put(address, port, channel); //storing channels
 
-                    if (channels.containsKey(key)) {
-                        channels.get(key).receiveRequest(request);
-                    } else {
-                        System.err.println("Unknown client: " + key);
+                    if (!transfers.submit(() -> runSession(address, port, channel, () -> receiveFile(channel, request, accepted)))) { //receiving file from write request sent by client
+                        sessions.remove(address, port, channel);
+                        channel.sendError(0, "Server busy");
                     }
+                }
 
+            }
+    }
+
+    /**
+     * Adds a client that asked for a file over multicast (RFC 2090) to the session of that file,
+     * starting the session if there is none. The session answers the client from its own port.
+     * Files that do not exist or are too big for multicast are left to the unicast path,
+     * which sends the error or serves the file without the multicast option.
+     *
+     * @param socket the well-known socket the request arrived on
+     * @param client address and port of the client
+     * @param address address of the client
+     * @param request the RRQ with the multicast option
+     * @return true if the client was added to a session, or refused because the server is busy
+     */
+    private boolean joinMulticast(DatagramSocket socket, SocketAddress client, InetAddress address, Request request) {
+        File file = new File(request.getFileName());
+        if (!file.isFile()) {
+            return false;
+        }
+
+        TransferOptions options = new TransferOptions();
+        Map<String, String> accepted = options.negotiate(request.getOptions());
+        accepted.remove(TransferOptions.WINDOW_SIZE); //only the master acknowledges, one block at a time
+        options.setWindowSize(TransferOptions.DEFAULT_WINDOW_SIZE);
+        options.acceptTransferSize(accepted, file);
+
+        synchronized (multicastSessions) {
+            try {
+                String key = file.getCanonicalPath() + ":" + options.getBlockSize();
+                MulticastSession session = multicastSessions.get(key);
+                if (session != null && session.join(client)) {
+                    return true;
                 }
 
+                BlockSource source = blockCache != null ? blockCache.open(file.getPath(), options.getBlockSize()) : new MappedBlockSource(file.getPath(), options.getBlockSize());
+                if (source.getBlockCount() > MulticastSession.MAX_BLOCKS) {
+                    source.close();
+                    return false;
+                }
+
+                nextGroup = nextGroup % 254 + 1;
+                InetSocketAddress group = new InetSocketAddress(InetAddress.getByName("239.255.0." + nextGroup), MulticastGroup.DEFAULT_PORT);
+                session = new MulticastSession(key, multicastSessions, group, MulticastGroup.interfaceTowards(address), source, options, accepted);
+
+                if (!transfers.submit(session)) {
+                    session.close();
+                    new Channel(new DatagramPacket(new byte[0], 0, client), transportFactory.open(socket), true).sendError(0, "Server busy");
+                    return true;
+                }
+                multicastSessions.put(key, session);
+                session.join(client);
+                return true;
+            } catch (IOException ex) {
+                Log.warn("Could not start multicast session for ", request.getFileName());
+                return false;
+            }
+        }
+    }
+
+    //answers the options that read the file (tsize, range, resume), on the transfer's task as the resume checksum may read gigabytes
+    private static void acceptFileOptions(Request request, TransferOptions options, Map<String, String> accepted) {
+        if (request.getOpCode() == 1) {
+            options.acceptTransferSize(accepted, new File(request.getFileName()));
+            options.acceptRange(request.getOptions(), accepted, new File(request.getFileName()));
+        }
+        acceptResume(request, options, accepted);
+    }
+
+    //answers the resume option, a file that cannot be checked is sent or received from the start
+    private static void acceptResume(Request request, TransferOptions options, Map<String, String> accepted) {
+        try {
+            if (request.getOpCode() == 1) {
+                options.acceptReadResume(request.getOptions(), accepted, new File(request.getFileName()));
+            } else {
+                options.acceptWriteResume(request.getOptions(), accepted, WriteBehindSink.partFile(request.getFileName()).toFile());
+            }
+        } catch (IOException ex) {
+            Log.warn("Could not check the resume point of ", request.getFileName());
+            options.setResume(false);
+            accepted.remove(TransferOptions.RESUME);
+        }
+    }
+
+    //runs a transfer of the shared socket and removes its session however it ended
+    private void runSession(InetAddress address, int port, Channel channel, Runnable transfer) {
+        try {
+            transfer.run();
+        } finally {
+            sessions.remove(address, port, channel);
+        }
+    }
+
+    /**
+     * Serves a transfer from its own socket on a new port. The socket is connected to the client
+     * so the channel can receive from it directly (sync mode) without seeing anybody else's packets.
+     * The socket belongs to a DatagramChannel, which lets the channel send read requests from a memory mapping.
+     *
+     * @param client address and port of the client
+     * @param request the RRQ or WRQ
+     * @param options options negotiated for this transfer, the ones that depend on the file are answered by the transfer
+     * @param accepted options accepted by the negotiation
+     */
+    private void serveOnNewTid(SocketAddress client, Request request, TransferOptions options, Map<String, String> accepted) {
+        try (DatagramChannel transferChannel = DatagramChannel.open()) {
+            transferChannel.bind(null); //new TID chosen by the system
+            transferChannel.connect(client);
+            DatagramSocket transferSocket = transferChannel.socket();
+
+            Channel channel = new Channel(new DatagramPacket(new byte[0], 0, client), transportFactory.open(transferSocket), true);
+            channel.setOptions(options);
+            channel.setBlockCache(blockCache);
+            channel.setScheduler(scheduler);
+            channel.setFsyncPolicy(fsyncPolicy);
+
+            if (request.getOpCode() == 1) {
+                serveFile(channel, request, accepted);
+            } else {
+                receiveFile(channel, request, accepted);
+            }
+        } catch (IOException ex) {
+            Log.warn("Could not open socket for ", client);
+        }
+    }
+
+    /**
+     * Serves a read request. The options that depend on the file are answered first, then if the
+     * client asked for options that were accepted an OACK is sent and the client's ACK 0 is awaited
+     * before the first data block goes out.
+     *
+     * @param channel channel of the transfer
+     * @param request the RRQ
+     * @param accepted options accepted by the negotiation, completed here
+     */
+    private void serveFile(Channel channel, Request request, Map<String, String> accepted) {
+        acceptFileOptions(request, channel.getOptions(), accepted);
+        if (!accepted.isEmpty()) {
+            try {
+                channel.sendOptionAck(accepted);
+                channel.receiveAck(0);
+            } catch (IOException ex) {
+                Log.warn("Could not negotiate options for read request");
+                return;
+            } catch (IllegalStateException ex) {
+                Log.info("Read request ended during option negotiation: ", ex.getMessage()); //a client probing the options ends with error 8
+                return;
             }
+        }
+
+        channel.sendFile(request.getFileName());
+    }
+
+    /**
+     * Serves a write request. The resume option is answered first from the part file, then
+     * ACK 0, or an OACK if options were accepted, tells the client to start sending.
+     *
+     * @param channel channel of the transfer
+     * @param request the WRQ
+     * @param accepted options accepted by the negotiation, completed here
+     */
+    private void receiveFile(Channel channel, Request request, Map<String, String> accepted) {
+        acceptFileOptions(request, channel.getOptions(), accepted);
+        try {
+            if (accepted.isEmpty()) {
+                channel.sendAck(0);
+            } else {
+                channel.sendOptionAck(accepted); //OACK takes the place of ACK 0 (RFC 2347)
+            }
+        } catch (IOException ex) {
+            Log.warn("Could not send ack for write request");
+            return;
+        }
+
+        channel.receiveData(request.getFileName());
     }
 
 }
@@ -1,10 +1,25 @@
-
 package tftpserver;
 
+import common.BandwidthScheduler;
+import common.BlockCache;
+import common.Log;
+import common.PacketRing;
+import common.TransferMetrics;
+import common.WriteBehindSink;
 import java.io.IOException;
 
 /**
  * This simple class calls the TFTPMultiThreadedServer class and prints a simple message stating that the server has started running
+ * Passing "eventloop" as args[0] starts the TFTPEventLoopServer instead, args[1] can then set the number of event loops
+ * and args[2] the fsync policy of received files (NONE, ON_COMMIT or EVERY_BATCH).
+ * Without arguments (or with "legacy") the thread per transfer server is used as before, args[1] can then cap the number of concurrent transfers,
+ * args[2] sets the number of SO_REUSEPORT receiver threads and args[3] "tid" serves every transfer from its own port.
+ * args[4] sets the size in MB of the block cache shared by read requests, args[5] "direct" keeps the cache off-heap
+ * and args[6] sets the fsync policy of received files. args[7] caps the egress of read requests in KB/s and args[8]
+ * the egress to each client subnet in KB/s (0 for no cap), the egress is then shared fairly by a BandwidthScheduler.
+ * The system property tftp.ring.wait (BUSY_SPIN, YIELD or PARK) sets how transfers on the shared socket wait for their packets.
+ * In both modes a metrics snapshot is printed every minute, the same metrics are available over JMX.
+ * Logging is set with the system properties tftp.log.level, tftp.log.sample and tftp.log.rate, see Log.
  * 
  * @version 1.0 - 09/05/2020
  * @author Candidate Number: 203068
@@ -12,8 +27,40 @@ import java.io.IOException;
 public class TFTPServerCLI {
     
     public static void main(String[] args) throws IOException {
-        new TFTPMultiThreadedServer("Server start").run();
-        System.out.println("Time Server Started");
+        String mode = args.length > 0 ? args[0] : "legacy";
+        TransferMetrics.global().startSnapshots(60);
+
+        if (mode.equals("eventloop")) {
+            int loops = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+            Log.info("Event loop server started, loops: ", loops);
+            TFTPEventLoopServer server = new TFTPEventLoopServer(9000, loops);
+            if (args.length > 2) {
+                server.setFsyncPolicy(WriteBehindSink.FsyncPolicy.valueOf(args[2]));
+            }
+            server.run();
+        } else {
+            int maxSessions = args.length > 1 ? Integer.parseInt(args[1]) : TransferExecutor.DEFAULT_MAX_SESSIONS;
+            int receivers = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+            boolean ephemeralTids = args.length > 3 && args[3].equals("tid");
+            TFTPMultiThreadedServer server = new TFTPMultiThreadedServer("Server start", maxSessions, receivers, ephemeralTids);
+            if (args.length > 4) {
+                boolean direct = args.length > 5 && args[5].equals("direct");
+                server.setBlockCache(new BlockCache(Long.parseLong(args[4]) * 1024 * 1024, direct));
+            }
+            if (args.length > 6) {
+                server.setFsyncPolicy(WriteBehindSink.FsyncPolicy.valueOf(args[6]));
+            }
+            String ringWait = System.getProperty("tftp.ring.wait");
+            if (ringWait != null) {
+                server.setWaitStrategy(PacketRing.WaitStrategy.valueOf(ringWait));
+            }
+            if (args.length > 7) {
+                long clientRate = args.length > 8 ? Long.parseLong(args[8]) * 1024 : 0;
+                server.setScheduler(new BandwidthScheduler(Long.parseLong(args[7]) * 1024, clientRate));
+            }
+            server.run();
+            Log.info("Time Server Started");
+        }
     }
     
 }
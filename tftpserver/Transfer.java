@@ -0,0 +1,548 @@
+package tftpserver;
+
+import common.EventLoop;
+import common.Log;
+import common.MappedBlockSource;
+import common.PacketFactory;
+import common.PacketView;
+import common.RetransmissionTimer;
+import common.TransferMetrics;
+import common.TransferOptions;
+import common.TransferStats;
+import common.WriteBehindSink;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.FileSystemException;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The Transfer class is the state machine of a single transfer on the event loop server.
+ * Instead of a thread blocking on a queue it is driven by two kinds of events: a packet
+ * arriving on its DatagramChannel and its retransmission timer expiring. Each event runs
+ * to completion on the event loop thread and leaves a new deadline behind.
+ * The loop thread never waits for the disk: the file is opened, committed (renamed and forced to the disk
+ * by the fsync policy) and closed on a small pool of file threads, and the transfer goes on through
+ * EventLoop.execute once that is done. A block that finds the write-behind ring full is dropped
+ * rather than waited for, and the sender sends it again.
+ * The protocol rules (windows, options, retransmission, duplicates) are the same as in Channel.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public class Transfer implements EventLoop.Handler {
+
+    public static final int FILE_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors()); //opens and commits of all transfers at once
+
+    private static final ExecutorService FILES = Executors.newFixedThreadPool(FILE_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "tftp-file");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private enum State {
+        OPENING, //the file is being opened on a file thread, nothing is sent yet
+        AWAITING_OPTION_ACK, //OACK sent for a RRQ, waiting for ACK 0
+        SENDING, //RRQ, windows of data going out
+        RECEIVING, //WRQ, data coming in
+        COMMITTING, //WRQ, last block received, the file is being committed on a file thread before the final ack
+        DALLYING, //WRQ complete, the final ack is sent again if the last window is retransmitted
+        DONE
+    }
+
+    private final EventLoop loop;
+    private final DatagramChannel channel;
+    private final boolean read;
+    private final String fileName;
+    private final TransferOptions options;
+    private final Map<String, String> accepted;
+    private final RetransmissionTimer timer;
+    private final PacketFactory factory = new PacketFactory();
+    private final PacketView view = new PacketView(); //wrapped around recvBuf for every packet read
+    private final ByteBuffer recvBuf;
+    private State state;
+    private WriteBehindSink file;
+    private boolean fileBusy; //a file thread is opening or committing the file, only it may touch source and file
+    private WriteBehindSink.FsyncPolicy fsyncPolicy = WriteBehindSink.FsyncPolicy.NONE;
+    private final ByteBuffer sendBuf = ByteBuffer.allocateDirect(516); //control packets are encoded here, the last one stays for retransmission
+    private long deadline; //System.nanoTime() at which the retransmission timer expires
+    private final TransferMetrics metrics = TransferMetrics.global();
+    private TransferStats stats;
+    private boolean complete; //the whole file has been sent and acknowledged, or received and committed
+
+    //RRQ state, blocks are sent from a memory mapping of the file with gathering writes
+    private MappedBlockSource source;
+    private final ByteBuffer header = ByteBuffer.allocateDirect(4);
+    private final ByteBuffer[] gather = new ByteBuffer[]{header, null};
+    private long firstIndex; //index of the oldest unacknowledged block, counted from 0 without wrapping
+    private int inFlight; //blocks of the current window that have been sent
+    private int blockNo = 1;
+
+    //WRQ state
+    private int expectedBlock = 1;
+    private int sinceAck;
+    private boolean gapAcknowledged;
+    private int dallyAnswers; //final acks sent again while dallying
+
+    /**
+     * This constructor sets up a transfer that has not been started yet
+     *
+     * @param loop event loop the transfer is registered with
+     * @param channel non-blocking channel bound to the transfer's own port and connected to the client
+     * @param read true for a RRQ, false for a WRQ
+     * @param fileName name of the file being read or written
+     * @param options options negotiated for this transfer
+     * @param accepted options to be sent back in an OACK, empty if the request had none
+     */
+    public Transfer(EventLoop loop, DatagramChannel channel, boolean read, String fileName, TransferOptions options, Map<String, String> accepted) {
+        this.loop = loop;
+        this.channel = channel;
+        this.read = read;
+        this.fileName = fileName;
+        this.options = options;
+        this.accepted = accepted;
+        this.timer = new RetransmissionTimer();
+        if (options.getTimeout() > 0) {
+            timer.setInitialTimeout(options.getTimeout() * 1000);
+        }
+        this.recvBuf = ByteBuffer.allocate(Math.max(options.getPacketSize(), 516)); //ERROR packets must fit even with tiny block sizes
+    }
+
+    /**
+     * Sets when a file received by this transfer is forced to the disk, must be called before start.
+     *
+     * @param fsyncPolicy the policy for the write-behind sink of a WRQ
+     */
+    public void setFsyncPolicy(WriteBehindSink.FsyncPolicy fsyncPolicy) {
+        this.fsyncPolicy = fsyncPolicy;
+    }
+
+    /**
+     * Getter method for the channel of this transfer.
+     *
+     * @return the transfer's DatagramChannel
+     */
+    @Override
+    public DatagramChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Getter method for the deadline of the retransmission timer.
+     *
+     * @return System.nanoTime() value at which onTimeout should be called
+     */
+    @Override
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Checks whether the transfer has finished, successfully or not.
+     *
+     * @return true once the transfer is over and can be closed
+     */
+    @Override
+    public boolean isDone() {
+        return state == State.DONE;
+    }
+
+    /**
+     * Starts the transfer by opening the file on a file thread, the first packet is sent once it is open:
+     * the OACK if options were accepted, otherwise the first window (RRQ) or ACK 0 (WRQ).
+     */
+    @Override
+    public void start() {
+        stats = metrics.transferStarted(fileName, channel.socket().getRemoteSocketAddress(), read);
+        state = State.OPENING;
+        fileBusy = true;
+        restartTimer();
+        FILES.execute(this::openFile);
+    }
+
+    //runs on a file thread, the transfer goes on on the loop thread once the file is open
+    private void openFile() {
+        long opening = System.nanoTime();
+        IOException failure = null;
+        try {
+            if (read) {
+                source = new MappedBlockSource(fileName, options.getBlockSize());
+            } else {
+                file = new WriteBehindSink(fileName, options.getBlockSize(), fsyncPolicy);
+            }
+            metrics.recordFileOpen(System.nanoTime() - opening);
+        } catch (IOException ex) {
+            failure = ex;
+        }
+        IOException result = failure;
+        loop.execute(this, () -> opened(result));
+    }
+
+    //sends the first packet, or the error if the file could not be opened
+    private void opened(IOException failure) {
+        fileBusy = false;
+        if (state != State.OPENING) {
+            closeFiles(); //aborted while the file was being opened
+            return;
+        }
+        if (failure instanceof FileNotFoundException || failure instanceof FileSystemException) {
+            fail(read ? 1 : 2, failure.getMessage()); //1 = file not found, 2 = access violation
+            return;
+        }
+        if (failure != null) {
+            fail(0, "Could not start transfer");
+            return;
+        }
+
+        try {
+            if (read) {
+                if (accepted.isEmpty()) {
+                    state = State.SENDING;
+                    sendWindow();
+                } else {
+                    state = State.AWAITING_OPTION_ACK;
+                    factory.encodeOACK(sendBuffer(), accepted);
+                    send();
+                }
+            } else {
+                state = State.RECEIVING;
+                if (accepted.isEmpty()) {
+                    factory.encodeAck(sendBuffer(), 0);
+                } else {
+                    factory.encodeOACK(sendBuffer(), accepted); //OACK takes the place of ACK 0
+                }
+                send();
+            }
+        } catch (IOException ex) {
+            fail(0, "Could not start transfer");
+        }
+    }
+
+    /**
+     * Called by the event loop when the channel is readable. Every datagram waiting
+     * on the channel is read and fed into the state machine.
+     */
+    @Override
+    public void onReadable() {
+        boolean progressed = false; //only new packets restart the timer, a stream of duplicates must not keep the transfer alive
+        try {
+            while (state != State.DONE) {
+                recvBuf.clear();
+                int length = channel.read(recvBuf);
+                if (length <= 0) {
+                    break; //nothing more waiting
+                }
+
+                PacketView received = view.wrap(recvBuf.array(), length);
+
+                if (state == State.OPENING || state == State.COMMITTING) {
+                    continue; //nothing to answer until the file thread is done, the peer sends it again
+                } else if (state == State.DALLYING) {
+                    onDally(received);
+                } else if (!received.isValid()) {
+                    fail(0, "Invalid packet");
+                } else if (received.getOpCode() == 5) {
+                    metrics.errorReceived(received.getErrorCode());
+                    Log.info("Error received: ", received.getErrorCode(), received.getErrorMessage());
+                    finish();
+                } else if (state == State.RECEIVING) {
+                    progressed |= onData(received);
+                } else {
+                    progressed |= onAck(received);
+                }
+            }
+            if (progressed && state != State.DALLYING) {
+                restartTimer(); //like a blocking receive, the next packet gets a full timeout from now
+            }
+        } catch (IOException ex) {
+            if (Log.isEnabled(Log.Level.WARN)) {
+                Log.warn("Transfer of " + fileName + " failed: ", ex.getMessage());
+            }
+            finish();
+        }
+    }
+
+    /**
+     * Called by the event loop when the retransmission timer has expired.
+     * The last packet (or window) is sent again unless the retry limit has been reached.
+     */
+    @Override
+    public void onTimeout() {
+        if (state == State.DALLYING) {
+            state = State.DONE; //the final ack arrived, the sender did not retransmit
+            return;
+        }
+        if (state == State.OPENING || state == State.COMMITTING) {
+            restartTimer(); //the file thread is slow, nothing has been sent that could be lost
+            return;
+        }
+        if (!timer.backoff()) {
+            fail(0, "Transfer timed out");
+            return;
+        }
+        stats.addRetransmission();
+
+        try {
+            if (state == State.SENDING) {
+                sendWindow();
+            } else if (state == State.RECEIVING && sinceAck > 0) {
+                sendAck((expectedBlock - 1) & 0xffff); //rest of the window was lost, tell the sender where to restart
+                sinceAck = 0;
+            } else {
+                resend();
+            }
+        } catch (IOException ex) {
+            fail(0, "Could not retransmit");
+        }
+    }
+
+    /**
+     * Called by the event loop when it stops, a started transfer tells the client with an error.
+     */
+    @Override
+    public void abort() {
+        if (stats == null || state == State.DALLYING) {
+            state = State.DONE; //never started or already complete, nothing is open
+            return;
+        }
+        fail(0, "Transfer aborted");
+    }
+
+    //returns false for a stale duplicate, which is ignored rather than answered with the window (RFC 1123 section 4.2.3.1)
+    private boolean onAck(PacketView received) throws IOException {
+        if (received.getOpCode() != 4) {
+            fail(4, "Unexpected response"); //4 = illegal TFTP operation
+            return false;
+        }
+
+        if (state == State.AWAITING_OPTION_ACK) {
+            if (received.getBlockNum() != 0) {
+                fail(4, "Unexpected response");
+                return false;
+            }
+            timer.replyReceived();
+            state = State.SENDING;
+            sendWindow();
+            return true;
+        }
+
+        int acknowledged = (received.getBlockNum() - blockNo + 1) & 0xffff; //wraps the same way block numbers do
+        if (acknowledged == 0 || acknowledged > inFlight) {
+            metrics.duplicateAck(); //e.g. the ack of a window that was also retransmitted, answering it would send every window twice
+            return false;
+        }
+        timer.replyReceived();
+
+        firstIndex += acknowledged;
+        blockNo = (blockNo + acknowledged) & 0xffff;
+
+        if (firstIndex == source.getBlockCount()) {
+            complete = true;
+            finish(); //last block acknowledged
+        } else {
+            sendWindow();
+        }
+        return true;
+    }
+
+    //returns false for a duplicate block, which is not written again
+    private boolean onData(PacketView received) throws IOException {
+        if (received.getOpCode() != 3) {
+            fail(4, "Unexpected opcode");
+            return false;
+        }
+
+        int behind = (expectedBlock - received.getBlockNum()) & 0xffff;
+        if (behind > 0 && behind <= options.getWindowSize()) {
+            metrics.duplicateData();
+            if (behind == 1 && sinceAck == 0) {
+                sendAck(received.getBlockNum()); //last block acknowledged, the ack itself was lost
+            }
+            return false;
+        }
+
+        if (behind != 0) {
+            //out of sequence, acknowledge the last good block once so the sender restarts the window from there
+            if (!gapAcknowledged) {
+                sendAck((expectedBlock - 1) & 0xffff);
+                gapAcknowledged = true;
+            }
+            sinceAck = 0;
+            return false;
+        }
+        if (!file.hasRoom()) {
+            return false; //the writer is behind, the block is dropped rather than waited for, the next one acknowledges the gap
+        }
+        timer.replyReceived();
+
+        int size = received.getPayloadLength();
+        recvBuf.limit(received.getPayloadOffset() + size).position(received.getPayloadOffset()); //write the payload straight from the receive buffer
+        file.write(recvBuf); //copied into the ring, written by the background writer
+        metrics.bytesReceived(stats, size);
+
+        boolean lastBlock = size < options.getBlockSize();
+        gapAcknowledged = false;
+        sinceAck++;
+        expectedBlock = (expectedBlock + 1) & 0xffff;
+
+        if (lastBlock) {
+            commit(); //the file is complete under its own name before the final ack goes out
+        } else if (sinceAck == options.getWindowSize()) { //only the last block of each window is acknowledged
+            sendAck((expectedBlock - 1) & 0xffff);
+            sinceAck = 0;
+        }
+        return true;
+    }
+
+    //waits for the writer, applies the fsync policy and renames the file on a file thread, the final ack goes out once that is done
+    private void commit() {
+        state = State.COMMITTING;
+        fileBusy = true;
+        FILES.execute(() -> {
+            IOException failure = null;
+            try {
+                file.commit();
+            } catch (IOException ex) {
+                failure = ex;
+            }
+            IOException result = failure;
+            loop.execute(this, () -> committed(result));
+        });
+    }
+
+    private void committed(IOException failure) {
+        fileBusy = false;
+        if (state != State.COMMITTING) {
+            closeFiles(); //aborted while the file was being committed
+            return;
+        }
+        if (failure != null) {
+            fail(3, "Could not write file"); //3 = disk full or allocation exceeded
+            return;
+        }
+        complete = true;
+        try {
+            sendAck((expectedBlock - 1) & 0xffff);
+        } catch (IOException ex) {
+            Log.warn("Could not send the final ack: ", ex.getMessage()); //answered again while dallying when the last block comes again
+        }
+        sinceAck = 0;
+        dally();
+    }
+
+    //the file is complete, the transfer ends for the statistics but stays on the loop for the dally timeout so a
+    //lost final ack does not leave the sender retrying until it gives up on a file that was received (RFC 1350 section 6)
+    private void dally() {
+        finish();
+        state = State.DALLYING;
+        deadline = System.nanoTime() + timer.getDallyTimeout() * 1_000_000L;
+    }
+
+    //a block of the last window means the final ack was lost and the window is retransmitted, its last block is
+    //answered with the final ack, which is still in sendBuf, anything else ends the dally
+    private void onDally(PacketView received) throws IOException {
+        int behind = received.isValid() && received.getOpCode() == 3 ? (expectedBlock - 1 - received.getBlockNum()) & 0xffff : options.getWindowSize();
+        if (behind >= options.getWindowSize() || dallyAnswers == RetransmissionTimer.DEFAULT_MAX_RETRIES) {
+            state = State.DONE;
+            return;
+        }
+        metrics.duplicateData();
+        if (behind == 0) {
+            resend();
+            dallyAnswers++;
+            deadline = System.nanoTime() + timer.getDallyTimeout() * 1_000_000L; //the next retransmission may follow a backed off timeout
+        }
+    }
+
+    //sends every unacknowledged block of the window, straight from the mapping
+    private void sendWindow() throws IOException {
+        inFlight = (int) Math.min(options.getWindowSize(), source.getBlockCount() - firstIndex);
+
+        for (int i = 0; i < inFlight; i++) {
+            header.clear();
+            factory.encodeDataHeader(header, blockNo + i);
+            header.flip();
+
+            gather[1] = source.block(firstIndex + i);
+            metrics.bytesSent(stats, gather[1].remaining());
+            channel.write(gather); //one datagram made of both buffers
+        }
+
+        timer.packetSent();
+        restartTimer();
+    }
+
+    private void sendAck(int blockNum) throws IOException {
+        factory.encodeAck(sendBuffer(), blockNum);
+        send();
+    }
+
+    private ByteBuffer sendBuffer() {
+        sendBuf.clear();
+        return sendBuf;
+    }
+
+    //sends what was encoded into sendBuf since sendBuffer() was called
+    private void send() throws IOException {
+        sendBuf.flip();
+        transmit();
+    }
+
+    //sends the last packet again, it is still in sendBuf
+    private void resend() throws IOException {
+        sendBuf.rewind();
+        transmit();
+    }
+
+    private void transmit() throws IOException {
+        channel.write(sendBuf); //a full socket buffer drops the packet, the timer will resend it
+        timer.packetSent();
+        restartTimer();
+    }
+
+    private void restartTimer() {
+        deadline = System.nanoTime() + timer.getTimeout() * 1_000_000L;
+    }
+
+    private void fail(int errorCode, String errorMessage) {
+        metrics.errorSent(errorCode);
+        try {
+            factory.encodeError(sendBuffer(), errorCode, errorMessage);
+            sendBuf.flip();
+            channel.write(sendBuf);
+        } catch (IOException ex) {
+            Log.warn("Could not send error!");
+        }
+        finish();
+    }
+
+    private void finish() {
+        if (state == State.DALLYING) {
+            state = State.DONE; //already ended when the dally began
+            return;
+        }
+        state = State.DONE;
+        metrics.transferEnded(stats, complete);
+        if (!fileBusy) {
+            closeFiles(); //otherwise closed once the file thread is done
+        }
+    }
+
+    //the sink is closed on a file thread, it waits for its writer and deletes the temporary file unless it was committed
+    private void closeFiles() {
+        if (source != null) {
+            try {
+                source.close();
+            } catch (IOException ex) {
+                Log.warn("Could not close ", fileName);
+            }
+        }
+        if (file != null) {
+            FILES.execute(file::close);
+        }
+    }
+
+}
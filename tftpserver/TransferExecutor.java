@@ -0,0 +1,119 @@
+package tftpserver;
+
+import common.TransferMetrics;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The TransferExecutor class runs the blocking per-transfer work of the TFTPMultiThreadedServer
+ * with a cap on how many transfers may run at once. A transfer past the cap is refused straight
+ * away instead of being queued, so a boot storm cannot pile up threads or memory.
+ * On a JVM with virtual threads (Java 21+) every transfer gets a virtual thread, otherwise a
+ * cached pool of platform threads is used, which the cap keeps bounded.
+ *
+ * @version 1.0 - 09/05/2020
+ * @author Candidate Number: 203068
+ */
+public class TransferExecutor {
+
+    public static final int DEFAULT_MAX_SESSIONS = 1000;
+
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final int maxSessions;
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * This constructor creates an executor with the default cap
+     */
+    public TransferExecutor() {
+        this(DEFAULT_MAX_SESSIONS);
+    }
+
+    /**
+     * This constructor creates an executor that allows at most maxSessions transfers at once
+     *
+     * @param maxSessions cap on concurrent transfers
+     */
+    public TransferExecutor(int maxSessions) {
+        this.maxSessions = maxSessions;
+        this.permits = new Semaphore(maxSessions);
+        this.executor = newExecutor();
+    }
+
+    /**
+     * Starts a transfer if there is room for it.
+     *
+     * @param transfer the blocking work of the transfer
+     * @return true if the transfer was started, false if the server is at its cap and the transfer was refused
+     */
+    public boolean submit(Runnable transfer) {
+        if (!permits.tryAcquire()) {
+            rejected.incrementAndGet();
+            TransferMetrics.global().transferRejected();
+            return false;
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    transfer.run();
+                } finally {
+                    permits.release(); //frees the slot however the transfer ended
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            permits.release();
+            rejected.incrementAndGet();
+            TransferMetrics.global().transferRejected();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Getter method for the number of transfers running.
+     *
+     * @return transfers started and not finished yet
+     */
+    public int getActive() {
+        return maxSessions - permits.availablePermits();
+    }
+
+    /**
+     * Getter method for the number of refused transfers.
+     *
+     * @return transfers refused because the cap was reached, since the server started
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Getter method for the cap on concurrent transfers.
+     *
+     * @return maximum number of transfers running at once
+     */
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    //looked up by reflection so the code still compiles and runs on JVMs without virtual threads
+    private static ExecutorService newExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "tftp-transfer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+}